@@ -0,0 +1,180 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package demo.pkcs.pkcs11.wrapper.benchmarks;
+
+import iaik.pkcs.pkcs11.Module;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.Slot;
+import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.CharArrayAttribute;
+import iaik.pkcs.pkcs11.objects.DateAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This benchmark reads a wide set of attributes, most of which are absent
+ * for any given object, from all objects of a token. It compares probing
+ * every attribute individually with the bulk read of
+ * GenericTemplate.readAttributes(), which narrows down the absent
+ * attributes instead of failing on each of them.
+ */
+public class AttributeProbing {
+
+  /**
+   * Usage: AttributeProbing PKCS#11-module [slot-index] [userPIN] [rounds]
+   */
+  public static void main(String[] args) throws TokenException, IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: AttributeProbing <PKCS#11 module> [<slot-index>] [<user-PIN>]"
+          + " [<rounds>]");
+      throw new IOException("Missing argument!");
+    }
+
+    Module module = Module.getInstance(args[0]);
+    module.initialize(null);
+    try {
+      Slot[] slots = module.getSlotList(true);
+      if (slots.length == 0) {
+        throw new TokenException("No token found!");
+      }
+      Slot slot = slots[(args.length > 1) ? Integer.parseInt(args[1]) : 0];
+      Token token = slot.getToken();
+      Session session = token.openSession(Token.SessionType.SERIAL_SESSION,
+          Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+      try {
+        if (args.length > 2) {
+          session.login(Session.UserType.USER, args[2].toCharArray());
+        }
+        int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+        run(session, rounds);
+      } finally {
+        session.closeSession();
+      }
+    } finally {
+      module.finalize(null);
+    }
+  }
+
+  private static void run(Session session, int rounds) throws TokenException {
+    List<Long> handles = new ArrayList<>();
+    session.findObjectsInit(null);
+    PKCS11Object[] found;
+    while ((found = session.findObjects(100)).length > 0) {
+      for (PKCS11Object object : found) {
+        handles.add(object.getObjectHandle());
+      }
+    }
+    session.findObjectsFinal();
+    System.out.println("objects:    " + handles.size());
+
+    int absent = 0;
+    long individual = 0;
+    long bulk = 0;
+    for (int r = 0; r < rounds; r++) {
+      long start = System.nanoTime();
+      for (Long handle : handles) {
+        for (Attribute attribute : newAttributes()) {
+          if (PKCS11Object.probeAttributeValue(session, handle, attribute)
+              == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
+            absent++;
+          }
+        }
+      }
+      individual += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (Long handle : handles) {
+        GenericTemplate template = new GenericTemplate();
+        for (Attribute attribute : newAttributes()) {
+          template.addAttribute(attribute);
+        }
+        template.setObjectHandle(handle);
+        template.readAttributes(session);
+      }
+      bulk += System.nanoTime() - start;
+    }
+
+    int attributes = newAttributes().length;
+    System.out.println("attributes: " + attributes + " per object, "
+        + (absent / Math.max(1, rounds)) + " absent in total");
+    System.out.println("individual: " + (individual / 1000000) + " ms");
+    System.out.println("bulk:       " + (bulk / 1000000) + " ms");
+  }
+
+  private static Attribute[] newAttributes() {
+    return new Attribute[] {
+      new LongAttribute(Attribute.CLASS),
+      new BooleanAttribute(Attribute.TOKEN),
+      new BooleanAttribute(Attribute.PRIVATE),
+      new CharArrayAttribute(Attribute.LABEL),
+      new ByteArrayAttribute(Attribute.ID),
+      new ByteArrayAttribute(Attribute.OBJECT_ID),
+      new CharArrayAttribute(Attribute.APPLICATION),
+      new ByteArrayAttribute(Attribute.SUBJECT),
+      new ByteArrayAttribute(Attribute.ISSUER),
+      new ByteArrayAttribute(Attribute.SERIAL_NUMBER),
+      new LongAttribute(Attribute.KEY_TYPE),
+      new DateAttribute(Attribute.START_DATE),
+      new DateAttribute(Attribute.END_DATE),
+      new BooleanAttribute(Attribute.SIGN),
+      new BooleanAttribute(Attribute.DECRYPT),
+      new BooleanAttribute(Attribute.UNWRAP),
+      new BooleanAttribute(Attribute.DERIVE),
+      new ByteArrayAttribute(Attribute.MODULUS),
+      new ByteArrayAttribute(Attribute.EC_PARAMS),
+      new LongAttribute(Attribute.VALUE_LEN),
+      new ByteArrayAttribute(Attribute.CHECK_VALUE),
+      new LongAttribute(Attribute.HW_FEATURE_TYPE) };
+  }
+
+}
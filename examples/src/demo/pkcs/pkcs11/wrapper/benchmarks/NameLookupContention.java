@@ -0,0 +1,138 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package demo.pkcs.pkcs11.wrapper.benchmarks;
+
+import iaik.pkcs.pkcs11.constants.Functions;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This benchmark measures the throughput of the static name registries
+ * (attribute, object class, key type and mechanism names) when many threads
+ * use them at the same time, e.g. for logging or toString(). It does not
+ * need a PKCS#11 module.
+ */
+public class NameLookupContention {
+
+  /**
+   * Usage: NameLookupContention [threads] [iterations-per-thread]
+   */
+  public static void main(String[] args) throws InterruptedException {
+    final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+    final int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+    // warm up, also loads the registries
+    run(threads, iterations / 10);
+
+    long start = System.nanoTime();
+    long checksum = run(threads, iterations);
+    long duration = System.nanoTime() - start;
+
+    long ops = (long) threads * iterations;
+    System.out.println("threads:    " + threads);
+    System.out.println("lookups:    " + ops);
+    System.out.println("duration:   " + (duration / 1000000) + " ms");
+    System.out.println("throughput: " + (ops * 1000000000L / Math.max(1, duration))
+        + " lookups/s");
+    System.out.println("(checksum " + checksum + ")");
+  }
+
+  private static long run(int threads, final int iterations) throws InterruptedException {
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    final CountDownLatch doneSignal = new CountDownLatch(threads);
+    final AtomicLong checksum = new AtomicLong();
+
+    final long[] mechanisms = { PKCS11Constants.CKM_RSA_PKCS, PKCS11Constants.CKM_ECDSA,
+        PKCS11Constants.CKM_AES_CBC, PKCS11Constants.CKM_SHA256 };
+    final Long[] keyTypes = { Key.KeyType.RSA, Key.KeyType.EC, Key.KeyType.AES };
+    final Long[] objectClasses = { PKCS11Object.ObjectClass.CERTIFICATE,
+        PKCS11Object.ObjectClass.PRIVATE_KEY, PKCS11Object.ObjectClass.DATA };
+    final Attribute attribute = new ByteArrayAttribute(Attribute.ID);
+
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          long sum = 0;
+          try {
+            startSignal.await();
+            for (int i = 0; i < iterations; i++) {
+              switch (i & 3) {
+                case 0:
+                  sum += Functions.mechanismCodeToString(mechanisms[i % mechanisms.length])
+                      .length();
+                  break;
+                case 1:
+                  sum += Key.getKeyTypeName(keyTypes[i % keyTypes.length]).length();
+                  break;
+                case 2:
+                  sum += PKCS11Object.getObjectClassName(objectClasses[i % objectClasses.length])
+                      .length();
+                  break;
+                default:
+                  sum += attribute.toString(true).length();
+                  break;
+              }
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          } finally {
+            checksum.addAndGet(sum);
+            doneSignal.countDown();
+          }
+        }
+      }.start();
+    }
+
+    startSignal.countDown();
+    doneSignal.await();
+    return checksum.get();
+  }
+
+}
@@ -0,0 +1,168 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package demo.pkcs.pkcs11.wrapper.benchmarks;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Module;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.Slot;
+import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * This benchmark signs with the first signature key of a token and reports
+ * the bytes allocated per signature by the calling thread, comparing
+ * Session.sign(byte[]) with the variant writing into a caller-supplied
+ * array. It reads the per-thread allocation counter of the HotSpot
+ * ThreadMXBean, which is what a GC profiler attributes to the call.
+ */
+public class SignAllocation {
+
+  /**
+   * Usage: SignAllocation PKCS#11-module [slot-index] [userPIN] [operations]
+   */
+  public static void main(String[] args) throws TokenException, IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: SignAllocation <PKCS#11 module> [<slot-index>] [<user-PIN>]"
+          + " [<operations>]");
+      throw new IOException("Missing argument!");
+    }
+
+    Module module = Module.getInstance(args[0]);
+    module.initialize(null);
+    try {
+      Slot[] slots = module.getSlotList(true);
+      if (slots.length == 0) {
+        throw new TokenException("No token found!");
+      }
+      Slot slot = slots[(args.length > 1) ? Integer.parseInt(args[1]) : 0];
+      Token token = slot.getToken();
+      Session session = token.openSession(Token.SessionType.SERIAL_SESSION,
+          Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+      try {
+        if (args.length > 2) {
+          session.login(Session.UserType.USER, args[2].toCharArray());
+        }
+        int operations = (args.length > 3) ? Integer.parseInt(args[3]) : 10000;
+        run(session, operations);
+      } finally {
+        session.closeSession();
+      }
+    } finally {
+      module.finalize(null);
+    }
+  }
+
+  private static void run(Session session, int operations)
+      throws TokenException {
+    PrivateKey template = new PrivateKey();
+    template.getSign().setBooleanValue(Boolean.TRUE);
+    session.findObjectsInit(template);
+    PKCS11Object[] found = session.findObjects(1);
+    session.findObjectsFinal();
+    if (found.length == 0) {
+      throw new TokenException("No signature key found!");
+    }
+
+    PrivateKey key = (PrivateKey) found[0];
+    Long keyType = key.getKeyType().getLongValue();
+    Mechanism mechanism;
+    if (keyType != null && keyType == PKCS11Constants.CKK_RSA) {
+      mechanism = Mechanism.get(PKCS11Constants.CKM_RSA_PKCS);
+    } else if (keyType != null && keyType == PKCS11Constants.CKK_EC) {
+      mechanism = Mechanism.get(PKCS11Constants.CKM_ECDSA);
+    } else {
+      throw new TokenException("Unsupported key type: " + keyType);
+    }
+    System.out.println("mechanism:  " + mechanism);
+
+    byte[] data = new byte[32];
+    byte[] out = new byte[1024];
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    // warm up both paths
+    for (int i = 0; i < 1000; i++) {
+      session.signInit(mechanism, key);
+      session.sign(data);
+      session.signInit(mechanism, key);
+      session.sign(data, 0, data.length, out, 0, out.length);
+    }
+
+    long allocated = threads.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int i = 0; i < operations; i++) {
+      session.signInit(mechanism, key);
+      session.sign(data);
+    }
+    long returningTime = System.nanoTime() - start;
+    long returningBytes = threads.getThreadAllocatedBytes(threadId)
+        - allocated;
+
+    allocated = threads.getThreadAllocatedBytes(threadId);
+    start = System.nanoTime();
+    for (int i = 0; i < operations; i++) {
+      session.signInit(mechanism, key);
+      session.sign(data, 0, data.length, out, 0, out.length);
+    }
+    long suppliedTime = System.nanoTime() - start;
+    long suppliedBytes = threads.getThreadAllocatedBytes(threadId)
+        - allocated;
+
+    System.out.println("sign(byte[]):          "
+        + (returningBytes / operations) + " B/op, "
+        + (returningTime / operations / 1000) + " us/op");
+    System.out.println("sign(..., out, ...):   "
+        + (suppliedBytes / operations) + " B/op, "
+        + (suppliedTime / operations / 1000) + " us/op");
+  }
+
+}
@@ -42,6 +42,7 @@
 
 package iaik.pkcs.pkcs11.constants;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -79,31 +80,48 @@ public class Functions implements PKCS11Constants {
       = "/iaik/pkcs/pkcs11/constants/ckr.properties";
 
   /**
-   * True, if the mapping of mechanism codes to PKCS#11 mechanism names is
-   * available.
+   * Holds the mapping of mechanism codes to PKCS#11 mechanism names and
+   * vice versa. Both maps are read once when this class is loaded and never
+   * modified afterwards, hence lookups need no lock.
    */
-  private static boolean mechCodeNamesAvailable;
+  private static final class MechanismNamesHolder {
 
-  /**
-   * Maps mechanism codes as Long to their names as Strings.
-   */
-  private static Map<Long, String> mechNames;
+    /**
+     * Maps mechanism codes as Long to their names as Strings.
+     */
+    private static final Map<Long, String> CODE_TO_NAME;
 
-  /**
-   * Maps mechanism name as String to their code as Long.
-   */
-  private static Map<String, Long> mechNameToCodes;
+    /**
+     * Maps mechanism name as String to their code as Long.
+     */
+    private static final Map<String, Long> NAME_TO_CODE;
 
-  /**
-   * True, if the mapping of error codes to PKCS#11 error names is available.
-   */
-  private static boolean errorCodeNamesAvailable;
+    static {
+      Map<Long, String> codeNameMap = new HashMap<>();
+      Map<String, Long> nameCodeMap = new HashMap<>();
+      loadMechanismNames(codeNameMap, nameCodeMap);
+      CODE_TO_NAME = Collections.unmodifiableMap(codeNameMap);
+      NAME_TO_CODE = Collections.unmodifiableMap(nameCodeMap);
+    }
+
+  }
 
   /**
-   * The properties object that holds the mapping from error-code to the name
-   * of the PKCS#11 error.
+   * Holds the mapping from error-code to the name of the PKCS#11 error. The
+   * map is read once when this class is loaded and never modified
+   * afterwards, hence lookups need no lock.
    */
-  private static Map<Long, String> errorCodeNames;
+  private static final class ErrorCodeNamesHolder {
+
+    private static final Map<Long, String> CODE_TO_NAME;
+
+    static {
+      Map<Long, String> codeNameMap = new HashMap<>();
+      loadErrorCodeNames(codeNameMap);
+      CODE_TO_NAME = Collections.unmodifiableMap(codeNameMap);
+    }
+
+  }
 
   /**
    * This set contains the mechanisms that are full encrypt/decrypt
@@ -174,8 +192,7 @@ public class Functions implements PKCS11Constants {
    * @return The string representation of the mechanism.
    */
   public static String mechanismCodeToString(long mechCode) {
-    initMechanismMap();
-    String name = mechCodeNamesAvailable ? mechNames.get(mechCode) : null;
+    String name = MechanismNamesHolder.CODE_TO_NAME.get(mechCode);
 
     if (name == null) {
       name = "Unknwon mechanism with code: 0x" + toFullHex(mechCode);
@@ -210,22 +227,12 @@ public class Functions implements PKCS11Constants {
    * @return The code representation of the mechanism.
    */
   public static long mechanismStringToCode(String mechName) {
-    initMechanismMap();
-    Long code = mechCodeNamesAvailable
-        ? mechNameToCodes.get(mechName) : null;
+    Long code = MechanismNamesHolder.NAME_TO_CODE.get(mechName);
     return (code != null) ? code : -1;
   }
 
-  private static synchronized void initMechanismMap() {
-    // ensure that another thread has not loaded the codes meanwhile
-    if (mechNames != null) {
-      return;
-    }
-
-    // if the names of the defined codes are not yet loaded, load them
-    Map<Long, String> codeNameMap = new HashMap<>();
-    Map<String, Long> nameCodeMap = new HashMap<>();
-
+  private static void loadMechanismNames(Map<Long, String> codeNameMap,
+      Map<String, Long> nameCodeMap) {
     Properties props = new Properties();
     try {
       props.load(Functions.class.getResourceAsStream(CKM_CODE_PROPERTIES));
@@ -274,10 +281,6 @@ public class Functions implements PKCS11Constants {
       for (Long code : codes) {
         nameCodeMap.put(codeNameMap.get(code), code);
       }
-
-      mechNames = codeNameMap;
-      mechNameToCodes = nameCodeMap;
-      mechCodeNamesAvailable = true;
     } catch (Exception ex) {
       System.err.println(
           "Could not read properties for code names: " + ex.getMessage());
@@ -292,10 +295,7 @@ public class Functions implements PKCS11Constants {
    * @return The string representation of the error.
    */
   public static String errorCodeToString(long errorCode) {
-    initErrorCodeMap();
-
-    String name = errorCodeNamesAvailable
-        ? errorCodeNames.get(errorCode) : null;
+    String name = ErrorCodeNamesHolder.CODE_TO_NAME.get(errorCode);
     if (name == null) {
       name = "Unknwon mechanism with code: 0x" + toFullHex(errorCode);
     }
@@ -303,18 +303,10 @@ public class Functions implements PKCS11Constants {
     return name;
   }
 
-  private static synchronized void initErrorCodeMap() {
-    // ensure that another thread has not loaded the codes meanwhile
-    if (errorCodeNames != null) {
-      return;
-    }
-
-    // if the names of the defined codes are not yet loaded, load them
-    Map<Long, String> codeNamMap = new HashMap<>();
+  private static void loadErrorCodeNames(Map<Long, String> codeNameMap) {
     Properties props = new Properties();
     try {
-      props.load(Functions.class.getClassLoader().getResourceAsStream(
-          CKR_CODE_PROPERTIES));
+      props.load(Functions.class.getResourceAsStream(CKR_CODE_PROPERTIES));
       for (String propName : props.stringPropertyNames()) {
         String errorName = props.getProperty(propName);
         long code;
@@ -323,10 +315,8 @@ public class Functions implements PKCS11Constants {
         } else {
           code = Long.parseLong(propName);
         }
-        codeNamMap.put(code, errorName);
+        codeNameMap.put(code, errorName);
       }
-      errorCodeNames = codeNamMap;
-      errorCodeNamesAvailable = true;
     } catch (Exception ex) {
       System.err.println("Could not read properties for error code names: "
           + ex.getMessage());
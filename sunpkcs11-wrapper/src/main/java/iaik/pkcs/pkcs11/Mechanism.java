@@ -42,8 +42,12 @@
 
 package iaik.pkcs.pkcs11;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import iaik.pkcs.pkcs11.constants.Functions;
 import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.params.ImmutableParams;
 import iaik.pkcs.pkcs11.params.Params;
 
 /**
@@ -91,6 +95,53 @@ public class Mechanism {
     return new Mechanism(pkcs11MechanismCode);
   }
 
+  /**
+   * Gets the shared, immutable instance of the given mechanism without
+   * parameters. Unlike {@link #get(long)}, this does not allocate, and the
+   * sessions reuse the native structure of the mechanism. Its
+   * {@link #setParams(Params)} throws an UnsupportedOperationException.
+   *
+   * @param pkcs11MechanismCode
+   *          the pkcs11 mechanism code
+   * @return the shared mechanism
+   */
+  public static Mechanism getShared(long pkcs11MechanismCode) {
+    Long code = pkcs11MechanismCode;
+    Mechanism mechanism = SharedMechanismsHolder.MECHANISMS.get(code);
+    if (mechanism == null) {
+      mechanism = new ImmutableMechanism(pkcs11MechanismCode, null);
+      Mechanism existing =
+          SharedMechanismsHolder.MECHANISMS.putIfAbsent(code, mechanism);
+      if (existing != null) {
+        mechanism = existing;
+      }
+    }
+    return mechanism;
+  }
+
+  /**
+   * Creates an immutable mechanism with the given parameters. The parameters
+   * are frozen via {@link ImmutableParams}, and the sessions build the
+   * native structure of the mechanism only once. Keep the instance for
+   * repeated operations.
+   *
+   * @param pkcs11MechanismCode
+   *          the pkcs11 mechanism code
+   * @param params
+   *          the parameters; must not be modified afterwards
+   * @return the immutable mechanism
+   * @exception IllegalArgumentException
+   *              If the token writes results into the parameters, e.g. for
+   *              CKM_TLS_KEY_AND_MAC_DERIVE; use {@link #get(long)} then.
+   */
+  public static Mechanism getImmutable(long pkcs11MechanismCode,
+      Params params) {
+    if (params != null && !(params instanceof ImmutableParams)) {
+      params = new ImmutableParams(params);
+    }
+    return new ImmutableMechanism(pkcs11MechanismCode, params);
+  }
+
   /**
    * Override equals to check for the equality of mechanism code and
    * parameter.
@@ -330,6 +381,29 @@ public class Mechanism {
     this.params = params;
   }
 
+  /**
+   * Checks whether this mechanism is immutable; see {@link #getShared(long)}
+   * and {@link #getImmutable(long, Params)}.
+   *
+   * @return true, if this mechanism is immutable.
+   */
+  public boolean isImmutable() {
+    return false;
+  }
+
+  /**
+   * Gets the native structure cached by the sessions. Only immutable
+   * mechanisms cache it.
+   *
+   * @return The cached structure, or null.
+   */
+  Object getNativeMechanism() {
+    return null;
+  }
+
+  void setNativeMechanism(Object nativeMechanism) {
+  }
+
   /**
    * Get the code of this mechanism as defined in PKCS11Constants (of
    * pkcs11t.h likewise).
@@ -365,4 +439,49 @@ public class Mechanism {
       "\n    Params:\n", params);
   }
 
+  /**
+   * The shared parameterless mechanisms, keyed by the mechanism code.
+   */
+  private static final class SharedMechanismsHolder {
+
+    private static final ConcurrentMap<Long, Mechanism> MECHANISMS =
+        new ConcurrentHashMap<>();
+
+  }
+
+  /**
+   * A mechanism whose parameters cannot be changed.
+   */
+  private static final class ImmutableMechanism extends Mechanism {
+
+    private volatile Object nativeMechanism;
+
+    private ImmutableMechanism(long pkcs11MechanismCode, Params params) {
+      super(pkcs11MechanismCode);
+      this.params = params;
+    }
+
+    @Override
+    public void setParams(Params params) {
+      throw new UnsupportedOperationException(
+          "this mechanism is immutable");
+    }
+
+    @Override
+    public boolean isImmutable() {
+      return true;
+    }
+
+    @Override
+    Object getNativeMechanism() {
+      return nativeMechanism;
+    }
+
+    @Override
+    void setNativeMechanism(Object nativeMechanism) {
+      this.nativeMechanism = nativeMechanism;
+    }
+
+  }
+
 }
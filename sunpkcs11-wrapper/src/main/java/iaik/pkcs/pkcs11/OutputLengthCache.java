@@ -0,0 +1,575 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import iaik.pkcs.pkcs11.constants.Functions;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Knows the output lengths of signing, encryption and decryption per key and
+ * mechanism, so that callers can pass an exactly sized buffer on the first
+ * try instead of guessing and retrying on CKR_BUFFER_TOO_SMALL.
+ * <p/>
+ * The lengths are computed from the key attributes, which are read once per
+ * key: the modulus of RSA keys, the curve of EC keys, the subprime of DSA
+ * keys and the block size of AES and DES keys. For combinations this class
+ * cannot compute, it uses the lengths learned from previous results, which
+ * the callers report via the learn* methods. A learned length also overrides
+ * a smaller computed one.
+ * <p/>
+ * Keys are identified by their object handle, so an instance must only be
+ * used with the sessions of one module. Call {@link #forget(Key)} after
+ * destroying a key whose handle may be reused.
+ *
+ * <pre>
+ * <code>
+ *   OutputLengthCache lengths = new OutputLengthCache(1024);
+ *   byte[] out = new byte[
+ *       lengths.getEncryptedLength(session, mechanism, key, data.length)];
+ *   session.encryptInit(mechanism, key);
+ *   int len = session.encrypt(data, 0, data.length, out, 0, out.length);
+ *   lengths.learnEncryptedLength(mechanism, key, data.length, len);
+ * </code>
+ * </pre>
+ *
+ * @invariants (maxEntries > 0)
+ */
+public class OutputLengthCache {
+
+  /**
+   * The signature length assumed if nothing is known; the length of a
+   * 4096-bit RSA signature.
+   */
+  public static final int DEFAULT_SIGNATURE_LENGTH = 512;
+
+  /**
+   * The encryption overhead assumed if nothing is known; large enough for
+   * padding, tags and RSA moduli up to 4096 bits.
+   */
+  public static final int DEFAULT_ENCRYPT_OVERHEAD = 512;
+
+  private static final int SIGN = 0;
+
+  private static final int ENCRYPT = 1;
+
+  private static final int DECRYPT = 2;
+
+  /**
+   * The output lengths of MAC mechanisms, which only depend on the mechanism.
+   */
+  private static final class MacLengthsHolder {
+
+    private static final Map<Long, Integer> LENGTHS;
+
+    static {
+      Map<Long, Integer> map = new HashMap<>();
+      map.put(PKCS11Constants.CKM_MD5_HMAC, 16);
+      map.put(PKCS11Constants.CKM_SHA_1_HMAC, 20);
+      map.put(PKCS11Constants.CKM_RIPEMD160_HMAC, 20);
+      map.put(PKCS11Constants.CKM_SHA224_HMAC, 28);
+      map.put(PKCS11Constants.CKM_SHA256_HMAC, 32);
+      map.put(PKCS11Constants.CKM_SHA384_HMAC, 48);
+      map.put(PKCS11Constants.CKM_SHA512_HMAC, 64);
+      map.put(PKCS11Constants.CKM_SHA512_224_HMAC, 28);
+      map.put(PKCS11Constants.CKM_SHA512_256_HMAC, 32);
+      map.put(PKCS11Constants.CKM_SHA3_224_HMAC, 28);
+      map.put(PKCS11Constants.CKM_SHA3_256_HMAC, 32);
+      map.put(PKCS11Constants.CKM_SHA3_384_HMAC, 48);
+      map.put(PKCS11Constants.CKM_SHA3_512_HMAC, 64);
+      map.put(PKCS11Constants.CKM_AES_CMAC, 16);
+      map.put(PKCS11Constants.CKM_AES_XCBC_MAC, 16);
+      map.put(PKCS11Constants.CKM_AES_MAC, 8);
+      map.put(PKCS11Constants.CKM_DES3_MAC, 4);
+      map.put(PKCS11Constants.CKM_DES_MAC, 4);
+      LENGTHS = map;
+    }
+
+  }
+
+  /**
+   * The field sizes in bits of well-known curves, keyed by the hex encoding
+   * of their CKA_EC_PARAMS (the DER-encoded OID).
+   */
+  private static final class CurveSizesHolder {
+
+    private static final Map<String, Integer> SIZES;
+
+    static {
+      Map<String, Integer> map = new HashMap<>();
+      map.put("06082a8648ce3d030101", 192); // prime192v1
+      map.put("06052b81040021", 224); // secp224r1
+      map.put("06082a8648ce3d030107", 256); // prime256v1
+      map.put("06052b8104000a", 256); // secp256k1
+      map.put("06052b81040022", 384); // secp384r1
+      map.put("06052b81040023", 521); // secp521r1
+      map.put("06092b2403030208010107", 256); // brainpoolP256r1
+      map.put("06092b240303020801010b", 384); // brainpoolP384r1
+      map.put("06092b240303020801010d", 512); // brainpoolP512r1
+      map.put("06032b6570", 255); // Ed25519
+      map.put("06032b6571", 448); // Ed448
+      SIZES = map;
+    }
+
+  }
+
+  /**
+   * The properties of a key which determine the output lengths.
+   */
+  private static final class KeyInfo {
+
+    private final long keyType;
+
+    /**
+     * The modulus length in bytes (RSA), the field size in bits (EC), the
+     * subprime length in bytes (DSA), or 0 if unknown.
+     */
+    private final int size;
+
+    private KeyInfo(long keyType, int size) {
+      this.keyType = keyType;
+      this.size = size;
+    }
+
+  }
+
+  private static final class LengthKey {
+
+    private final long keyHandle;
+
+    private final long mechanismCode;
+
+    private final int operation;
+
+    private LengthKey(long keyHandle, long mechanismCode, int operation) {
+      this.keyHandle = keyHandle;
+      this.mechanismCode = mechanismCode;
+      this.operation = operation;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof LengthKey)) {
+        return false;
+      }
+
+      LengthKey other = (LengthKey) otherObject;
+      return keyHandle == other.keyHandle
+          && mechanismCode == other.mechanismCode
+          && operation == other.operation;
+    }
+
+    @Override
+    public int hashCode() {
+      long h = keyHandle * 31 + mechanismCode;
+      return (int) (h ^ (h >>> 32)) * 3 + operation;
+    }
+
+  }
+
+  private final int maxEntries;
+
+  private final ConcurrentMap<Long, KeyInfo> keyInfos =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The learned lengths. For signatures the signature length, for encryption
+   * and decryption the difference between output and input length.
+   */
+  private final ConcurrentMap<LengthKey, Integer> learned =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maxEntries
+   *          The maximal number of keys and of learned lengths to keep. If
+   *          exceeded, the respective part of the cache is cleared.
+   * @preconditions (maxEntries > 0)
+   * @postconditions
+   */
+  public OutputLengthCache(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException(
+          "maxEntries must be positive: " + maxEntries);
+    }
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Gets the length of signatures or MACs created with the given mechanism
+   * and key.
+   *
+   * @param session
+   *          The session to read the key attributes with, if they are not
+   *          known yet.
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @return The signature length, or {@link #DEFAULT_SIGNATURE_LENGTH} if it
+   *         is neither computable nor learned.
+   * @exception TokenException
+   *              If reading the key attributes failed.
+   * @preconditions (session <> null) and (mechanism <> null) and (key <> null)
+   * @postconditions (result > 0)
+   */
+  public int getSignatureLength(Session session, Mechanism mechanism,
+      Key key) throws TokenException {
+    long code = mechanism.getMechanismCode();
+    Integer learnedLength = learned.get(
+        new LengthKey(key.getObjectHandle(), code, SIGN));
+    int computed = computeSignatureLength(getKeyInfo(session, key), code);
+    if (learnedLength != null) {
+      return Math.max(learnedLength, computed);
+    }
+    return (computed > 0) ? computed : DEFAULT_SIGNATURE_LENGTH;
+  }
+
+  /**
+   * Gets the maximal length of the ciphertext of the given data length.
+   *
+   * @param session
+   *          The session to read the key attributes with, if they are not
+   *          known yet.
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The encryption key.
+   * @param dataLength
+   *          The length of the plaintext.
+   * @return The maximal ciphertext length; dataLength plus
+   *         {@link #DEFAULT_ENCRYPT_OVERHEAD} if it is neither computable nor
+   *         learned.
+   * @exception TokenException
+   *              If reading the key attributes failed.
+   * @preconditions (session <> null) and (mechanism <> null) and (key <> null)
+   *                and (dataLength >= 0)
+   * @postconditions (result >= 0)
+   */
+  public int getEncryptedLength(Session session, Mechanism mechanism,
+      Key key, int dataLength) throws TokenException {
+    long code = mechanism.getMechanismCode();
+    Integer overhead = learned.get(
+        new LengthKey(key.getObjectHandle(), code, ENCRYPT));
+    int computed = computeEncryptedLength(getKeyInfo(session, key), code,
+        dataLength);
+    if (overhead != null) {
+      return Math.max(dataLength + overhead, computed);
+    }
+    return (computed >= 0) ? computed
+        : dataLength + DEFAULT_ENCRYPT_OVERHEAD;
+  }
+
+  /**
+   * Gets the maximal length of the plaintext of the given ciphertext length.
+   *
+   * @param session
+   *          The session to read the key attributes with, if they are not
+   *          known yet.
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @param encryptedLength
+   *          The length of the ciphertext.
+   * @return The maximal plaintext length; encryptedLength if it is neither
+   *         computable nor learned.
+   * @exception TokenException
+   *              If reading the key attributes failed.
+   * @preconditions (session <> null) and (mechanism <> null) and (key <> null)
+   *                and (encryptedLength >= 0)
+   * @postconditions (result >= 0)
+   */
+  public int getDecryptedLength(Session session, Mechanism mechanism,
+      Key key, int encryptedLength) throws TokenException {
+    long code = mechanism.getMechanismCode();
+    Integer overhead = learned.get(
+        new LengthKey(key.getObjectHandle(), code, DECRYPT));
+    KeyInfo info = getKeyInfo(session, key);
+    // no padding scheme yields more plaintext than ciphertext, except that
+    // an RSA ciphertext may lack leading zeros
+    int computed = (info.keyType == PKCS11Constants.CKK_RSA && info.size > 0)
+        ? Math.max(info.size, encryptedLength) : encryptedLength;
+    if (overhead != null) {
+      return Math.max(encryptedLength + overhead, computed);
+    }
+    return computed;
+  }
+
+  /**
+   * Records the length of a signature created with the given mechanism and
+   * key.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @param signatureLength
+   *          The length of the signature.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void learnSignatureLength(Mechanism mechanism, Key key,
+      int signatureLength) {
+    learn(new LengthKey(key.getObjectHandle(), mechanism.getMechanismCode(),
+        SIGN), signatureLength);
+  }
+
+  /**
+   * Records the ciphertext length of an encryption with the given mechanism
+   * and key.
+   *
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The encryption key.
+   * @param dataLength
+   *          The length of the plaintext.
+   * @param encryptedLength
+   *          The length of the ciphertext.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void learnEncryptedLength(Mechanism mechanism, Key key,
+      int dataLength, int encryptedLength) {
+    learn(new LengthKey(key.getObjectHandle(), mechanism.getMechanismCode(),
+        ENCRYPT), encryptedLength - dataLength);
+  }
+
+  /**
+   * Records the plaintext length of a decryption with the given mechanism and
+   * key.
+   *
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @param encryptedLength
+   *          The length of the ciphertext.
+   * @param dataLength
+   *          The length of the plaintext.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void learnDecryptedLength(Mechanism mechanism, Key key,
+      int encryptedLength, int dataLength) {
+    learn(new LengthKey(key.getObjectHandle(), mechanism.getMechanismCode(),
+        DECRYPT), dataLength - encryptedLength);
+  }
+
+  /**
+   * Removes everything known about the given key.
+   *
+   * @param key
+   *          The key to forget.
+   * @preconditions (key <> null)
+   * @postconditions
+   */
+  public void forget(Key key) {
+    long handle = key.getObjectHandle();
+    keyInfos.remove(handle);
+    for (LengthKey lengthKey : learned.keySet()) {
+      if (lengthKey.keyHandle == handle) {
+        learned.remove(lengthKey);
+      }
+    }
+  }
+
+  /**
+   * Removes everything known.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void clear() {
+    keyInfos.clear();
+    learned.clear();
+  }
+
+  private void learn(LengthKey lengthKey, int value) {
+    // keep the maximum; lengths may vary, e.g. with RSA decryption
+    Integer old = learned.putIfAbsent(lengthKey, value);
+    while (old != null && old < value
+        && !learned.replace(lengthKey, old, value)) {
+      old = learned.get(lengthKey);
+    }
+    if (old == null && learned.size() > maxEntries) {
+      learned.clear();
+    }
+  }
+
+  private KeyInfo getKeyInfo(Session session, Key key) throws TokenException {
+    Long handle = key.getObjectHandle();
+    KeyInfo info = keyInfos.get(handle);
+    if (info == null) {
+      info = readKeyInfo(session, handle);
+      if (keyInfos.size() >= maxEntries) {
+        keyInfos.clear();
+      }
+      keyInfos.put(handle, info);
+    }
+    return info;
+  }
+
+  private static KeyInfo readKeyInfo(Session session, long handle)
+      throws TokenException {
+    LongAttribute keyType = new LongAttribute(Attribute.KEY_TYPE);
+    if (PKCS11Object.probeAttributeValue(session, handle, keyType)
+        != PKCS11Constants.CKR_OK || keyType.getLongValue() == null) {
+      return new KeyInfo(-1, 0);
+    }
+
+    long type = keyType.getLongValue();
+    Long sizeAttribute;
+    if (type == PKCS11Constants.CKK_RSA) {
+      sizeAttribute = Attribute.MODULUS;
+    } else if (type == PKCS11Constants.CKK_EC
+        || type == PKCS11Constants.CKK_EC_EDWARDS) {
+      sizeAttribute = Attribute.EC_PARAMS;
+    } else if (type == PKCS11Constants.CKK_DSA) {
+      sizeAttribute = Attribute.SUBPRIME;
+    } else {
+      return new KeyInfo(type, 0);
+    }
+
+    ByteArrayAttribute value = new ByteArrayAttribute(sizeAttribute);
+    if (PKCS11Object.probeAttributeValue(session, handle, value)
+        != PKCS11Constants.CKR_OK || value.getValueLength() <= 0) {
+      return new KeyInfo(type, 0);
+    }
+
+    byte[] bytes = value.getByteArrayValueNoCopy();
+    if (sizeAttribute == Attribute.EC_PARAMS) {
+      Integer bits = CurveSizesHolder.SIZES.get(Util.toHex(bytes));
+      return new KeyInfo(type, (bits == null) ? 0 : bits);
+    }
+
+    // big integers, possibly with leading zeros
+    int offset = 0;
+    while (offset < bytes.length - 1 && bytes[offset] == 0) {
+      offset++;
+    }
+    return new KeyInfo(type, bytes.length - offset);
+  }
+
+  private static int computeSignatureLength(KeyInfo info, long code) {
+    Integer macLength = MacLengthsHolder.LENGTHS.get(code);
+    if (macLength != null) {
+      return macLength;
+    }
+    if (info.size == 0) {
+      return -1;
+    }
+
+    if (info.keyType == PKCS11Constants.CKK_RSA) {
+      return info.size;
+    } else if (info.keyType == PKCS11Constants.CKK_EC) {
+      return 2 * ((info.size + 7) / 8);
+    } else if (info.keyType == PKCS11Constants.CKK_EC_EDWARDS) {
+      // Ed25519: 64 bytes, Ed448: 114 bytes
+      return (info.size == 255) ? 64 : 114;
+    } else if (info.keyType == PKCS11Constants.CKK_DSA) {
+      return 2 * info.size;
+    }
+    return -1;
+  }
+
+  private static int computeEncryptedLength(KeyInfo info, long code,
+      int dataLength) {
+    if (info.keyType == PKCS11Constants.CKK_RSA) {
+      return (info.size > 0) ? info.size : -1;
+    }
+
+    int blockSize = getBlockSize(info.keyType);
+    if (blockSize == 0) {
+      return -1;
+    }
+
+    String name = Functions.mechanismCodeToString(code);
+    if (name.contains("KEY_WRAP_PAD") || name.contains("KEY_WRAP_KWP")) {
+      return (dataLength + 7) / 8 * 8 + 8;
+    } else if (name.contains("KEY_WRAP")) {
+      return dataLength + 8;
+    } else if (name.endsWith("_PAD")) {
+      return (dataLength / blockSize + 1) * blockSize;
+    } else if (name.contains("GCM") || name.contains("CCM")) {
+      // the maximal tag length
+      return dataLength + 16;
+    } else if (name.endsWith("_ECB") || name.endsWith("_CBC")
+        || name.endsWith("_CTR") || name.endsWith("_CTS")
+        || name.contains("_OFB") || name.contains("_CFB")) {
+      return dataLength;
+    }
+    return -1;
+  }
+
+  private static int getBlockSize(long keyType) {
+    if (keyType == PKCS11Constants.CKK_AES) {
+      return 16;
+    } else if (keyType == PKCS11Constants.CKK_DES
+        || keyType == PKCS11Constants.CKK_DES2
+        || keyType == PKCS11Constants.CKK_DES3) {
+      return 8;
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("OutputLengthCache (keys: ", keyInfos.size(),
+        ", learned lengths: ", learned.size(), ")");
+  }
+
+}
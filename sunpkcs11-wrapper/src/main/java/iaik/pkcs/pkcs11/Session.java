@@ -42,7 +42,12 @@
 
 package iaik.pkcs.pkcs11;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import iaik.pkcs.pkcs11.constants.PKCS11Constants;
 import iaik.pkcs.pkcs11.objects.Key;
@@ -51,6 +56,7 @@ import iaik.pkcs.pkcs11.objects.PKCS11Object;
 import iaik.pkcs.pkcs11.objects.PrivateKey;
 import iaik.pkcs.pkcs11.objects.PublicKey;
 import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.params.ImmutableParams;
 import iaik.pkcs.pkcs11.params.Params;
 import iaik.pkcs.pkcs11.params.SSL3KeyMaterialParams;
 import iaik.pkcs.pkcs11.params.SSL3MasterKeyDeriveParams;
@@ -174,6 +180,37 @@ public class Session {
 
   }
 
+  /*
+   * The operations of processBuffers.
+   */
+  private static final int ENCRYPT = 0;
+
+  private static final int ENCRYPT_UPDATE = 1;
+
+  private static final int ENCRYPT_FINAL = 2;
+
+  private static final int DECRYPT = 3;
+
+  private static final int DECRYPT_UPDATE = 4;
+
+  private static final int DECRYPT_FINAL = 5;
+
+  private static final int DIGEST_FINAL = 6;
+
+  /**
+   * The output of processBuffers is expected to exceed its input by at most
+   * this many bytes; e.g. padding, a tag or a digest. A direct output buffer
+   * is staged with this length first, since it may be far larger.
+   */
+  private static final int EXPECTED_OVERHEAD = 64;
+
+  /**
+   * The converted mechanisms without parameters, keyed by the mechanism code.
+   * Such a CK_MECHANISM is only read by the native code and can be shared.
+   */
+  private static final ConcurrentMap<Long, CK_MECHANISM>
+      parameterlessCkMechanisms = new ConcurrentHashMap<>();
+
   /**
    * A reference to the underlying PKCS#11 module to perform the operations.
    */
@@ -504,15 +541,33 @@ public class Session {
    */
   public PKCS11Object createObject(PKCS11Object templateObject)
       throws TokenException {
+    long objectHandle = createObjectHandle(templateObject);
+    return PKCS11Object.getInstance(this, objectHandle);
+  }
+
+  /**
+   * Create a new object on the token (or in the session) like
+   * {@link #createObject(PKCS11Object)}, but return only the handle of the
+   * new object instead of reading all its attributes back from the token.
+   *
+   * @param templateObject
+   *          The template object that holds all values that the new object on
+   *          the token should contain.
+   * @return The handle of the new object.
+   * @exception TokenException
+   *              If the creation of the new object fails. If it fails, the no
+   *              new object was created on the token.
+   * @preconditions (templateObject <> null)
+   * @postconditions
+   */
+  public long createObjectHandle(PKCS11Object templateObject)
+      throws TokenException {
     CK_ATTRIBUTE[] ckAttributes = PKCS11Object.getSetAttributes(templateObject);
-    long objectHandle;
     try {
-      objectHandle = pkcs11Module.C_CreateObject(sessionHandle, ckAttributes);
+      return pkcs11Module.C_CreateObject(sessionHandle, ckAttributes);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
-
-    return PKCS11Object.getInstance(this, objectHandle);
   }
 
   /**
@@ -620,7 +675,21 @@ public class Session {
    * @postconditions
    */
   public void destroyObject(PKCS11Object object) throws TokenException {
-    long objectHandle = object.getObjectHandle();
+    destroyObject(object.getObjectHandle());
+  }
+
+  /**
+   * Destroy the object with the given handle on the token (or in the
+   * session).
+   *
+   * @param objectHandle
+   *          The handle of the object that should be destroyed.
+   * @exception TokenException
+   *              If the object could not be destroyed.
+   * @preconditions
+   * @postconditions
+   */
+  public void destroyObject(long objectHandle) throws TokenException {
     try {
       pkcs11Module.C_DestroyObject(sessionHandle, objectHandle);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -716,6 +785,29 @@ public class Session {
     }
   }
 
+  /**
+   * Finds objects like {@link #findObjects(int)}, but returns only their
+   * handles without reading any attributes. Use this method to enumerate
+   * many objects, of which only some attributes are needed.
+   *
+   * @param maxObjectCount
+   *          Specifies how many handles to return with this call.
+   * @return An array of the handles of the found objects. The maximum size
+   *         of this array is maxObjectCount, the minimum length is 0. Never
+   *         returns null.
+   * @exception TokenException
+   *              If finding the objects failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public long[] findObjectHandles(int maxObjectCount) throws TokenException {
+    try {
+      return pkcs11Module.C_FindObjects(sessionHandle, maxObjectCount);
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+  }
+
   /**
    * Finalizes a find operation. The application must call this method to
    * finalize a find operation before attempting to start any other operation.
@@ -790,6 +882,30 @@ public class Session {
     }
   }
 
+  /**
+   * Encrypts the remaining content of <code>in</code> like
+   * {@link #encrypt(byte[], int, int, byte[], int, int)} and puts the result
+   * into <code>out</code>. Heap buffers are passed to the token without
+   * copying; the content of direct buffers is staged in reused arrays.
+   * On success, the position of <code>in</code> is set to its limit and the
+   * position of <code>out</code> is advanced by the number of bytes written.
+   *
+   * @param in
+   *          The data to encrypt.
+   * @param out
+   *          The buffer to receive the encrypted data.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If encrypting failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int encrypt(ByteBuffer in, ByteBuffer out) throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    return processBuffers(ENCRYPT, in, out);
+  }
+
   /**
    * This method can be used to encrypt multiple pieces of data; e.g.
    * buffer-size pieces when reading the data from a stream. Encrypts the
@@ -819,6 +935,32 @@ public class Session {
     }
   }
 
+  /**
+   * Encrypts the remaining content of <code>in</code> like
+   * {@link #encryptUpdate(byte[], int, int, byte[], int, int)} and puts the
+   * result into <code>out</code>. Heap buffers are passed to the token
+   * without copying; the content of direct buffers is staged in reused
+   * arrays.
+   * On success, the position of <code>in</code> is set to its limit and the
+   * position of <code>out</code> is advanced by the number of bytes written.
+   *
+   * @param in
+   *          The data to encrypt.
+   * @param out
+   *          The buffer to receive the encrypted data.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If encrypting failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int encryptUpdate(ByteBuffer in, ByteBuffer out)
+      throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    return processBuffers(ENCRYPT_UPDATE, in, out);
+  }
+
   /**
    * This method finalizes an encryption operation and returns the final
    * result. Use this method, if you fed in the data using encryptUpdate. If
@@ -843,6 +985,25 @@ public class Session {
     }
   }
 
+  /**
+   * Finalizes the encryption operation like
+   * {@link #encryptFinal(byte[], int, int)} and puts the result into
+   * <code>out</code>. On success, the position of <code>out</code> is
+   * advanced by the number of bytes written.
+   *
+   * @param out
+   *          The buffer to receive the final result.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If calculating the final result failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int encryptFinal(ByteBuffer out) throws TokenException {
+    Util.requireNonNull("out", out);
+    return processBuffers(ENCRYPT_FINAL, null, out);
+  }
+
   /**
    * Initializes a new decryption operation. The application must call this
    * method before calling any other decrypt* operation. Before initializing a
@@ -900,6 +1061,30 @@ public class Session {
     }
   }
 
+  /**
+   * Decrypts the remaining content of <code>in</code> like
+   * {@link #decrypt(byte[], int, int, byte[], int, int)} and puts the result
+   * into <code>out</code>. Heap buffers are passed to the token without
+   * copying; the content of direct buffers is staged in reused arrays.
+   * On success, the position of <code>in</code> is set to its limit and the
+   * position of <code>out</code> is advanced by the number of bytes written.
+   *
+   * @param in
+   *          The data to decrypt.
+   * @param out
+   *          The buffer to receive the decrypted data.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If decrypting failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int decrypt(ByteBuffer in, ByteBuffer out) throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    return processBuffers(DECRYPT, in, out);
+  }
+
   /**
    * This method can be used to decrypt multiple pieces of data; e.g.
    * buffer-size pieces when reading the data from a stream. Decrypts the
@@ -929,6 +1114,32 @@ public class Session {
     }
   }
 
+  /**
+   * Decrypts the remaining content of <code>in</code> like
+   * {@link #decryptUpdate(byte[], int, int, byte[], int, int)} and puts the
+   * result into <code>out</code>. Heap buffers are passed to the token
+   * without copying; the content of direct buffers is staged in reused
+   * arrays.
+   * On success, the position of <code>in</code> is set to its limit and the
+   * position of <code>out</code> is advanced by the number of bytes written.
+   *
+   * @param in
+   *          The data to decrypt.
+   * @param out
+   *          The buffer to receive the decrypted data.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If decrypting failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int decryptUpdate(ByteBuffer in, ByteBuffer out)
+      throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    return processBuffers(DECRYPT_UPDATE, in, out);
+  }
+
   /**
    * This method finalizes a decryption operation and returns the final
    * result. Use this method, if you fed in the data using decryptUpdate. If
@@ -953,6 +1164,25 @@ public class Session {
     }
   }
 
+  /**
+   * Finalizes the decryption operation like
+   * {@link #decryptFinal(byte[], int, int)} and puts the result into
+   * <code>out</code>. On success, the position of <code>out</code> is
+   * advanced by the number of bytes written.
+   *
+   * @param out
+   *          The buffer to receive the final result.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If calculating the final result failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int decryptFinal(ByteBuffer out) throws TokenException {
+    Util.requireNonNull("out", out);
+    return processBuffers(DECRYPT_FINAL, null, out);
+  }
+
   /**
    * Initializes a new digesting operation. The application must call this
    * method before calling any other digest* operation. Before initializing a
@@ -997,6 +1227,27 @@ public class Session {
     return digestFinal(digest, digestOfs, digestLen);
   }
 
+  /**
+   * Digests the remaining content of <code>in</code> with the mechanism given
+   * to the digestInit method and puts the digest into <code>digest</code>.
+   * On success, the position of <code>in</code> is set to its limit and the
+   * position of <code>digest</code> is advanced by the digest length.
+   *
+   * @param in
+   *          The data to digest.
+   * @param digest
+   *          The buffer to receive the digest.
+   * @return The length of the digest.
+   * @exception TokenException
+   *              If digesting the data failed.
+   * @preconditions (in <> null) and (digest <> null)
+   * @postconditions
+   */
+  public int digest(ByteBuffer in, ByteBuffer digest) throws TokenException {
+    digestUpdate(in);
+    return digestFinal(digest);
+  }
+
   public int digestSingle(Mechanism mechanism, byte[] in, int inOfs,
       int inLen, byte[] digest, int digestOfs, int digestLen)
       throws TokenException {
@@ -1037,6 +1288,38 @@ public class Session {
     }
   }
 
+  /**
+   * Feeds the remaining content of the given buffer into the current
+   * digest operation like {@link #digestUpdate(byte[], int, int)}. Heap buffers
+   * are passed to the token without copying; the content of direct buffers
+   * is staged in a reused array. On success, the position of the buffer is
+   * set to its limit.
+   *
+   * @param in
+   *          The piece of data to digest.
+   * @exception TokenException
+   *              If digesting the data failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void digestUpdate(ByteBuffer in) throws TokenException {
+    Util.requireNonNull("in", in);
+    int inLen = in.remaining();
+    if (in.hasArray()) {
+      digestUpdate(in.array(), in.arrayOffset() + in.position(), inLen);
+      in.position(in.limit());
+      return;
+    }
+
+    byte[] staged = StagingBuffers.stage(in);
+    try {
+      digestUpdate(staged, 0, inLen);
+      in.position(in.limit());
+    } finally {
+      StagingBuffers.wipe(staged, inLen);
+    }
+  }
+
   /**
    * This method is similar to digestUpdate and can be combined with it during
    * one digesting operation. This method digests the value of the given
@@ -1082,6 +1365,25 @@ public class Session {
     }
   }
 
+  /**
+   * Finalizes the digesting operation like
+   * {@link #digestFinal(byte[], int, int)} and puts the result into
+   * <code>out</code>. On success, the position of <code>out</code> is
+   * advanced by the number of bytes written.
+   *
+   * @param out
+   *          The buffer to receive the final result.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If calculating the final result failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int digestFinal(ByteBuffer out) throws TokenException {
+    Util.requireNonNull("out", out);
+    return processBuffers(DIGEST_FINAL, null, out);
+  }
+
   /**
    * Initializes a new signing operation. Use it for signatures and MACs. The
    * application must call this method before calling any other sign*
@@ -1136,6 +1438,84 @@ public class Session {
     }
   }
 
+  /**
+   * Signs the given data with the key and mechanism given to the signInit
+   * method and writes the signature into the given array. This method
+   * finalizes the current signing operation. If <code>in</code> is passed as
+   * a whole (<code>inOfs</code> is 0 and <code>inLen</code> is its length),
+   * the wrapper itself allocates nothing but the signature value the native
+   * layer returns.
+   *
+   * @param in
+   *          The data to sign.
+   * @param inOfs
+   *          The offset of the data.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to receive the signature.
+   * @param outOfs
+   *          The offset at which the signature is written.
+   * @param outLen
+   *          The space available for the signature.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If signing the data failed. If the signature does not fit
+   *              into <code>outLen</code> bytes, a PKCS11Exception with
+   *              CKR_BUFFER_TOO_SMALL is thrown; the signing operation has
+   *              been finalized anyway.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int sign(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    // the native layer signs whole arrays only
+    byte[] data = (inOfs == 0 && inLen == in.length) ? in
+        : Arrays.copyOfRange(in, inOfs, inOfs + inLen);
+    return copyResult(sign(data), out, outOfs, outLen);
+  }
+
+  /**
+   * Signs the remaining content of <code>data</code> with the key and
+   * mechanism given to the signInit method and puts the signature into
+   * <code>signature</code>. On success, the position of <code>data</code> is
+   * set to its limit and the position of <code>signature</code> is advanced
+   * by the signature length.
+   *
+   * @param data
+   *          The data to sign.
+   * @param signature
+   *          The buffer to receive the signature.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If signing the data failed. If the signature does not fit
+   *              into <code>signature</code>, a PKCS11Exception with
+   *              CKR_BUFFER_TOO_SMALL is thrown; the signing operation has
+   *              been finalized anyway.
+   * @preconditions (data <> null) and (signature <> null)
+   * @postconditions
+   */
+  public int sign(ByteBuffer data, ByteBuffer signature)
+      throws TokenException {
+    Util.requireNonNull("data", data);
+    Util.requireNonNull("signature", signature);
+    if (signature.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+
+    // the native layer signs whole arrays only
+    byte[] value = sign(toExactArray(data));
+    if (value.length > signature.remaining()) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+    }
+    signature.put(value);
+    data.position(data.limit());
+    return value.length;
+  }
+
   /**
    * This method can be used to sign multiple pieces of data; e.g. buffer-size
    * pieces when reading the data from a stream. Signs the given data with the
@@ -1161,6 +1541,38 @@ public class Session {
     }
   }
 
+  /**
+   * Feeds the remaining content of the given buffer into the current
+   * sign operation like {@link #signUpdate(byte[], int, int)}. Heap buffers
+   * are passed to the token without copying; the content of direct buffers
+   * is staged in a reused array. On success, the position of the buffer is
+   * set to its limit.
+   *
+   * @param in
+   *          The piece of data to sign.
+   * @exception TokenException
+   *              If signing the data failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void signUpdate(ByteBuffer in) throws TokenException {
+    Util.requireNonNull("in", in);
+    int inLen = in.remaining();
+    if (in.hasArray()) {
+      signUpdate(in.array(), in.arrayOffset() + in.position(), inLen);
+      in.position(in.limit());
+      return;
+    }
+
+    byte[] staged = StagingBuffers.stage(in);
+    try {
+      signUpdate(staged, 0, inLen);
+      in.position(in.limit());
+    } finally {
+      StagingBuffers.wipe(staged, inLen);
+    }
+  }
+
   /**
    * This method finalizes a signing operation and returns the final result.
    * Use this method, if you fed in the data using signUpdate. If you used the
@@ -1182,6 +1594,60 @@ public class Session {
     }
   }
 
+  /**
+   * Finalizes the signing operation like {@link #signFinal(int)} and writes
+   * the signature into the given array. <code>outLen</code> is passed as
+   * expected length.
+   *
+   * @param out
+   *          The array to receive the signature.
+   * @param outOfs
+   *          The offset at which the signature is written.
+   * @param outLen
+   *          The space available for the signature.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If calculating the final signature value failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int signFinal(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+    return copyResult(signFinal(outLen), out, outOfs, outLen);
+  }
+
+  /**
+   * Finalizes the signing operation like {@link #signFinal(int)} and puts
+   * the signature into <code>signature</code>. The remaining space of the
+   * buffer is passed as expected length. On success, the position of the
+   * buffer is advanced by the signature length.
+   *
+   * @param signature
+   *          The buffer to receive the signature.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If calculating the final signature value failed. If the
+   *              signature does not fit into <code>signature</code>, a
+   *              PKCS11Exception with CKR_BUFFER_TOO_SMALL is thrown; the
+   *              signing operation has been finalized anyway.
+   * @preconditions (signature <> null)
+   * @postconditions
+   */
+  public int signFinal(ByteBuffer signature) throws TokenException {
+    Util.requireNonNull("signature", signature);
+    if (signature.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+
+    byte[] value = signFinal(signature.remaining());
+    if (value.length > signature.remaining()) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+    }
+    signature.put(value);
+    return value.length;
+  }
+
   /**
    * Initializes a new signing operation for signing with recovery. The
    * application must call this method before calling signRecover. Before
@@ -1298,6 +1764,33 @@ public class Session {
     }
   }
 
+  /**
+   * Verifies the remaining content of <code>signature</code> against the
+   * remaining content of <code>data</code> like
+   * {@link #verify(byte[], byte[])}. If the signature is valid, the positions
+   * of both buffers are set to their limits.
+   *
+   * @param data
+   *          The data that was signed.
+   * @param signature
+   *          The signature or MAC to verify.
+   * @exception TokenException
+   *              If verifying the signature fails. This is also the case, if
+   *              the signature is forged.
+   * @preconditions (data <> null) and (signature <> null)
+   * @postconditions
+   */
+  public void verify(ByteBuffer data, ByteBuffer signature)
+      throws TokenException {
+    Util.requireNonNull("data", data);
+    Util.requireNonNull("signature", signature);
+
+    // the native layer verifies whole arrays only
+    verify(toExactArray(data), toExactArray(signature));
+    data.position(data.limit());
+    signature.position(signature.limit());
+  }
+
   /**
    * This method can be used to verify a signature with multiple pieces of
    * data; e.g. buffer-size pieces when reading the data from a stream. To
@@ -1322,6 +1815,38 @@ public class Session {
     }
   }
 
+  /**
+   * Feeds the remaining content of the given buffer into the current
+   * verify operation like {@link #verifyUpdate(byte[], int, int)}. Heap buffers
+   * are passed to the token without copying; the content of direct buffers
+   * is staged in a reused array. On success, the position of the buffer is
+   * set to its limit.
+   *
+   * @param in
+   *          The piece of data to verify.
+   * @exception TokenException
+   *              If verifying the data failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void verifyUpdate(ByteBuffer in) throws TokenException {
+    Util.requireNonNull("in", in);
+    int inLen = in.remaining();
+    if (in.hasArray()) {
+      verifyUpdate(in.array(), in.arrayOffset() + in.position(), inLen);
+      in.position(in.limit());
+      return;
+    }
+
+    byte[] staged = StagingBuffers.stage(in);
+    try {
+      verifyUpdate(staged, 0, inLen);
+      in.position(in.limit());
+    } finally {
+      StagingBuffers.wipe(staged, inLen);
+    }
+  }
+
   /**
    * This method finalizes a verification operation. Use this method, if you
    * fed in the data using verifyUpdate. If you used the verify(byte[])
@@ -1349,6 +1874,25 @@ public class Session {
     }
   }
 
+  /**
+   * Finalizes the verification operation like {@link #verifyFinal(byte[])}
+   * with the remaining content of the given buffer as signature. If the
+   * signature is valid, the position of the buffer is set to its limit.
+   *
+   * @param signature
+   *          The signature value.
+   * @exception TokenException
+   *              If verifying the signature fails. This is also the case, if
+   *              the signature is forged.
+   * @preconditions (signature <> null)
+   * @postconditions
+   */
+  public void verifyFinal(ByteBuffer signature) throws TokenException {
+    Util.requireNonNull("signature", signature);
+    verifyFinal(toExactArray(signature));
+    signature.position(signature.limit());
+  }
+
   /**
    * Initializes a new verification operation for verification with data
    * recovery. The application must call this method before calling
@@ -1600,6 +2144,38 @@ public class Session {
     }
   }
 
+  /**
+   * Wraps (encrypts) the given key with the wrapping key like
+   * {@link #wrapKey(Mechanism, Key, Key)} and writes the wrapped key into the
+   * given array.
+   *
+   * @param mechanism
+   *          The mechanism to use for wrapping the key.
+   * @param wrappingKey
+   *          The key to use for wrapping (encrypting).
+   * @param key
+   *          The key to wrap (encrypt).
+   * @param out
+   *          The array to receive the wrapped key.
+   * @param outOfs
+   *          The offset at which the wrapped key is written.
+   * @param outLen
+   *          The space available for the wrapped key.
+   * @return The length of the wrapped key.
+   * @exception TokenException
+   *              If wrapping the key failed or the wrapped key does not fit
+   *              into <code>outLen</code> bytes.
+   * @preconditions (mechanism <> null) and (wrappingKey <> null)
+   *                and (key <> null) and (out <> null)
+   * @postconditions
+   */
+  public int wrapKey(Mechanism mechanism, Key wrappingKey, Key key,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("out", out);
+    return copyResult(wrapKey(mechanism, wrappingKey, key),
+        out, outOfs, outLen);
+  }
+
   /**
    * Unwraps (decrypts) the given encrypted key with the unwrapping key using
    * the given mechanism. The application can also pass a template key to set
@@ -1664,12 +2240,16 @@ public class Session {
       throws TokenException {
     CK_MECHANISM ckMechanism = toCkMechanism(mechanism);
     Params params = mechanism.getParams();
+    if (params instanceof ImmutableParams) {
+      params = ((ImmutableParams) params).getParams();
+    }
     CK_ATTRIBUTE[] ckAttributes = PKCS11Object.getSetAttributes(template);
 
     long objectHandle;
     try {
+      // the results are copied back from this very CK_MECHANISM below
       objectHandle = pkcs11Module.C_DeriveKey(sessionHandle,
-          toCkMechanism(mechanism), baseKey.getObjectHandle(), ckAttributes);
+          ckMechanism, baseKey.getObjectHandle(), ckAttributes);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -1761,6 +2341,50 @@ public class Session {
     return randomBytesBuffer;
   }
 
+  /**
+   * Fills the given range of the array with random bytes from the token.
+   * If the whole array is to be filled, it is passed to the token directly
+   * and nothing is allocated; otherwise a temporary array is filled and
+   * copied.
+   *
+   * @param out
+   *          The array to fill.
+   * @param outOfs
+   *          The offset of the range.
+   * @param outLen
+   *          The number of random bytes to generate.
+   * @return The number of random bytes generated, i.e.
+   *         <code>outLen</code>.
+   * @exception TokenException
+   *              If generating random bytes failed.
+   * @preconditions (out <> null) and (outLen >= 0)
+   * @postconditions
+   */
+  public int generateRandom(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+    if (outOfs < 0 || outLen < 0 || outOfs + outLen > out.length) {
+      throw new IndexOutOfBoundsException("outOfs=" + outOfs + ", outLen="
+          + outLen + ", out.length=" + out.length);
+    }
+
+    try {
+      if (outOfs == 0 && outLen == out.length) {
+        pkcs11Module.C_GenerateRandom(sessionHandle, out);
+        return outLen;
+      }
+
+      // C_GenerateRandom always fills the whole array
+      byte[] random = new byte[outLen];
+      pkcs11Module.C_GenerateRandom(sessionHandle, random);
+      System.arraycopy(random, 0, out, outOfs, outLen);
+      Arrays.fill(random, (byte) 0);
+      return outLen;
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+  }
+
   /**
    * Legacy function that will normally throw an PKCS11Exception with the
    * error-code PKCS11Constants.CKR_FUNCTION_NOT_PARALLEL.
@@ -1803,12 +2427,154 @@ public class Session {
         "\nToken: ", token);
   }
 
+  private int processBuffers(int operation, ByteBuffer in, ByteBuffer out)
+      throws TokenException {
+    if (out.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+
+    byte[] inArray = null;
+    int inOfs = 0;
+    int inLen = 0;
+    boolean stagedIn = false;
+    if (in != null) {
+      inLen = in.remaining();
+      if (in.hasArray()) {
+        inArray = in.array();
+        inOfs = in.arrayOffset() + in.position();
+      } else {
+        inArray = StagingBuffers.stage(in);
+        stagedIn = true;
+      }
+    }
+
+    byte[] outArray;
+    int outOfs;
+    int outLen = out.remaining();
+    boolean stagedOut = !out.hasArray();
+    if (stagedOut) {
+      outLen = Math.min(outLen, inLen + EXPECTED_OVERHEAD);
+      outArray = StagingBuffers.get(StagingBuffers.OUTPUT, outLen);
+      outOfs = 0;
+    } else {
+      outArray = out.array();
+      outOfs = out.arrayOffset() + out.position();
+    }
+
+    int len = -1;
+    try {
+      try {
+        len = processArrays(operation, inArray, inOfs, inLen,
+            outArray, outOfs, outLen);
+      } catch (PKCS11Exception ex) {
+        if (!stagedOut || outLen == out.remaining() || ex.getErrorCode()
+            != PKCS11Constants.CKR_BUFFER_TOO_SMALL) {
+          throw ex;
+        }
+        // e.g. RSA, or a final call returning buffered data. The operation
+        // is still active, retry with all the space of the buffer.
+        outLen = out.remaining();
+        outArray = StagingBuffers.get(StagingBuffers.OUTPUT, outLen);
+        len = processArrays(operation, inArray, inOfs, inLen,
+            outArray, outOfs, outLen);
+      }
+
+      if (stagedOut) {
+        out.put(outArray, 0, len);
+      } else {
+        out.position(out.position() + len);
+      }
+      if (in != null) {
+        in.position(in.limit());
+      }
+      return len;
+    } finally {
+      if (stagedIn) {
+        StagingBuffers.wipe(inArray, inLen);
+      }
+      if (stagedOut) {
+        StagingBuffers.wipe(outArray, (len < 0) ? outLen : len);
+      }
+    }
+  }
+
+  private int processArrays(int operation, byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    switch (operation) {
+      case ENCRYPT:
+        return encrypt(in, inOfs, inLen, out, outOfs, outLen);
+      case ENCRYPT_UPDATE:
+        return encryptUpdate(in, inOfs, inLen, out, outOfs, outLen);
+      case ENCRYPT_FINAL:
+        return encryptFinal(out, outOfs, outLen);
+      case DECRYPT:
+        return decrypt(in, inOfs, inLen, out, outOfs, outLen);
+      case DECRYPT_UPDATE:
+        return decryptUpdate(in, inOfs, inLen, out, outOfs, outLen);
+      case DECRYPT_FINAL:
+        return decryptFinal(out, outOfs, outLen);
+      default:
+        return digestFinal(out, outOfs, outLen);
+    }
+  }
+
+  private static int copyResult(byte[] result, byte[] out, int outOfs,
+      int outLen) throws TokenException {
+    if (result.length > outLen) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+    }
+    System.arraycopy(result, 0, out, outOfs, result.length);
+    return result.length;
+  }
+
+  private static byte[] toExactArray(ByteBuffer buffer) {
+    int len = buffer.remaining();
+    if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0
+        && len == buffer.array().length) {
+      return buffer.array();
+    }
+
+    byte[] array = new byte[len];
+    buffer.duplicate().get(array);
+    return array;
+  }
+
   private static CK_MECHANISM toCkMechanism(Mechanism mechanism) {
-    CK_MECHANISM ckMechanism = new CK_MECHANISM();
-    ckMechanism.mechanism = mechanism.getMechanismCode();
+    if (mechanism.isImmutable()) {
+      CK_MECHANISM ckMechanism = (CK_MECHANISM) mechanism.getNativeMechanism();
+      if (ckMechanism == null) {
+        Params params = mechanism.getParams();
+        ckMechanism = newCkMechanism(mechanism.getMechanismCode(),
+            (params == null) ? null : params.getPKCS11ParamsObject());
+        mechanism.setNativeMechanism(ckMechanism);
+      }
+      return ckMechanism;
+    }
+
     Params params = mechanism.getParams();
-    ckMechanism.pParameter = (params != null)
-        ? params.getPKCS11ParamsObject() : null;
+    if (params != null) {
+      return newCkMechanism(mechanism.getMechanismCode(),
+          params.getPKCS11ParamsObject());
+    }
+
+    // reuse the structure, e.g. for repeated signInit in batches
+    Long code = mechanism.getMechanismCode();
+    CK_MECHANISM ckMechanism = parameterlessCkMechanisms.get(code);
+    if (ckMechanism == null) {
+      ckMechanism = newCkMechanism(code, null);
+      CK_MECHANISM existing =
+          parameterlessCkMechanisms.putIfAbsent(code, ckMechanism);
+      if (existing != null) {
+        ckMechanism = existing;
+      }
+    }
+    return ckMechanism;
+  }
+
+  private static CK_MECHANISM newCkMechanism(long code, Object parameter) {
+    CK_MECHANISM ckMechanism = new CK_MECHANISM();
+    ckMechanism.mechanism = code;
+    ckMechanism.pParameter = parameter;
     return ckMechanism;
   }
 
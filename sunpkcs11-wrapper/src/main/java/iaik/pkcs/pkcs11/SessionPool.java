@@ -0,0 +1,349 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of sessions of one token. Sessions are opened on demand up to the
+ * configured maximum and are reused afterwards. A thread borrows a session,
+ * uses it exclusively and returns it to the pool. If no session is available
+ * and the maximum is reached, the borrowing thread waits.
+ * <p/>
+ * Notice that all sessions of an application share the login state of the
+ * token; i.e. it is sufficient to log in once with any session.
+ * A session must be returned without an active operation; if an operation
+ * failed in an undefined state, the session should be invalidated instead.
+ *
+ * <pre>
+ * <code>
+ *   SessionPool pool = new SessionPool(token, false, 8);
+ *   Session session = pool.borrowSession();
+ *   try {
+ *     ...
+ *   } finally {
+ *     pool.returnSession(session);
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (token <> null) and (maxSessions > 0)
+ */
+public class SessionPool {
+
+  /**
+   * The token the sessions are opened on.
+   */
+  private final Token token;
+
+  /**
+   * True, if read-write sessions are opened.
+   */
+  private final boolean rwSession;
+
+  /**
+   * The maximal number of sessions this pool opens.
+   */
+  private final int maxSessions;
+
+  /**
+   * The sessions which are open, but not borrowed.
+   */
+  private final BlockingQueue<Session> idleSessions;
+
+  /**
+   * One permit per session which may be borrowed.
+   */
+  private final Semaphore permits;
+
+  /**
+   * The sessions which are borrowed, compared by identity.
+   */
+  private final Set<Session> borrowedSessions = Collections.synchronizedSet(
+      Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>()));
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a new pool. No session is opened yet.
+   *
+   * @param token
+   *          The token to open the sessions on.
+   * @param rwSession
+   *          Token.SessionReadWriteBehavior.RW_SESSION for read-write
+   *          sessions, Token.SessionReadWriteBehavior.RO_SESSION for
+   *          read-only sessions.
+   * @param maxSessions
+   *          The maximal number of sessions to open. Should not exceed the
+   *          session limits of the token (see TokenInfo).
+   * @preconditions (token <> null) and (maxSessions > 0)
+   * @postconditions
+   */
+  public SessionPool(Token token, boolean rwSession, int maxSessions) {
+    this.token = Util.requireNonNull("token", token);
+    if (maxSessions < 1) {
+      throw new IllegalArgumentException(
+          "maxSessions must be positive: " + maxSessions);
+    }
+    this.rwSession = rwSession;
+    this.maxSessions = maxSessions;
+    this.idleSessions = new LinkedBlockingQueue<>();
+    this.permits = new Semaphore(maxSessions, true);
+  }
+
+  /**
+   * Get the token the sessions of this pool are opened on.
+   *
+   * @return The token.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Token getToken() {
+    return token;
+  }
+
+  /**
+   * Check, if this pool opens read-write sessions.
+   *
+   * @return True, if read-write sessions are opened. False, otherwise.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isRwSession() {
+    return rwSession;
+  }
+
+  /**
+   * Get the maximal number of sessions this pool opens.
+   *
+   * @return The maximal number of sessions.
+   * @preconditions
+   * @postconditions (result > 0)
+   */
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  /**
+   * Borrows a session from this pool. If no session is idle, a new one is
+   * opened. If the maximal number of sessions is already borrowed, this
+   * method waits until a session is returned.
+   *
+   * @return The borrowed session.
+   * @exception TokenException
+   *              If opening a new session failed, the pool is closed, or
+   *              the thread has been interrupted while waiting.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Session borrowSession() throws TokenException {
+    assertNotClosed();
+    try {
+      permits.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("interrupted while waiting for a session",
+          ex);
+    }
+    return takeSession();
+  }
+
+  /**
+   * Borrows a session from this pool, waiting at most the given time.
+   *
+   * @param timeout
+   *          The maximal time to wait.
+   * @param unit
+   *          The unit of the timeout.
+   * @return The borrowed session, or null if no session became available
+   *         within the given time.
+   * @exception TokenException
+   *              If opening a new session failed, the pool is closed, or
+   *              the thread has been interrupted while waiting.
+   * @preconditions (unit <> null)
+   * @postconditions
+   */
+  public Session borrowSession(long timeout, TimeUnit unit)
+      throws TokenException {
+    assertNotClosed();
+    try {
+      if (!permits.tryAcquire(timeout, unit)) {
+        return null;
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("interrupted while waiting for a session",
+          ex);
+    }
+    return takeSession();
+  }
+
+  private Session takeSession() throws TokenException {
+    Session session = idleSessions.poll();
+    if (session == null) {
+      try {
+        session = token.openSession(Token.SessionType.SERIAL_SESSION,
+            rwSession, null, null);
+      } catch (TokenException | RuntimeException ex) {
+        permits.release();
+        throw ex;
+      }
+    }
+    borrowedSessions.add(session);
+    return session;
+  }
+
+  /**
+   * Ends the borrowing of the given session.
+   *
+   * @exception IllegalArgumentException
+   *              If the session is not borrowed from this pool, e.g. because
+   *              it has already been returned.
+   */
+  private void endBorrowing(Session session) {
+    if (!borrowedSessions.remove(session)) {
+      throw new IllegalArgumentException(
+          "session is not borrowed from this pool: " + session);
+    }
+  }
+
+  /**
+   * Returns a session previously borrowed from this pool. If the pool has
+   * been closed in the meantime, the session is closed.
+   *
+   * @param session
+   *          The session to return. May be null, then this method does
+   *          nothing.
+   * @exception IllegalArgumentException
+   *              If the session is not borrowed from this pool, e.g. because
+   *              it has already been returned.
+   * @preconditions
+   * @postconditions
+   */
+  public void returnSession(Session session) {
+    if (session == null) {
+      return;
+    }
+    endBorrowing(session);
+
+    if (closed) {
+      closeQuietly(session);
+    } else {
+      idleSessions.add(session);
+      if (closed) {
+        // close() may have drained the idle sessions in the meantime
+        closeIdleSessions();
+      }
+    }
+    permits.release();
+  }
+
+  /**
+   * Closes a session previously borrowed from this pool instead of
+   * returning it, e.g. because an operation left it in an undefined state.
+   * A new session is opened on demand later.
+   *
+   * @param session
+   *          The session to invalidate. May be null, then this method does
+   *          nothing.
+   * @exception IllegalArgumentException
+   *              If the session is not borrowed from this pool, e.g. because
+   *              it has already been returned.
+   * @preconditions
+   * @postconditions
+   */
+  public void invalidateSession(Session session) {
+    if (session == null) {
+      return;
+    }
+    endBorrowing(session);
+
+    closeQuietly(session);
+    permits.release();
+  }
+
+  /**
+   * Closes all idle sessions of this pool. Sessions borrowed at this time
+   * are closed when they are returned. The pool cannot be used afterwards.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void close() {
+    closed = true;
+    closeIdleSessions();
+  }
+
+  private void closeIdleSessions() {
+    Session session;
+    while ((session = idleSessions.poll()) != null) {
+      closeQuietly(session);
+    }
+  }
+
+  private void assertNotClosed() throws TokenException {
+    if (closed) {
+      throw new TokenException("session pool is closed");
+    }
+  }
+
+  private static void closeQuietly(Session session) {
+    try {
+      session.closeSession();
+    } catch (TokenException ex) { /* nothing else to be done */
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("SessionPool (max: ", maxSessions, ", idle: ",
+        idleSessions.size(), ", read-write: ", rwSession, ")");
+  }
+
+}
@@ -0,0 +1,130 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-thread staging arrays for passing the content of direct ByteBuffers
+ * to the native layer, which only accepts byte arrays. Each thread owns one
+ * input and one output array, which grow on demand; arrays larger than
+ * {@link #MAX_CACHED_SIZE} are not kept. Callers wipe the used range after
+ * each operation, so no plaintext or key material lingers in the cache.
+ */
+final class StagingBuffers {
+
+  static final int INPUT = 0;
+
+  static final int OUTPUT = 1;
+
+  private static final int MAX_CACHED_SIZE = 1 << 20;
+
+  private static final int MIN_SIZE = 1024;
+
+  private static final ThreadLocal<byte[][]> BUFFERS =
+      new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+          return new byte[2][];
+        }
+      };
+
+  private StagingBuffers() {
+  }
+
+  /**
+   * Gets a staging array of at least the given size.
+   *
+   * @param slot
+   *          {@link #INPUT} or {@link #OUTPUT}.
+   * @param minSize
+   *          The minimal size of the array.
+   * @return The staging array.
+   */
+  static byte[] get(int slot, int minSize) {
+    if (minSize > MAX_CACHED_SIZE) {
+      return new byte[minSize];
+    }
+
+    byte[][] buffers = BUFFERS.get();
+    byte[] buffer = buffers[slot];
+    if (buffer == null || buffer.length < minSize) {
+      int size = (buffer == null) ? MIN_SIZE : buffer.length;
+      while (size < minSize) {
+        size <<= 1;
+      }
+      buffer = new byte[Math.min(size, MAX_CACHED_SIZE)];
+      buffers[slot] = buffer;
+    }
+    return buffer;
+  }
+
+  /**
+   * Gets a staging array holding the remaining content of the given buffer.
+   * The position of the buffer is not changed.
+   *
+   * @param buffer
+   *          The buffer to stage.
+   * @return The staging array. The content starts at index 0.
+   */
+  static byte[] stage(ByteBuffer buffer) {
+    int len = buffer.remaining();
+    byte[] array = get(INPUT, len);
+    buffer.duplicate().get(array, 0, len);
+    return array;
+  }
+
+  /**
+   * Wipes the first <code>len</code> bytes of the given staging array.
+   *
+   * @param array
+   *          The staging array.
+   * @param len
+   *          The number of used bytes.
+   */
+  static void wipe(byte[] array, int len) {
+    Arrays.fill(array, 0, Math.min(len, array.length), (byte) 0);
+  }
+
+}
@@ -42,6 +42,7 @@
 
 package iaik.pkcs.pkcs11;
 
+import java.time.Instant;
 import java.util.Date;
 
 import iaik.pkcs.pkcs11.constants.PKCS11Constants;
@@ -166,7 +167,7 @@ public class TokenInfo {
    * The current time on the token. This value only makes sense, if the token
    * contains a clock.
    */
-  private Date time;
+  private Instant time;
 
   /**
    * The token flags.
@@ -201,7 +202,7 @@ public class TokenInfo {
     freePrivateMemory = ckTokenInfo.ulFreePrivateMemory;
     hardwareVersion = new Version(ckTokenInfo.hardwareVersion);
     firmwareVersion = new Version(ckTokenInfo.firmwareVersion);
-    time = Util.parseTime(ckTokenInfo.utcTime);
+    time = Util.parseTimeInstant(ckTokenInfo.utcTime);
     flags = ckTokenInfo.flags;
   }
 
@@ -394,6 +395,22 @@ public class TokenInfo {
    * @postconditions (result <> null)
    */
   public Date getTime() {
+    return (time == null) ? null : Date.from(time);
+  }
+
+  /**
+   * Get the current time of the token's clock as Instant. This value does
+   * only make sense if the token has a clock. Remind that, this is the time
+   * this object was created and not the time the application called this
+   * method.
+   *
+   * @return The current time on the token's clock, or null if the token
+   *         does not provide a valid time.
+   * @see #isClockOnToken()
+   * @preconditions
+   * @postconditions
+   */
+  public Instant getTimeInstant() {
     return time;
   }
 
@@ -733,7 +750,7 @@ public class TokenInfo {
         && (this.freePrivateMemory == other.freePrivateMemory)
         && this.hardwareVersion.equals(other.hardwareVersion)
         && this.firmwareVersion.equals(other.firmwareVersion)
-        && this.time.equals(other.time)
+        && Util.objEquals(this.time, other.time)
         && (this.flags == other.flags);
   }
 
@@ -43,12 +43,13 @@
 package iaik.pkcs.pkcs11;
 
 import java.math.BigInteger;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.TimeZone;
 import java.util.Vector;
 
 import iaik.pkcs.pkcs11.constants.Functions;
@@ -83,53 +84,102 @@ public class Util {
    *          A time encoded as character array as specified in PKCS#11.
    * @return A Date object set to the time indicated in the given char-array.
    *         null, if the given char array is null or the format is wrong.
+   * @see #parseTimeInstant(char[])
    * @preconditions
    * @postconditions
    */
   public static Date parseTime(char[] timeChars) {
-    Date time = null;
-
-    if ((timeChars != null) && timeChars.length > 2) {
-      String timeString = new String(timeChars, 0, timeChars.length - 2);
-      try {
-        SimpleDateFormat utc = new SimpleDateFormat("yyyyMMddhhmmss");
-        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
-        time = utc.parse(timeString);
-      } catch (ParseException ex) { /* nothing else to be done */
-      }
+    Instant time = parseTimeInstant(timeChars);
+    return (time == null) ? null : Date.from(time);
+  }
+
+  /**
+   * Parse a time character array as defined in PKCS#11, i.e.
+   * YYYYMMDDhhmmss followed by two reserved characters, and return it as an
+   * Instant. The hour is given in 24-hour format, the time zone is UTC.
+   * The characters are parsed directly, no intermediate String or formatter
+   * is created.
+   *
+   * @param timeChars
+   *          A time encoded as character array as specified in PKCS#11.
+   * @return An Instant set to the time indicated in the given char-array.
+   *         null, if the given char array is null or the format is wrong.
+   * @preconditions
+   * @postconditions
+   */
+  public static Instant parseTimeInstant(char[] timeChars) {
+    if (timeChars == null || timeChars.length < 14) {
+      return null;
+    }
+
+    int year = parseDigits(timeChars, 0, 4);
+    int month = parseDigits(timeChars, 4, 2);
+    int day = parseDigits(timeChars, 6, 2);
+    int hour = parseDigits(timeChars, 8, 2);
+    int minute = parseDigits(timeChars, 10, 2);
+    int second = parseDigits(timeChars, 12, 2);
+    if ((year | month | day | hour | minute | second) < 0) {
+      return null;
     }
 
-    return time;
+    try {
+      return LocalDateTime.of(year, month, day, hour, minute, second)
+          .toInstant(ZoneOffset.UTC);
+    } catch (DateTimeException ex) {
+      return null;
+    }
   }
 
   /**
-   * Convert the given CK_DATE object to a Date object.
+   * Convert the given CK_DATE object to a Date object. The returned Date
+   * denotes the start of the given day in the default time zone.
    *
    * @param ckDate
    *          The object providing the date information.
-   * @return The new Date object or null, if the given ckDate is null.
+   * @return The new Date object or null, if the given ckDate is null or
+   *         does not hold a valid date.
    * @preconditions
    * @postconditions
    */
   public static Date convertToDate(CK_DATE ckDate) {
-    Date date = null;
-
-    if (ckDate != null) {
-      int year = Integer.parseInt(new String(ckDate.year));
-      int month = Integer.parseInt(new String(ckDate.month));
-      int day = Integer.parseInt(new String(ckDate.day));
-      // poor performance, consider alternatives
-      Calendar calendar = new GregorianCalendar();
-      // calendar starts months with 0
-      calendar.set(year, Calendar.JANUARY + (month - 1), day);
-      date = calendar.getTime();
+    LocalDate date = convertToLocalDate(ckDate);
+    return (date == null) ? null
+        : Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+  }
+
+  /**
+   * Convert the given CK_DATE object to a LocalDate object. The fixed-width
+   * char arrays are parsed directly, no intermediate String is created.
+   *
+   * @param ckDate
+   *          The object providing the date information.
+   * @return The new LocalDate object or null, if the given ckDate is null or
+   *         does not hold a valid date, e.g. if it is filled with blanks.
+   * @preconditions
+   * @postconditions
+   */
+  public static LocalDate convertToLocalDate(CK_DATE ckDate) {
+    if (ckDate == null) {
+      return null;
     }
 
-    return date;
+    int year = parseDigits(ckDate.year, 0, 4);
+    int month = parseDigits(ckDate.month, 0, 2);
+    int day = parseDigits(ckDate.day, 0, 2);
+    if ((year | month | day) < 0) {
+      return null;
+    }
+
+    try {
+      return LocalDate.of(year, month, day);
+    } catch (DateTimeException ex) {
+      return null;
+    }
   }
 
   /**
-   * Convert the given Date object to a CK_DATE object.
+   * Convert the given Date object to a CK_DATE object. The day is
+   * determined in the default time zone.
    *
    * @param date
    *          The object providing the date information.
@@ -138,23 +188,63 @@ public class Util {
    * @postconditions
    */
   public static CK_DATE convertToCkDate(Date date) {
-    CK_DATE ckDate = null;
-
-    if (date != null) {
-      //poor memory/performance behavior, consider alternatives
-      Calendar calendar = new GregorianCalendar();
-      calendar.setTime(date);
-      int year = calendar.get(Calendar.YEAR);
-      // month counting starts with zero
-      int month = calendar.get(Calendar.MONTH) + 1;
-      int day = calendar.get(Calendar.DAY_OF_MONTH);
-      ckDate = new CK_DATE(
-          toCharArray(year, 4),
-          toCharArray(month, 2),
-          toCharArray(day, 2));
+    return (date == null) ? null : convertToCkDate(
+        date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate());
+  }
+
+  /**
+   * Convert the given LocalDate object to a CK_DATE object.
+   *
+   * @param date
+   *          The object providing the date information.
+   * @return The new CK_DATE object or null, if the given date is null.
+   * @preconditions
+   * @postconditions
+   */
+  public static CK_DATE convertToCkDate(LocalDate date) {
+    if (date == null) {
+      return null;
     }
 
-    return ckDate;
+    return new CK_DATE(
+        toDigits(date.getYear(), 4),
+        toDigits(date.getMonthValue(), 2),
+        toDigits(date.getDayOfMonth(), 2));
+  }
+
+  /**
+   * Parses len decimal digits starting at offset off.
+   *
+   * @return The parsed number, or -1 if the array is too short or contains
+   *         a non-digit character in the given range.
+   */
+  private static int parseDigits(char[] chars, int off, int len) {
+    if (chars == null || chars.length < off + len) {
+      return -1;
+    }
+
+    int value = 0;
+    for (int i = off; i < off + len; i++) {
+      int digit = chars[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Writes the len least significant decimal digits of the non-negative
+   * value into a new char array, padded with leading '0' chars.
+   */
+  private static char[] toDigits(int value, int len) {
+    char[] chars = new char[len];
+    for (int i = len - 1; i >= 0; i--) {
+      chars[i] = (char) ('0' + (value % 10));
+      value /= 10;
+    }
+    return chars;
   }
 
   /**
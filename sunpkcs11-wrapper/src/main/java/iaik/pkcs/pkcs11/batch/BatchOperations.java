@@ -0,0 +1,669 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.OutputLengthCache;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Performs the same one-shot operation (sign, verify, encrypt or decrypt)
+ * with the same key and mechanism on many inputs. The inputs are either
+ * processed on a single session in the calling thread, or split into
+ * contiguous chunks which are processed in parallel, each on its own
+ * session of a {@link SessionPool}.
+ * <p/>
+ * Each worker keeps its session for its whole chunk and reuses its output
+ * buffer for all items. A failing item is reported in the
+ * {@link BatchResult} and does not abort the other items. This includes
+ * null items, which are reported as failed.
+ * <p/>
+ * The overloads taking an output array write the outputs into fixed-size
+ * slots of this array instead of allocating an array per item. Signatures
+ * are still allocated by the native layer and copied into their slots.
+ *
+ * <pre>
+ * <code>
+ *   BatchOperations batch = new BatchOperations(sessionPool, 4);
+ *   BatchResult result = batch.signBatch(
+ *       Mechanism.get(PKCS11Constants.CKM_ECDSA_SHA256), privateKey, data);
+ *   for (int i = 0; i &lt; result.size(); i++) {
+ *     if (result.isSuccessful(i)) {
+ *       byte[] signature = result.getOutput(i);
+ *       ...
+ *     }
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants ((session <> null) or (sessionPool <> null))
+ */
+public class BatchOperations {
+
+  private enum Operation {
+    SIGN,
+    VERIFY,
+    ENCRYPT,
+    DECRYPT
+  }
+
+  private final Session session;
+
+  private final SessionPool sessionPool;
+
+  private final int parallelism;
+
+  private final ExecutorService executor;
+
+  /**
+   * An encryption or decryption adds at most this many bytes to its input;
+   * e.g. padding, IV and tag. RSA is bounded by the modulus length.
+   */
+  static final int MAX_EXPANSION = 65536;
+
+  /**
+   * Sizes the output buffers for encryption and decryption.
+   */
+  private final OutputLengthCache outputLengths = new OutputLengthCache(1024);
+
+  /**
+   * Creates a batch executor that processes all items on the given session
+   * in the calling thread.
+   *
+   * @param session
+   *          The session to use.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public BatchOperations(Session session) {
+    this.session = Util.requireNonNull("session", session);
+    this.sessionPool = null;
+    this.parallelism = 1;
+    this.executor = null;
+  }
+
+  /**
+   * Creates a batch executor that spreads each batch across up to
+   * <code>parallelism</code> sessions of the given pool. The calling thread
+   * processes one of the chunks itself. Call {@link #close()} to release the
+   * worker threads.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from.
+   * @param parallelism
+   *          The maximal number of chunks processed at the same time.
+   *          It is capped by the maximal number of sessions of the pool.
+   * @preconditions (sessionPool <> null) and (parallelism > 0)
+   * @postconditions
+   */
+  public BatchOperations(SessionPool sessionPool, int parallelism) {
+    this.session = null;
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "parallelism must be positive: " + parallelism);
+    }
+    this.parallelism = Math.min(parallelism, sessionPool.getMaxSessions());
+    this.executor = (this.parallelism > 1)
+        ? Executors.newFixedThreadPool(this.parallelism - 1,
+            new DaemonThreadFactory("pkcs11-batch"))
+        : null;
+  }
+
+  /**
+   * Signs every item of the given list with a one-shot sign operation.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @param data
+   *          The data to sign, one array per item.
+   * @return The result holding the signatures.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public BatchResult signBatch(Mechanism mechanism, Key key, List<byte[]> data)
+      throws TokenException {
+    return execute(Operation.SIGN, mechanism, key, data, null, null, 0);
+  }
+
+  /**
+   * Signs every item of the given list with a one-shot sign operation and
+   * writes the signature of item <code>i</code> into <code>output</code> at
+   * offset <code>i * slotSize</code>. An item whose signature does not fit
+   * into its slot fails with CKR_BUFFER_TOO_SMALL.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @param data
+   *          The data to sign, one array per item.
+   * @param output
+   *          The array to receive the signatures.
+   * @param slotSize
+   *          The number of bytes reserved for each signature.
+   * @return The result holding the lengths of the signatures.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   *                and (output <> null) and (slotSize > 0)
+   *                and (output.length >= data.size() * slotSize)
+   * @postconditions (result <> null)
+   */
+  public BatchResult signBatch(Mechanism mechanism, Key key, List<byte[]> data,
+      byte[] output, int slotSize) throws TokenException {
+    return execute(Operation.SIGN, mechanism, key, data, null,
+        Util.requireNonNull("output", output), slotSize);
+  }
+
+  /**
+   * Verifies every item of the given list with a one-shot verify
+   * operation. An invalid signature is reported as failed item, usually
+   * with the error code CKR_SIGNATURE_INVALID.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The verification key.
+   * @param data
+   *          The signed data, one array per item.
+   * @param signatures
+   *          The signatures, in the same order as the data.
+   * @return The result; an item is successful if its signature is valid.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   *                and (signatures <> null)
+   *                and (data.size() == signatures.size())
+   * @postconditions (result <> null)
+   */
+  public BatchResult verifyBatch(Mechanism mechanism, Key key,
+      List<byte[]> data, List<byte[]> signatures) throws TokenException {
+    Util.requireNonNull("signatures", signatures);
+    if (data != null && data.size() != signatures.size()) {
+      throw new IllegalArgumentException(
+          "data and signatures must have the same size");
+    }
+    return execute(Operation.VERIFY, mechanism, key, data, signatures, null,
+        0);
+  }
+
+  /**
+   * Encrypts every item of the given list with a one-shot encrypt
+   * operation.
+   *
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The encryption key.
+   * @param data
+   *          The plaintexts, one array per item.
+   * @return The result holding the ciphertexts.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public BatchResult encryptBatch(Mechanism mechanism, Key key,
+      List<byte[]> data) throws TokenException {
+    return execute(Operation.ENCRYPT, mechanism, key, data, null, null, 0);
+  }
+
+  /**
+   * Encrypts every item of the given list with a one-shot encrypt
+   * operation and writes the ciphertext of item <code>i</code> into
+   * <code>output</code> at offset <code>i * slotSize</code>. An item whose
+   * ciphertext does not fit into its slot fails with CKR_BUFFER_TOO_SMALL.
+   *
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The encryption key.
+   * @param data
+   *          The plaintexts, one array per item.
+   * @param output
+   *          The array to receive the ciphertexts.
+   * @param slotSize
+   *          The number of bytes reserved for each ciphertext.
+   * @return The result holding the lengths of the ciphertexts.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   *                and (output <> null) and (slotSize > 0)
+   *                and (output.length >= data.size() * slotSize)
+   * @postconditions (result <> null)
+   */
+  public BatchResult encryptBatch(Mechanism mechanism, Key key,
+      List<byte[]> data, byte[] output, int slotSize) throws TokenException {
+    return execute(Operation.ENCRYPT, mechanism, key, data, null,
+        Util.requireNonNull("output", output), slotSize);
+  }
+
+  /**
+   * Decrypts every item of the given list with a one-shot decrypt
+   * operation.
+   *
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @param data
+   *          The ciphertexts, one array per item.
+   * @return The result holding the plaintexts.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public BatchResult decryptBatch(Mechanism mechanism, Key key,
+      List<byte[]> data) throws TokenException {
+    return execute(Operation.DECRYPT, mechanism, key, data, null, null, 0);
+  }
+
+  /**
+   * Decrypts every item of the given list with a one-shot decrypt
+   * operation and writes the plaintext of item <code>i</code> into
+   * <code>output</code> at offset <code>i * slotSize</code>. An item whose
+   * plaintext does not fit into its slot fails with CKR_BUFFER_TOO_SMALL.
+   *
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @param data
+   *          The ciphertexts, one array per item.
+   * @param output
+   *          The array to receive the plaintexts.
+   * @param slotSize
+   *          The number of bytes reserved for each plaintext.
+   * @return The result holding the lengths of the plaintexts.
+   * @exception TokenException
+   *              If the batch was interrupted. Errors of single items are
+   *              reported in the result.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   *                and (output <> null) and (slotSize > 0)
+   *                and (output.length >= data.size() * slotSize)
+   * @postconditions (result <> null)
+   */
+  public BatchResult decryptBatch(Mechanism mechanism, Key key,
+      List<byte[]> data, byte[] output, int slotSize) throws TokenException {
+    return execute(Operation.DECRYPT, mechanism, key, data, null,
+        Util.requireNonNull("output", output), slotSize);
+  }
+
+  /**
+   * Releases the worker threads. Sessions are owned by the caller or the
+   * pool and are not closed.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  private BatchResult execute(final Operation operation,
+      final Mechanism mechanism, final Key key, final List<byte[]> data,
+      final List<byte[]> signatures, byte[] output, int slotSize)
+      throws TokenException {
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("data", data);
+
+    final BatchResult result;
+    if (output != null) {
+      if (slotSize < 1) {
+        throw new IllegalArgumentException(
+            "slotSize must be positive: " + slotSize);
+      }
+      if ((long) data.size() * slotSize > output.length) {
+        throw new IllegalArgumentException("output is too short for "
+            + data.size() + " slots of " + slotSize + " bytes");
+      }
+      result = new BatchResult(data.size(), output, slotSize);
+    } else {
+      result = new BatchResult(data.size());
+    }
+    if (data.isEmpty()) {
+      return result;
+    }
+
+    if (session != null) {
+      int next = processChunk(session, operation, mechanism, key, data,
+          signatures, result, 0, data.size());
+      if (next >= 0 && next < data.size()) {
+        TokenException ex = new TokenException(
+            "session left with an active operation by item " + (next - 1));
+        for (int i = next; i < data.size(); i++) {
+          result.setException(i, ex);
+        }
+      }
+      return result;
+    }
+
+    int chunks = Math.min(parallelism, data.size());
+    int chunkSize = (data.size() + chunks - 1) / chunks;
+    List<Future<?>> futures = new ArrayList<>(chunks - 1);
+    // submit all but the first chunk, the first one is processed here
+    for (int from = chunkSize; from < data.size(); from += chunkSize) {
+      final int fromIndex = from;
+      final int toIndex = Math.min(from + chunkSize, data.size());
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          processPooledChunk(operation, mechanism, key, data, signatures,
+              result, fromIndex, toIndex);
+        }
+      }));
+    }
+    processPooledChunk(operation, mechanism, key, data, signatures, result,
+        0, Math.min(chunkSize, data.size()));
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw (Error) cause;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new TokenException("interrupted", ex);
+      }
+    }
+
+    return result;
+  }
+
+  private void processPooledChunk(Operation operation, Mechanism mechanism,
+      Key key, List<byte[]> data, List<byte[]> signatures,
+      BatchResult result, int fromIndex, int toIndex) {
+    int index = fromIndex;
+    while (index >= 0 && index < toIndex) {
+      Session pooledSession;
+      try {
+        pooledSession = sessionPool.borrowSession();
+      } catch (TokenException ex) {
+        for (int i = index; i < toIndex; i++) {
+          result.setException(i, ex);
+        }
+        return;
+      }
+
+      int next = index;
+      try {
+        next = processChunk(pooledSession, operation, mechanism, key, data,
+            signatures, result, index, toIndex);
+      } finally {
+        index = next;
+        if (next < 0) {
+          sessionPool.returnSession(pooledSession);
+        } else {
+          // left with an active operation, continue on a fresh session
+          sessionPool.invalidateSession(pooledSession);
+        }
+      }
+    }
+  }
+
+  /**
+   * Processes the items from <code>fromIndex</code> on. Stops after an
+   * item that left the session with an active operation; in this case,
+   * the session must not be used any more.
+   *
+   * @return -1 if all items were processed, otherwise the index of the
+   *         item after the one that left the session unusable.
+   */
+  private int processChunk(Session session, Operation operation,
+      Mechanism mechanism, Key key, List<byte[]> data,
+      List<byte[]> signatures, BatchResult result,
+      int fromIndex, int toIndex) {
+    byte[] output = result.getOutputArray();
+    int slotSize = result.getSlotSize();
+    byte[] buffer = null;
+    for (int i = fromIndex; i < toIndex; i++) {
+      byte[] in = data.get(i);
+      if (in == null) {
+        result.setException(i, new TokenException("data item is null"));
+        continue;
+      }
+      if (operation == Operation.VERIFY && signatures.get(i) == null) {
+        result.setException(i, new TokenException("signature is null"));
+        continue;
+      }
+      try {
+        switch (operation) {
+          case SIGN:
+            session.signInit(mechanism, key);
+            if (output != null) {
+              // finalizes the operation, also if the signature does not fit
+              result.setOutputLength(i, session.sign(in, 0, in.length,
+                  output, result.getOutputOffset(i), slotSize));
+            } else {
+              result.setOutput(i, session.sign(in));
+            }
+            break;
+          case VERIFY:
+            session.verifyInit(mechanism, key);
+            session.verify(in, signatures.get(i));
+            break;
+          default:
+            boolean encrypt = (operation == Operation.ENCRYPT);
+            byte[] out;
+            int outOfs;
+            int outLen;
+            if (output != null) {
+              out = output;
+              outOfs = result.getOutputOffset(i);
+              outLen = slotSize;
+            } else {
+              int minLen = encrypt
+                  ? outputLengths.getEncryptedLength(session, mechanism, key,
+                      in.length)
+                  : outputLengths.getDecryptedLength(session, mechanism, key,
+                      in.length);
+              if (buffer == null || buffer.length < minLen) {
+                buffer = new byte[minLen];
+              }
+              out = buffer;
+              outOfs = 0;
+              outLen = buffer.length;
+            }
+            int len;
+            byte[] completed = null;
+            try {
+              len = crypt(session, encrypt, mechanism, key, in, out, outOfs,
+                  outLen, true);
+            } catch (PKCS11Exception ex) {
+              if (ex.getErrorCode() != PKCS11Constants.CKR_BUFFER_TOO_SMALL) {
+                throw ex;
+              }
+              // e.g. RSA with a large modulus. The operation is still
+              // active, unless the module terminated it anyway.
+              try {
+                completed = complete(session, encrypt, mechanism, key, in,
+                    outLen);
+              } catch (PKCS11Exception ex2) {
+                if (isBufferTooSmall(ex2)) {
+                  result.setException(i, ex2);
+                  return i + 1;
+                }
+                throw ex2;
+              }
+              if (output != null) {
+                // completed only to terminate it, the output does not fit
+                throw ex;
+              }
+              len = completed.length;
+            }
+            if (encrypt) {
+              outputLengths.learnEncryptedLength(mechanism, key, in.length,
+                  len);
+            } else {
+              outputLengths.learnDecryptedLength(mechanism, key, in.length,
+                  len);
+            }
+            if (output != null) {
+              result.setOutputLength(i, len);
+            } else if (completed != null) {
+              result.setOutput(i, completed);
+            } else {
+              result.setOutput(i, Arrays.copyOf(buffer, len));
+            }
+            break;
+        }
+      } catch (TokenException ex) {
+        result.setException(i, ex);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Completes a one-shot encryption or decryption which failed with
+   * CKR_BUFFER_TOO_SMALL. The token keeps such an operation active, so it
+   * is continued into a buffer large enough for any mechanism. If the
+   * module terminated the operation anyway, it is started again.
+   *
+   * @param session
+   *          The session of the failed operation.
+   * @param encrypt
+   *          True for an encryption, false for a decryption.
+   * @param mechanism
+   *          The mechanism of the operation.
+   * @param key
+   *          The key of the operation.
+   * @param in
+   *          The input of the operation.
+   * @param triedLength
+   *          The length of the output buffer that was too small.
+   * @return The output of the operation.
+   * @exception TokenException
+   *              If the operation failed. If this is a PKCS11Exception with
+   *              CKR_BUFFER_TOO_SMALL, the operation is still active and the
+   *              session must not be used any more.
+   * @preconditions (session <> null) and (mechanism <> null)
+   *                and (key <> null) and (in <> null)
+   * @postconditions (result <> null)
+   */
+  static byte[] complete(Session session, boolean encrypt,
+      Mechanism mechanism, Key key, byte[] in, int triedLength)
+      throws TokenException {
+    byte[] out = new byte[Math.max(4 * triedLength,
+        in.length + MAX_EXPANSION)];
+    int len;
+    try {
+      len = crypt(session, encrypt, mechanism, key, in, out, 0, out.length,
+          false);
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode()
+          != PKCS11Constants.CKR_OPERATION_NOT_INITIALIZED) {
+        throw ex;
+      }
+      len = crypt(session, encrypt, mechanism, key, in, out, 0, out.length,
+          true);
+    }
+    return Arrays.copyOf(out, len);
+  }
+
+  /**
+   * Check, if the given exception is a PKCS11Exception with the error code
+   * CKR_BUFFER_TOO_SMALL.
+   */
+  static boolean isBufferTooSmall(TokenException ex) {
+    return ex instanceof PKCS11Exception
+        && ((PKCS11Exception) ex).getErrorCode()
+            == PKCS11Constants.CKR_BUFFER_TOO_SMALL;
+  }
+
+  private static int crypt(Session session, boolean encrypt,
+      Mechanism mechanism, Key key, byte[] in, byte[] out, int outOfs,
+      int outLen, boolean init) throws TokenException {
+    if (encrypt) {
+      if (init) {
+        session.encryptInit(mechanism, key);
+      }
+      return session.encrypt(in, 0, in.length, out, outOfs, outLen);
+    } else {
+      if (init) {
+        session.decryptInit(mechanism, key);
+      }
+      return session.decrypt(in, 0, in.length, out, outOfs, outLen);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("BatchOperations (parallelism: ", parallelism,
+        (session != null) ? ", single session)" : ", session pool)");
+  }
+
+}
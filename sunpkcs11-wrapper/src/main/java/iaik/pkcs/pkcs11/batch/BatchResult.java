@@ -0,0 +1,245 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+
+/**
+ * The result of a batch operation of {@link BatchOperations}. For each
+ * input item it holds either the output or the exception that made the
+ * item fail. The item index is the index of the input in the input list.
+ * <p/>
+ * If the batch wrote into an output array of the caller, item
+ * <code>i</code> occupies the slot starting at
+ * {@link #getOutputOffset(int)} with {@link #getOutputLength(int)} bytes,
+ * and {@link #getOutput(int)} returns a copy of it.
+ *
+ * @invariants (outputs <> null) and (exceptions <> null)
+ *             and (outputs.length == exceptions.length)
+ *             and ((outputArray == null) or (lengths <> null))
+ */
+public class BatchResult {
+
+  private final byte[][] outputs;
+
+  private final TokenException[] exceptions;
+
+  private final byte[] outputArray;
+
+  private final int slotSize;
+
+  private final int[] lengths;
+
+  BatchResult(int size) {
+    this.outputs = new byte[size][];
+    this.exceptions = new TokenException[size];
+    this.outputArray = null;
+    this.slotSize = 0;
+    this.lengths = null;
+  }
+
+  BatchResult(int size, byte[] outputArray, int slotSize) {
+    this.outputs = new byte[size][];
+    this.exceptions = new TokenException[size];
+    this.outputArray = outputArray;
+    this.slotSize = slotSize;
+    this.lengths = new int[size];
+  }
+
+  byte[] getOutputArray() {
+    return outputArray;
+  }
+
+  int getSlotSize() {
+    return slotSize;
+  }
+
+  void setOutput(int index, byte[] output) {
+    outputs[index] = output;
+  }
+
+  void setOutputLength(int index, int length) {
+    lengths[index] = length;
+  }
+
+  void setException(int index, TokenException exception) {
+    exceptions[index] = exception;
+  }
+
+  /**
+   * Get the number of items of this batch.
+   *
+   * @return The number of items.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int size() {
+    return outputs.length;
+  }
+
+  /**
+   * Get the output of the given item; e.g. the signature or the ciphertext.
+   * Verify batches have no outputs. If the batch wrote into an output array
+   * of the caller, this is a copy of the slot of the item.
+   *
+   * @param index
+   *          The index of the item.
+   * @return The output of the item, or null if the item failed or the
+   *         operation has no output.
+   * @preconditions (index >= 0) and (index < size())
+   * @postconditions
+   */
+  public byte[] getOutput(int index) {
+    if (outputArray == null || exceptions[index] != null) {
+      return outputs[index];
+    }
+    int offset = getOutputOffset(index);
+    return Arrays.copyOfRange(outputArray, offset, offset + lengths[index]);
+  }
+
+  /**
+   * Get the outputs of all items. The returned array is not copied, unless
+   * the batch wrote into an output array of the caller.
+   *
+   * @return The outputs; failed items have a null entry.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public byte[][] getOutputs() {
+    if (outputArray != null) {
+      for (int i = 0; i < outputs.length; i++) {
+        outputs[i] = getOutput(i);
+      }
+    }
+    return outputs;
+  }
+
+  /**
+   * Get the offset of the output of the given item in the output array of
+   * the caller.
+   *
+   * @param index
+   *          The index of the item.
+   * @return The offset of the slot of the item, or 0 if the batch did not
+   *         write into an output array of the caller.
+   * @preconditions (index >= 0) and (index < size())
+   * @postconditions (result >= 0)
+   */
+  public int getOutputOffset(int index) {
+    return (outputArray != null) ? index * slotSize : 0;
+  }
+
+  /**
+   * Get the length of the output of the given item.
+   *
+   * @param index
+   *          The index of the item.
+   * @return The length of the output, or 0 if the item failed or the
+   *         operation has no output.
+   * @preconditions (index >= 0) and (index < size())
+   * @postconditions (result >= 0)
+   */
+  public int getOutputLength(int index) {
+    if (exceptions[index] != null) {
+      return 0;
+    }
+    if (outputArray != null) {
+      return lengths[index];
+    }
+    return (outputs[index] != null) ? outputs[index].length : 0;
+  }
+
+  /**
+   * Get the exception of the given item.
+   *
+   * @param index
+   *          The index of the item.
+   * @return The exception that made the item fail, or null if it succeeded.
+   * @preconditions (index >= 0) and (index < size())
+   * @postconditions
+   */
+  public TokenException getException(int index) {
+    return exceptions[index];
+  }
+
+  /**
+   * Check, if the given item succeeded. For verify batches, this means
+   * that the signature is valid.
+   *
+   * @param index
+   *          The index of the item.
+   * @return True, if the item succeeded. False, otherwise.
+   * @preconditions (index >= 0) and (index < size())
+   * @postconditions
+   */
+  public boolean isSuccessful(int index) {
+    return exceptions[index] == null;
+  }
+
+  /**
+   * Get the number of failed items.
+   *
+   * @return The number of failed items.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int getFailureCount() {
+    int count = 0;
+    for (TokenException exception : exceptions) {
+      if (exception != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("BatchResult (items: ", outputs.length,
+        ", failed: ", getFailureCount(), ")");
+  }
+
+}
@@ -0,0 +1,687 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.TokenRuntimeException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Executes many object mutations (create, set attribute values, destroy)
+ * in parallel across the read-write sessions of a {@link SessionPool}.
+ * This is meant for provisioning and maintenance jobs, e.g. importing many
+ * certificates, relabelling keys or purging expired objects.
+ * <p/>
+ * The mutations are taken from an iterator, so they can be produced lazily
+ * (e.g. from a <code>java.util.stream.Stream</code>). Each worker thread
+ * borrows one session for the whole run. For every mutation a
+ * {@link Result} is reported; a failed mutation does not abort the others
+ * unless stop-on-first-error is set. The handles of all created objects
+ * are collected, so that a failed job can be rolled back on a best-effort
+ * basis with {@link #rollback(Report)}.
+ *
+ * <pre>
+ * <code>
+ *   BulkObjectMutator mutator = new BulkObjectMutator(rwSessionPool, 8);
+ *   BulkObjectMutator.Report report = mutator.execute(
+ *       certificates.stream().map(BulkObjectMutator.Mutation::create)
+ *           .iterator());
+ *   if (report.getFailureCount() != 0) {
+ *     mutator.rollback(report);
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (sessionPool <> null) and (parallelism > 0)
+ */
+public class BulkObjectMutator {
+
+  /**
+   * The kinds of mutations.
+   */
+  public enum MutationType {
+    CREATE,
+    SET_ATTRIBUTE_VALUES,
+    DESTROY
+  }
+
+  /**
+   * A single mutation of an object. Instances are immutable.
+   */
+  public static final class Mutation {
+
+    private final MutationType type;
+
+    private final PKCS11Object object;
+
+    private final PKCS11Object template;
+
+    private Mutation(MutationType type, PKCS11Object object,
+        PKCS11Object template) {
+      this.type = type;
+      this.object = object;
+      this.template = template;
+    }
+
+    /**
+     * Creates a mutation that creates a new object.
+     *
+     * @param template
+     *          The template holding the attributes of the new object.
+     * @return The mutation.
+     * @preconditions (template <> null)
+     * @postconditions (result <> null)
+     */
+    public static Mutation create(PKCS11Object template) {
+      Util.requireNonNull("template", template);
+      return new Mutation(MutationType.CREATE, null, template);
+    }
+
+    /**
+     * Creates a mutation that sets the present attributes of the template
+     * at the given object.
+     *
+     * @param object
+     *          The object to update. Only its handle is used.
+     * @param template
+     *          The template holding the attributes to set.
+     * @return The mutation.
+     * @preconditions (object <> null) and (template <> null)
+     * @postconditions (result <> null)
+     */
+    public static Mutation setAttributeValues(PKCS11Object object,
+        PKCS11Object template) {
+      Util.requireNonNull("object", object);
+      Util.requireNonNull("template", template);
+      return new Mutation(MutationType.SET_ATTRIBUTE_VALUES, object,
+          template);
+    }
+
+    /**
+     * Creates a mutation that destroys the given object.
+     *
+     * @param object
+     *          The object to destroy. Only its handle is used.
+     * @return The mutation.
+     * @preconditions (object <> null)
+     * @postconditions (result <> null)
+     */
+    public static Mutation destroy(PKCS11Object object) {
+      Util.requireNonNull("object", object);
+      return new Mutation(MutationType.DESTROY, object, null);
+    }
+
+    public MutationType getType() {
+      return type;
+    }
+
+    /**
+     * Get the object to update or destroy.
+     *
+     * @return The object, or null for a create mutation.
+     */
+    public PKCS11Object getObject() {
+      return object;
+    }
+
+    /**
+     * Get the template of a create or set-attribute-values mutation.
+     *
+     * @return The template, or null for a destroy mutation.
+     */
+    public PKCS11Object getTemplate() {
+      return template;
+    }
+
+    @Override
+    public String toString() {
+      return Util.concatObjects("Mutation ", type, (object == null) ? ""
+          : " of object " + object.getObjectHandle());
+    }
+
+  }
+
+  /**
+   * The result of a single mutation.
+   */
+  public static final class Result {
+
+    private final int index;
+
+    private final Mutation mutation;
+
+    private final long objectHandle;
+
+    private final TokenException exception;
+
+    private Result(int index, Mutation mutation, long objectHandle,
+        TokenException exception) {
+      this.index = index;
+      this.mutation = mutation;
+      this.objectHandle = objectHandle;
+      this.exception = exception;
+    }
+
+    /**
+     * Get the position of the mutation in the input, starting with 0.
+     *
+     * @return The index of the mutation.
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public Mutation getMutation() {
+      return mutation;
+    }
+
+    /**
+     * Get the handle of the created, updated or destroyed object.
+     *
+     * @return The object handle, or -1 if a create mutation failed.
+     */
+    public long getObjectHandle() {
+      return objectHandle;
+    }
+
+    /**
+     * Get the exception that made this mutation fail.
+     *
+     * @return The exception, or null if the mutation succeeded.
+     */
+    public TokenException getException() {
+      return exception;
+    }
+
+    public boolean isSuccessful() {
+      return exception == null;
+    }
+
+    @Override
+    public String toString() {
+      return Util.concatObjects("Result #", index, " (", mutation, "): ",
+          (exception == null) ? "OK" : exception.toString());
+    }
+
+  }
+
+  /**
+   * The report of a bulk execution.
+   */
+  public static final class Report {
+
+    private final List<Result> results;
+
+    private final List<Long> createdObjectHandles;
+
+    private final List<TokenException> workerExceptions;
+
+    private final int failureCount;
+
+    private final boolean stopped;
+
+    private Report(List<Result> results, List<Long> createdObjectHandles,
+        List<TokenException> workerExceptions, boolean stopped) {
+      this.results = Collections.unmodifiableList(results);
+      this.createdObjectHandles =
+          Collections.unmodifiableList(createdObjectHandles);
+      this.workerExceptions = Collections.unmodifiableList(workerExceptions);
+      int failures = 0;
+      for (Result result : results) {
+        if (!result.isSuccessful()) {
+          failures++;
+        }
+      }
+      this.failureCount = failures;
+      this.stopped = stopped;
+    }
+
+    /**
+     * Get the results of all executed mutations ordered by their index.
+     * If the execution stopped on an error, mutations that have not been
+     * started have no result.
+     *
+     * @return The results.
+     */
+    public List<Result> getResults() {
+      return results;
+    }
+
+    /**
+     * Get the handles of all objects that have been created successfully.
+     *
+     * @return The handles of the created objects.
+     */
+    public List<Long> getCreatedObjectHandles() {
+      return createdObjectHandles;
+    }
+
+    /**
+     * Get the exceptions of worker threads that failed outside of a single
+     * mutation, e.g. because they could not borrow a session. The mutations
+     * these workers would have executed have been done by the other workers.
+     *
+     * @return The exceptions of the failed workers.
+     */
+    public List<TokenException> getWorkerExceptions() {
+      return workerExceptions;
+    }
+
+    public int getFailureCount() {
+      return failureCount;
+    }
+
+    /**
+     * Check, if the execution was stopped because of an error before all
+     * mutations have been executed.
+     *
+     * @return True, if the execution was stopped early.
+     */
+    public boolean isStopped() {
+      return stopped;
+    }
+
+    @Override
+    public String toString() {
+      return Util.concatObjects("Report (mutations: ", results.size(),
+          ", failed: ", failureCount, ", created: ",
+          createdObjectHandles.size(), ", worker errors: ",
+          workerExceptions.size(), ", stopped: ", stopped, ")");
+    }
+
+  }
+
+  /**
+   * Thrown if a worker failed with an unexpected runtime exception or error,
+   * or if the calling thread was interrupted. All workers have been stopped
+   * and have finished when this is thrown. The cause is the original
+   * exception, error or InterruptedException, and the report
+   * holds the mutations executed so far, in particular the handles of the
+   * objects created so far, which can be passed to
+   * {@link BulkObjectMutator#rollback(Report)}.
+   */
+  public static final class AbortedException extends TokenRuntimeException {
+
+    private static final long serialVersionUID = 6209136418532719448L;
+
+    private final transient Report report;
+
+    private AbortedException(Throwable cause, Report report) {
+      super("bulk execution aborted: " + cause);
+      initCause(cause);
+      if (cause instanceof Exception) {
+        encapsulatedException = (Exception) cause;
+      }
+      this.report = report;
+    }
+
+    /**
+     * Get the report of the mutations executed before the execution was
+     * aborted.
+     *
+     * @return The partial report.
+     */
+    public Report getReport() {
+      return report;
+    }
+
+  }
+
+  private final SessionPool sessionPool;
+
+  private final int parallelism;
+
+  private boolean stopOnFirstError;
+
+  /**
+   * Creates a new mutator.
+   *
+   * @param sessionPool
+   *          The pool providing the sessions. Must provide read-write
+   *          sessions to modify token objects.
+   * @param parallelism
+   *          The maximal number of mutations executed at the same time. It
+   *          is capped by the maximal number of sessions of the pool.
+   * @preconditions (sessionPool <> null) and (parallelism > 0)
+   * @postconditions
+   */
+  public BulkObjectMutator(SessionPool sessionPool, int parallelism) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "parallelism must be positive: " + parallelism);
+    }
+    this.parallelism = Math.min(parallelism, sessionPool.getMaxSessions());
+  }
+
+  public boolean isStopOnFirstError() {
+    return stopOnFirstError;
+  }
+
+  /**
+   * Set whether the execution stops after the first failed mutation.
+   * Mutations already running when the error occurs are completed.
+   *
+   * @param stopOnFirstError
+   *          True to stop after the first error, false to execute all
+   *          mutations regardless of errors. Default is false.
+   * @preconditions
+   * @postconditions
+   */
+  public void setStopOnFirstError(boolean stopOnFirstError) {
+    this.stopOnFirstError = stopOnFirstError;
+  }
+
+  /**
+   * Executes all mutations of the given collection.
+   *
+   * @param mutations
+   *          The mutations to execute.
+   * @return The report of the execution.
+   * @exception TokenException
+   *              If no session could be obtained. Errors of single
+   *              mutations are reported in the result instead.
+   * @exception AbortedException
+   *              If a worker failed unexpectedly or the execution was
+   *              interrupted. The exception holds the report of the
+   *              mutations executed so far.
+   * @preconditions (mutations <> null)
+   * @postconditions (result <> null)
+   */
+  public Report execute(Iterable<Mutation> mutations) throws TokenException {
+    Util.requireNonNull("mutations", mutations);
+    return execute(mutations.iterator());
+  }
+
+  /**
+   * Executes all mutations provided by the given iterator. The iterator is
+   * accessed by the worker threads, one at a time.
+   *
+   * @param mutations
+   *          The mutations to execute.
+   * @return The report of the execution.
+   * @exception TokenException
+   *              If no session could be obtained. Errors of single
+   *              mutations are reported in the result instead.
+   * @exception AbortedException
+   *              If a worker failed unexpectedly or the execution was
+   *              interrupted. The exception holds the report of the
+   *              mutations executed so far.
+   * @preconditions (mutations <> null)
+   * @postconditions (result <> null)
+   */
+  public Report execute(Iterator<Mutation> mutations) throws TokenException {
+    Util.requireNonNull("mutations", mutations);
+
+    final Source source = new Source(mutations);
+    final List<Result> results = new ArrayList<>();
+    final List<Long> createdHandles = new ArrayList<>();
+    final List<TokenException> workerExceptions = new ArrayList<>();
+    final AtomicBoolean stop = new AtomicBoolean(false);
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<Void>> futures = new ArrayList<>(parallelism);
+      for (int i = 0; i < parallelism; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws TokenException {
+            work(source, results, createdHandles, stop);
+            return null;
+          }
+        }));
+      }
+
+      // wait for all workers, even if one failed, so that no worker is
+      // still mutating the token when this method returns or throws
+      Throwable unexpected = null;
+      boolean interrupted = false;
+      for (Future<Void> future : futures) {
+        while (true) {
+          try {
+            future.get();
+          } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof TokenException) {
+              workerExceptions.add((TokenException) cause);
+            } else if (cause instanceof RuntimeException
+                || cause instanceof Error) {
+              stop.set(true);
+              if (unexpected == null) {
+                unexpected = cause;
+              }
+            } else {
+              workerExceptions.add(new TokenException((Exception) cause));
+            }
+          } catch (InterruptedException ex) {
+            // stop the workers, but still wait for what they have done
+            stop.set(true);
+            interrupted = true;
+            if (unexpected == null) {
+              unexpected = ex;
+            }
+            continue;
+          }
+          break;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (unexpected != null) {
+        // the source may be broken, so do not ask it for more mutations
+        throw new AbortedException(unexpected,
+            createReport(results, createdHandles, workerExceptions, true));
+      }
+
+      // only if no worker could do anything, e.g. no session available
+      if (!workerExceptions.isEmpty() && results.isEmpty()) {
+        throw workerExceptions.get(0);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    return createReport(results, createdHandles, workerExceptions,
+        stop.get() && source.hasMore());
+  }
+
+  private static Report createReport(List<Result> results,
+      List<Long> createdHandles, List<TokenException> workerExceptions,
+      boolean stopped) {
+    List<Result> sortedResults;
+    List<Long> handles;
+    synchronized (results) {
+      sortedResults = new ArrayList<>(results);
+      handles = new ArrayList<>(createdHandles);
+    }
+    Collections.sort(sortedResults, new Comparator<Result>() {
+      @Override
+      public int compare(Result r1, Result r2) {
+        return Integer.compare(r1.index, r2.index);
+      }
+    });
+
+    return new Report(sortedResults, handles, workerExceptions, stopped);
+  }
+
+  private void work(Source source, List<Result> results,
+      List<Long> createdHandles, AtomicBoolean stop) throws TokenException {
+    Session session = sessionPool.borrowSession();
+    try {
+      IndexedMutation next;
+      while (!stop.get() && (next = source.next()) != null) {
+        Result result = execute(session, next.index, next.mutation);
+        synchronized (results) {
+          results.add(result);
+          if (result.isSuccessful()
+              && next.mutation.type == MutationType.CREATE) {
+            createdHandles.add(result.objectHandle);
+          }
+        }
+
+        if (!result.isSuccessful() && stopOnFirstError) {
+          stop.set(true);
+        }
+      }
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  private static Result execute(Session session, int index,
+      Mutation mutation) {
+    long handle = (mutation.object == null)
+        ? -1 : mutation.object.getObjectHandle();
+    try {
+      switch (mutation.type) {
+        case CREATE:
+          handle = session.createObjectHandle(mutation.template);
+          break;
+        case SET_ATTRIBUTE_VALUES:
+          session.setAttributeValues(mutation.object, mutation.template);
+          break;
+        default:
+          session.destroyObject(handle);
+          break;
+      }
+      return new Result(index, mutation, handle, null);
+    } catch (TokenException ex) {
+      return new Result(index, mutation, handle, ex);
+    }
+  }
+
+  /**
+   * Destroys all objects created by the execution that produced the given
+   * report. This is done on a best-effort basis; objects that cannot be
+   * destroyed are skipped.
+   *
+   * @param report
+   *          The report of the execution to roll back.
+   * @return The handles of the created objects that could not be
+   *         destroyed.
+   * @exception TokenException
+   *              If no session could be obtained.
+   * @preconditions (report <> null)
+   * @postconditions (result <> null)
+   */
+  public List<Long> rollback(Report report) throws TokenException {
+    Util.requireNonNull("report", report);
+    List<Long> failed = new ArrayList<>();
+    if (report.createdObjectHandles.isEmpty()) {
+      return failed;
+    }
+
+    Session session = sessionPool.borrowSession();
+    try {
+      for (Long handle : report.createdObjectHandles) {
+        try {
+          session.destroyObject(handle);
+        } catch (TokenException ex) {
+          failed.add(handle);
+        }
+      }
+    } finally {
+      sessionPool.returnSession(session);
+    }
+    return failed;
+  }
+
+  private static final class IndexedMutation {
+
+    private final int index;
+
+    private final Mutation mutation;
+
+    private IndexedMutation(int index, Mutation mutation) {
+      this.index = index;
+      this.mutation = mutation;
+    }
+
+  }
+
+  /**
+   * Hands out the mutations of an iterator to several threads.
+   */
+  private static final class Source {
+
+    private final Iterator<Mutation> iterator;
+
+    private int index;
+
+    private Source(Iterator<Mutation> iterator) {
+      this.iterator = iterator;
+    }
+
+    synchronized IndexedMutation next() {
+      if (!iterator.hasNext()) {
+        return null;
+      }
+      Mutation mutation = iterator.next();
+      Util.requireNonNull("mutation", mutation);
+      return new IndexedMutation(index++, mutation);
+    }
+
+    synchronized boolean hasMore() {
+      return iterator.hasNext();
+    }
+
+  }
+
+}
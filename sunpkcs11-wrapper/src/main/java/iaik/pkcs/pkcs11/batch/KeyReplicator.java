@@ -0,0 +1,648 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.CharArrayAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Copies keys from one token to another by wrapping them on the source and
+ * unwrapping them on the target, e.g. to fill a disaster recovery replica
+ * or to migrate to a new module. The work is pipelined: the calling thread
+ * enumerates the source keys by handle only and returns its session before
+ * dispatching them, source workers read the few attributes needed for the
+ * target template and wrap the keys, and target workers unwrap them, each
+ * stage on the sessions of its own pool.
+ * <p/>
+ * A key whose CKA_ID is present on the target with the same object class
+ * is skipped; the check is done by the target worker before unwrapping.
+ * Source keys with the same object class and CKA_ID are unwrapped one after
+ * the other, so only the first of them is copied.
+ * Every processed key is appended to a progress log, one line per key:
+ * status (<code>copied</code>, <code>skipped</code> or
+ * <code>failed</code>), source handle, CKA_ID in hex and the target handle
+ * or error message, separated by tab characters. When a run is started
+ * with an existing log, keys logged as copied or skipped are not processed
+ * again, so an interrupted run can be resumed. Source handles are only
+ * stable as long as the source module is not reinitialized; the CKA_ID
+ * check covers the other cases.
+ * <p/>
+ * The target template consists of the object class, key type, CKA_ID,
+ * CKA_LABEL and the usage and protection flags of the source key, as far
+ * as present, and CKA_TOKEN true. The wrapping key on the source and the
+ * unwrapping key on the target must match for the given mechanism, e.g.
+ * the same AES key for CKM_AES_KEY_WRAP_PAD.
+ *
+ * <pre>
+ * <code>
+ *   KeyReplicator replicator = new KeyReplicator(sourcePool, targetPool,
+ *       4, 4);
+ *   KeyReplicator.Report report = replicator.replicate(secretKeyTemplate,
+ *       Mechanism.get(PKCS11Constants.CKM_AES_KEY_WRAP_PAD), sourceKek,
+ *       targetKek, Paths.get("replication.log"));
+ *   replicator.close();
+ * </code>
+ * </pre>
+ *
+ * @invariants (sourcePool <> null) and (targetPool <> null)
+ */
+public class KeyReplicator {
+
+  /**
+   * The summary of a replication run.
+   */
+  public static class Report {
+
+    private final long copied;
+
+    private final long skipped;
+
+    private final long failed;
+
+    private final long resumed;
+
+    private final long elapsedNanos;
+
+    Report(long copied, long skipped, long failed, long resumed,
+        long elapsedNanos) {
+      this.copied = copied;
+      this.skipped = skipped;
+      this.failed = failed;
+      this.resumed = resumed;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the number of keys copied in this run.
+     *
+     * @return The number of copied keys.
+     */
+    public long getCopied() {
+      return copied;
+    }
+
+    /**
+     * Gets the number of keys skipped in this run because their CKA_ID was
+     * present on the target.
+     *
+     * @return The number of skipped keys.
+     */
+    public long getSkipped() {
+      return skipped;
+    }
+
+    public long getFailed() {
+      return failed;
+    }
+
+    /**
+     * Gets the number of keys not processed because an earlier run logged
+     * them as copied or skipped.
+     *
+     * @return The number of keys done before.
+     */
+    public long getResumed() {
+      return resumed;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d copied, %d skipped, %d failed, %d done"
+          + " before, in %.3f s", copied, skipped, failed, resumed,
+          elapsedNanos / 1e9);
+    }
+
+  }
+
+  private static final String COPIED = "copied";
+
+  private static final String SKIPPED = "skipped";
+
+  private static final String FAILED = "failed";
+
+  private static final int FIND_BATCH_SIZE = 256;
+
+  private static final long[] LONG_ATTRIBUTES = {
+    PKCS11Constants.CKA_CLASS,
+    PKCS11Constants.CKA_KEY_TYPE
+  };
+
+  private static final long[] BOOLEAN_ATTRIBUTES = {
+    PKCS11Constants.CKA_PRIVATE,
+    PKCS11Constants.CKA_SENSITIVE,
+    PKCS11Constants.CKA_EXTRACTABLE,
+    PKCS11Constants.CKA_MODIFIABLE,
+    PKCS11Constants.CKA_ENCRYPT,
+    PKCS11Constants.CKA_DECRYPT,
+    PKCS11Constants.CKA_SIGN,
+    PKCS11Constants.CKA_SIGN_RECOVER,
+    PKCS11Constants.CKA_VERIFY,
+    PKCS11Constants.CKA_VERIFY_RECOVER,
+    PKCS11Constants.CKA_WRAP,
+    PKCS11Constants.CKA_UNWRAP,
+    PKCS11Constants.CKA_DERIVE
+  };
+
+  private final SessionPool sourcePool;
+
+  private final SessionPool targetPool;
+
+  private final int sourceParallelism;
+
+  private final int targetParallelism;
+
+  private final ExecutorService sourceExecutor;
+
+  private final ExecutorService targetExecutor;
+
+  /**
+   * Creates a new replicator. Call {@link #close()} to release the worker
+   * threads.
+   *
+   * @param sourcePool
+   *          The pool of the source token.
+   * @param targetPool
+   *          The pool of the target token; its sessions must be read-write.
+   * @param sourceParallelism
+   *          The number of keys wrapped at the same time. It is capped by the
+   *          maximal number of sessions of the source pool.
+   * @param targetParallelism
+   *          The number of keys unwrapped at the same time. It is capped by
+   *          the maximal number of sessions of the target pool.
+   * @preconditions (sourcePool <> null) and (targetPool <> null)
+   *                and (sourceParallelism > 0) and (targetParallelism > 0)
+   * @postconditions
+   */
+  public KeyReplicator(SessionPool sourcePool, SessionPool targetPool,
+      int sourceParallelism, int targetParallelism) {
+    this.sourcePool = Util.requireNonNull("sourcePool", sourcePool);
+    this.targetPool = Util.requireNonNull("targetPool", targetPool);
+    if (sourceParallelism < 1) {
+      throw new IllegalArgumentException(
+          "sourceParallelism must be positive: " + sourceParallelism);
+    }
+    if (targetParallelism < 1) {
+      throw new IllegalArgumentException(
+          "targetParallelism must be positive: " + targetParallelism);
+    }
+    this.sourceParallelism = Math.min(sourceParallelism,
+        sourcePool.getMaxSessions());
+    this.targetParallelism = Math.min(targetParallelism,
+        targetPool.getMaxSessions());
+    this.sourceExecutor = Executors.newFixedThreadPool(
+        this.sourceParallelism, new DaemonThreadFactory("pkcs11-wrap"));
+    this.targetExecutor = Executors.newFixedThreadPool(
+        this.targetParallelism, new DaemonThreadFactory("pkcs11-unwrap"));
+  }
+
+  /**
+   * Replicates all keys of the source token matching the template.
+   *
+   * @param sourceTemplate
+   *          The template to find the source keys with, e.g. a SecretKey
+   *          with CKA_TOKEN true. It should not match the wrapping key.
+   * @param mechanism
+   *          The wrapping mechanism.
+   * @param wrappingKey
+   *          The wrapping key on the source token.
+   * @param unwrappingKey
+   *          The unwrapping key on the target token.
+   * @param progressLog
+   *          The progress log; created if it does not exist, otherwise read
+   *          to resume and appended to.
+   * @return The report of this run.
+   * @exception TokenException
+   *              If enumerating the source keys failed. Errors of single
+   *              keys are logged and counted.
+   * @exception IOException
+   *              If reading or writing the progress log failed, or if the
+   *              run was interrupted.
+   * @preconditions (sourceTemplate <> null) and (mechanism <> null)
+   *                and (wrappingKey <> null) and (unwrappingKey <> null)
+   *                and (progressLog <> null)
+   * @postconditions (result <> null)
+   */
+  public Report replicate(PKCS11Object sourceTemplate,
+      final Mechanism mechanism, final Key wrappingKey,
+      final Key unwrappingKey, Path progressLog)
+      throws TokenException, IOException {
+    Util.requireNonNull("sourceTemplate", sourceTemplate);
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("wrappingKey", wrappingKey);
+    Util.requireNonNull("unwrappingKey", unwrappingKey);
+    Util.requireNonNull("progressLog", progressLog);
+
+    Set<Long> done = readDone(progressLog);
+    final long start = System.nanoTime();
+    final AtomicLong copied = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    long resumed = 0;
+    final int maxInFlight = 2 * (sourceParallelism + targetParallelism);
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final ConcurrentMap<String, Object> idLocks = new ConcurrentHashMap<>();
+
+    // enumerate first, so that the workers can use all source sessions,
+    // even if the pool has only one
+    long[] handles = findHandles(sourceTemplate);
+
+    try (final BufferedWriter log = Files.newBufferedWriter(progressLog,
+        StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND)) {
+      final ProgressLog logger = new ProgressLog(log);
+      try {
+        for (final long handle : handles) {
+          if (handle == wrappingKey.getObjectHandle()) {
+            continue;
+          }
+          if (done.contains(handle)) {
+            resumed++;
+            continue;
+          }
+          logger.check();
+          try {
+            inFlight.acquire();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while dispatching");
+          }
+          try {
+            sourceExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                wrap(handle, mechanism, wrappingKey, unwrappingKey, logger,
+                    inFlight, idLocks, copied, skipped, failed);
+              }
+            });
+          } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+          }
+        }
+      } finally {
+        try {
+          inFlight.acquire(maxInFlight);
+          inFlight.release(maxInFlight);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "interrupted while waiting for the workers");
+        }
+      }
+      logger.check();
+    }
+
+    return new Report(copied.get(), skipped.get(), failed.get(), resumed,
+        System.nanoTime() - start);
+  }
+
+  /**
+   * Finds the handles of all source keys matching the template.
+   */
+  private long[] findHandles(PKCS11Object sourceTemplate)
+      throws TokenException {
+    long[] handles = new long[FIND_BATCH_SIZE];
+    int count = 0;
+    Session session = sourcePool.borrowSession();
+    try {
+      session.findObjectsInit(sourceTemplate);
+      try {
+        long[] found;
+        while ((found = session.findObjectHandles(FIND_BATCH_SIZE))
+            .length > 0) {
+          if (count + found.length > handles.length) {
+            handles = Arrays.copyOf(handles,
+                Math.max(2 * handles.length, count + found.length));
+          }
+          System.arraycopy(found, 0, handles, count, found.length);
+          count += found.length;
+        }
+      } finally {
+        session.findObjectsFinal();
+      }
+    } finally {
+      sourcePool.returnSession(session);
+    }
+    return Arrays.copyOf(handles, count);
+  }
+
+  /**
+   * Releases the worker threads.
+   */
+  public void close() {
+    sourceExecutor.shutdown();
+    targetExecutor.shutdown();
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("KeyReplicator: sourceParallelism=",
+        sourceParallelism, ", targetParallelism=", targetParallelism);
+  }
+
+  /**
+   * First stage: reads the template attributes and wraps the key on a
+   * source session, then hands it to the target stage.
+   */
+  private void wrap(final long handle, final Mechanism mechanism,
+      Key wrappingKey, final Key unwrappingKey, final ProgressLog logger,
+      final Semaphore inFlight, final ConcurrentMap<String, Object> idLocks,
+      final AtomicLong copied, final AtomicLong skipped,
+      final AtomicLong failed) {
+    final GenericTemplate template;
+    final byte[] id;
+    final byte[] wrapped;
+    try {
+      Session session = sourcePool.borrowSession();
+      try {
+        template = readTemplate(session, handle);
+        Attribute idAttribute = template.getAttribute(PKCS11Constants.CKA_ID);
+        id = (idAttribute == null) ? null
+            : ((ByteArrayAttribute) idAttribute).getByteArrayValue();
+        Key key = new Key();
+        key.setObjectHandle(handle);
+        wrapped = session.wrapKey(mechanism, wrappingKey, key);
+      } finally {
+        sourcePool.returnSession(session);
+      }
+    } catch (TokenException | RuntimeException ex) {
+      failed.incrementAndGet();
+      logger.log(FAILED, handle, null, ex.toString());
+      inFlight.release();
+      return;
+    }
+
+    try {
+      targetExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            unwrap(handle, id, template, wrapped, mechanism, unwrappingKey,
+                logger, idLocks, copied, skipped, failed);
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    } catch (RuntimeException ex) {
+      failed.incrementAndGet();
+      logger.log(FAILED, handle, id, ex.toString());
+      inFlight.release();
+    }
+  }
+
+  /**
+   * Second stage: skips the key if its ID is present on the target,
+   * otherwise unwraps it on a target session. Keys with the same object
+   * class and ID are serialized, so that the check and the unwrapping are
+   * atomic within this run.
+   */
+  private void unwrap(long handle, byte[] id, GenericTemplate template,
+      byte[] wrapped, Mechanism mechanism, Key unwrappingKey,
+      ProgressLog logger, ConcurrentMap<String, Object> idLocks,
+      AtomicLong copied, AtomicLong skipped, AtomicLong failed) {
+    try {
+      Session session = targetPool.borrowSession();
+      try {
+        if (id == null) {
+          unwrap(session, handle, id, template, wrapped, mechanism,
+              unwrappingKey, logger, copied, skipped);
+        } else {
+          synchronized (idLock(idLocks, template, id)) {
+            unwrap(session, handle, id, template, wrapped, mechanism,
+                unwrappingKey, logger, copied, skipped);
+          }
+        }
+      } finally {
+        targetPool.returnSession(session);
+      }
+    } catch (TokenException | RuntimeException ex) {
+      failed.incrementAndGet();
+      logger.log(FAILED, handle, id, ex.toString());
+    }
+  }
+
+  private static void unwrap(Session session, long handle, byte[] id,
+      GenericTemplate template, byte[] wrapped, Mechanism mechanism,
+      Key unwrappingKey, ProgressLog logger, AtomicLong copied,
+      AtomicLong skipped) throws TokenException {
+    if (id != null && existsOnTarget(session, template, id)) {
+      skipped.incrementAndGet();
+      logger.log(SKIPPED, handle, id, null);
+      return;
+    }
+    Key key = session.unwrapKey(mechanism, unwrappingKey, wrapped, template);
+    copied.incrementAndGet();
+    logger.log(COPIED, handle, id, Long.toString(key.getObjectHandle()));
+  }
+
+  /**
+   * Gets the lock for the object class and ID of a key.
+   */
+  private static Object idLock(ConcurrentMap<String, Object> idLocks,
+      GenericTemplate template, byte[] id) {
+    LongAttribute objectClass =
+        (LongAttribute) template.getAttribute(PKCS11Constants.CKA_CLASS);
+    String name = ((objectClass == null) ? "" : objectClass.getLongValue())
+        + "/" + Util.toHex(id);
+    Object lock = new Object();
+    Object existing = idLocks.putIfAbsent(name, lock);
+    return (existing == null) ? lock : existing;
+  }
+
+  private static GenericTemplate readTemplate(Session session, long handle)
+      throws TokenException {
+    Attribute[] attributes = new Attribute[LONG_ATTRIBUTES.length
+        + BOOLEAN_ATTRIBUTES.length + 2];
+    int i = 0;
+    for (long type : LONG_ATTRIBUTES) {
+      attributes[i++] = new LongAttribute(type);
+    }
+    for (long type : BOOLEAN_ATTRIBUTES) {
+      attributes[i++] = new BooleanAttribute(type);
+    }
+    attributes[i++] = new ByteArrayAttribute(PKCS11Constants.CKA_ID);
+    attributes[i++] = new CharArrayAttribute(PKCS11Constants.CKA_LABEL);
+    PKCS11Object.getAttributeValues(session, handle, attributes);
+
+    GenericTemplate template = new GenericTemplate();
+    for (Attribute attribute : attributes) {
+      if (attribute.isPresent() && !attribute.isSensitive()) {
+        template.addAttribute(attribute);
+      }
+    }
+    BooleanAttribute token = new BooleanAttribute(PKCS11Constants.CKA_TOKEN);
+    token.setBooleanValue(Boolean.TRUE);
+    template.addAttribute(token);
+    return template;
+  }
+
+  private static boolean existsOnTarget(Session session,
+      GenericTemplate template, byte[] id) throws TokenException {
+    GenericTemplate search = new GenericTemplate();
+    Attribute objectClass = template.getAttribute(PKCS11Constants.CKA_CLASS);
+    if (objectClass != null) {
+      search.addAttribute(objectClass);
+    }
+    ByteArrayAttribute idAttribute =
+        new ByteArrayAttribute(PKCS11Constants.CKA_ID);
+    idAttribute.setByteArrayValue(id);
+    search.addAttribute(idAttribute);
+
+    session.findObjectsInit(search);
+    try {
+      return session.findObjectHandles(1).length > 0;
+    } finally {
+      session.findObjectsFinal();
+    }
+  }
+
+  /**
+   * Reads the source handles logged as copied or skipped.
+   */
+  private static Set<Long> readDone(Path progressLog) throws IOException {
+    Set<Long> done = new HashSet<>();
+    if (!Files.exists(progressLog)) {
+      return done;
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(progressLog,
+        StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length >= 2
+            && (COPIED.equals(fields[0]) || SKIPPED.equals(fields[0]))) {
+          try {
+            done.add(Long.parseLong(fields[1]));
+          } catch (NumberFormatException ex) {
+            // e.g. a line truncated by a crash
+          }
+        }
+      }
+    }
+    return done;
+  }
+
+  /**
+   * Appends lines to the progress log and remembers the first write error.
+   */
+  private static final class ProgressLog {
+
+    private final BufferedWriter writer;
+
+    private IOException exception;
+
+    ProgressLog(BufferedWriter writer) {
+      this.writer = writer;
+    }
+
+    synchronized void log(String status, long handle, byte[] id,
+        String detail) {
+      if (exception != null) {
+        return;
+      }
+
+      StringBuilder line = new StringBuilder(64);
+      line.append(status).append('\t').append(handle).append('\t');
+      if (id != null) {
+        line.append(Util.toHex(id));
+      }
+      if (detail != null) {
+        line.append('\t').append(detail.replace('\t', ' ')
+            .replace('\n', ' ').replace('\r', ' '));
+      }
+      try {
+        writer.write(line.toString());
+        writer.newLine();
+        // each line must survive a crash for the resumption
+        writer.flush();
+      } catch (IOException ex) {
+        exception = ex;
+      }
+    }
+
+    synchronized void check() throws IOException {
+      if (exception != null) {
+        throw exception;
+      }
+    }
+
+  }
+
+}
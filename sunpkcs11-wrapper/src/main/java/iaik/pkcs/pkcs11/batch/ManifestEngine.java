@@ -0,0 +1,594 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.hybrid.HashAlgorithm;
+import iaik.pkcs.pkcs11.hybrid.HybridSigner;
+import iaik.pkcs.pkcs11.io.FileDigestEngine;
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * Digests or signs all regular files of a directory tree in parallel and
+ * writes a manifest. Each file is processed by a worker thread; the number
+ * of workers is capped by the maximal number of sessions of the pool, which
+ * should not exceed the session limit of the token.
+ * <p/>
+ * In digest mode, each file is digested on the token with a multi-part
+ * operation through a {@link FileDigestEngine}; the worker holds a session
+ * for the whole file. In sign mode, each file is hashed in software and only
+ * the digest is signed on the token with a {@link HybridSigner}; a session
+ * is borrowed for the signature only.
+ * <p/>
+ * The manifest has one line per file, written as soon as the file is
+ * processed; so the order of the lines is not defined. A line holds the
+ * path relative to the root with '/' as separator, the file size, the
+ * digest in hex and, in sign mode, the signature in hex, separated by tab
+ * characters. A file that fails is reported to the listener and left out of
+ * the manifest; the other files are processed anyway.
+ *
+ * <pre>
+ * <code>
+ *   try (ManifestEngine engine = new ManifestEngine(sessionPool, 8);
+ *       Writer manifest = Files.newBufferedWriter(manifestFile)) {
+ *     ManifestEngine.Progress result = engine.digestTree(root,
+ *         Mechanism.get(PKCS11Constants.CKM_SHA256), manifest, null);
+ *     System.out.println(result);
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (sessionPool <> null) and (parallelism > 0)
+ */
+public class ManifestEngine implements Closeable {
+
+  /**
+   * Receives the progress of a manifest run. The methods are called by the
+   * worker threads, possibly at the same time.
+   */
+  public interface ProgressListener {
+
+    /**
+     * Called after a file has been processed and its line was written.
+     *
+     * @param entry
+     *          The manifest entry of the file.
+     * @param progress
+     *          The progress including this file.
+     */
+    void completed(Entry entry, Progress progress);
+
+    /**
+     * Called if a file could not be processed.
+     *
+     * @param file
+     *          The file.
+     * @param exception
+     *          The reason.
+     * @param progress
+     *          The progress including this file.
+     */
+    void failed(Path file, Exception exception, Progress progress);
+
+  }
+
+  /**
+   * A line of the manifest.
+   */
+  public static class Entry {
+
+    private final String path;
+
+    private final long size;
+
+    private final byte[] digest;
+
+    private final byte[] signature;
+
+    Entry(String path, long size, byte[] digest, byte[] signature) {
+      this.path = path;
+      this.size = size;
+      this.digest = digest;
+      this.signature = signature;
+    }
+
+    /**
+     * Gets the path relative to the root with '/' as separator.
+     *
+     * @return The relative path.
+     */
+    public String getPath() {
+      return path;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public byte[] getDigest() {
+      return digest.clone();
+    }
+
+    /**
+     * Gets the signature of the file.
+     *
+     * @return The signature, or null in digest mode.
+     */
+    public byte[] getSignature() {
+      return (signature == null) ? null : signature.clone();
+    }
+
+    /**
+     * Gets the manifest line of this entry without line separator.
+     *
+     * @return The manifest line.
+     */
+    public String toLine() {
+      StringBuilder line = new StringBuilder(path.length() + 160);
+      line.append(path).append('\t').append(size)
+          .append('\t').append(Util.toHex(digest));
+      if (signature != null) {
+        line.append('\t').append(Util.toHex(signature));
+      }
+      return line.toString();
+    }
+
+    @Override
+    public String toString() {
+      return toLine();
+    }
+
+  }
+
+  /**
+   * A snapshot of the progress of a manifest run.
+   */
+  public static class Progress {
+
+    private final long completedFiles;
+
+    private final long failedFiles;
+
+    private final long completedBytes;
+
+    private final long elapsedNanos;
+
+    Progress(long completedFiles, long failedFiles, long completedBytes,
+        long elapsedNanos) {
+      this.completedFiles = completedFiles;
+      this.failedFiles = failedFiles;
+      this.completedBytes = completedBytes;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getCompletedFiles() {
+      return completedFiles;
+    }
+
+    public long getFailedFiles() {
+      return failedFiles;
+    }
+
+    /**
+     * Gets the total size of the completed files.
+     *
+     * @return The number of bytes processed.
+     */
+    public long getCompletedBytes() {
+      return completedBytes;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Gets the throughput since the start of the run.
+     *
+     * @return The processed bytes per second.
+     */
+    public double getBytesPerSecond() {
+      return (elapsedNanos <= 0) ? 0 : completedBytes * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Gets the rate of completed files since the start of the run.
+     *
+     * @return The completed files per second.
+     */
+    public double getFilesPerSecond() {
+      return (elapsedNanos <= 0) ? 0 : completedFiles * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d files (%d failed), %d bytes in %.3f s:"
+          + " %.1f files/s, %.1f MiB/s", completedFiles, failedFiles,
+          completedBytes, elapsedNanos / 1e9, getFilesPerSecond(),
+          getBytesPerSecond() / (1024 * 1024));
+    }
+
+  }
+
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final SessionPool sessionPool;
+
+  private final int parallelism;
+
+  private final ExecutorService executor;
+
+  private final FileDigestEngine fileDigestEngine;
+
+  /**
+   * Creates a new engine. Call {@link #close()} to release the worker
+   * threads.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from.
+   * @param parallelism
+   *          The maximal number of files processed at the same time. It is
+   *          capped by the maximal number of sessions of the pool.
+   * @preconditions (sessionPool <> null) and (parallelism > 0)
+   * @postconditions
+   */
+  public ManifestEngine(SessionPool sessionPool, int parallelism) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "parallelism must be positive: " + parallelism);
+    }
+    this.parallelism = Math.min(parallelism, sessionPool.getMaxSessions());
+    this.executor = Executors.newFixedThreadPool(this.parallelism,
+        new DaemonThreadFactory("pkcs11-manifest"));
+    this.fileDigestEngine = new FileDigestEngine();
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Digests all regular files below <code>root</code> on the token and
+   * writes the manifest.
+   *
+   * @param root
+   *          The root directory.
+   * @param mechanism
+   *          The digest mechanism.
+   * @param manifest
+   *          The writer to write the manifest lines to.
+   * @param listener
+   *          The listener to report the progress to, or null.
+   * @return The final progress.
+   * @exception IOException
+   *              If walking the tree or writing the manifest failed, or if
+   *              the run was interrupted. Errors of single files are
+   *              reported to the listener.
+   * @preconditions (root <> null) and (mechanism <> null)
+   *                and (manifest <> null)
+   * @postconditions (result <> null)
+   */
+  public Progress digestTree(Path root, Mechanism mechanism, Writer manifest,
+      ProgressListener listener) throws IOException {
+    Util.requireNonNull("mechanism", mechanism);
+    return run(root, mechanism, null, null, manifest, listener);
+  }
+
+  /**
+   * Signs all regular files below <code>root</code> and writes the
+   * manifest. The files are hashed in software, the digests are signed on
+   * the token.
+   *
+   * @param root
+   *          The root directory.
+   * @param signer
+   *          The signer defining scheme and hash algorithm.
+   * @param key
+   *          The private key.
+   * @param manifest
+   *          The writer to write the manifest lines to.
+   * @param listener
+   *          The listener to report the progress to, or null.
+   * @return The final progress.
+   * @exception IOException
+   *              If walking the tree or writing the manifest failed, or if
+   *              the run was interrupted. Errors of single files are
+   *              reported to the listener.
+   * @preconditions (root <> null) and (signer <> null) and (key <> null)
+   *                and (manifest <> null)
+   * @postconditions (result <> null)
+   */
+  public Progress signTree(Path root, HybridSigner signer, Key key,
+      Writer manifest, ProgressListener listener) throws IOException {
+    Util.requireNonNull("signer", signer);
+    Util.requireNonNull("key", key);
+    return run(root, null, signer, key, manifest, listener);
+  }
+
+  /**
+   * Stops the worker threads. Runs in progress fail.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    fileDigestEngine.close();
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("ManifestEngine: parallelism=", parallelism,
+        ", sessionPool=", sessionPool);
+  }
+
+  private Progress run(final Path root, Mechanism mechanism,
+      HybridSigner signer, Key key, Writer manifest,
+      ProgressListener listener) throws IOException {
+    Util.requireNonNull("root", root);
+    Util.requireNonNull("manifest", manifest);
+
+    final Run run = new Run(root, mechanism, signer, key, manifest,
+        listener);
+    try {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file,
+            BasicFileAttributes attributes) throws IOException {
+          if (attributes.isRegularFile()) {
+            run.submit(file, attributes.size());
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException ex) {
+          run.failed(file, ex);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } finally {
+      run.awaitCompletion();
+    }
+
+    IOException writeException = run.writeException;
+    if (writeException != null) {
+      throw writeException;
+    }
+    return run.progress();
+  }
+
+  /**
+   * The state of one run. At most two files per worker are queued, so a
+   * large tree does not fill the queue of the executor.
+   */
+  private class Run {
+
+    private final Path root;
+
+    private final Mechanism mechanism;
+
+    private final HybridSigner signer;
+
+    private final Key key;
+
+    private final Writer manifest;
+
+    private final ProgressListener listener;
+
+    private final Semaphore permits = new Semaphore(2 * parallelism);
+
+    private final long start = System.nanoTime();
+
+    private final AtomicLong completedFiles = new AtomicLong();
+
+    private final AtomicLong failedFiles = new AtomicLong();
+
+    private final AtomicLong completedBytes = new AtomicLong();
+
+    private volatile IOException writeException;
+
+    Run(Path root, Mechanism mechanism, HybridSigner signer, Key key,
+        Writer manifest, ProgressListener listener) {
+      this.root = root;
+      this.mechanism = mechanism;
+      this.signer = signer;
+      this.key = key;
+      this.manifest = manifest;
+      this.listener = listener;
+    }
+
+    void submit(final Path file, final long size) throws IOException {
+      if (writeException != null) {
+        throw writeException;
+      }
+      try {
+        permits.acquire();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while walking");
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              process(file, size);
+            } finally {
+              permits.release();
+            }
+          }
+        });
+      } catch (RuntimeException ex) {
+        permits.release();
+        throw ex;
+      }
+    }
+
+    void awaitCompletion() throws InterruptedIOException {
+      int all = 2 * parallelism;
+      try {
+        permits.acquire(all);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for"
+            + " the workers");
+      }
+      permits.release(all);
+    }
+
+    Progress progress() {
+      return new Progress(completedFiles.get(), failedFiles.get(),
+          completedBytes.get(), System.nanoTime() - start);
+    }
+
+    private void process(Path file, long size) {
+      Entry entry;
+      try {
+        String path = relativePath(file);
+        if (signer == null) {
+          Session session = sessionPool.borrowSession();
+          try {
+            byte[] digest = fileDigestEngine.digest(session, mechanism, file);
+            entry = new Entry(path, size, digest, null);
+          } finally {
+            sessionPool.returnSession(session);
+          }
+        } else {
+          byte[] digest = hash(file, signer.getHashAlgorithm());
+          Session session = sessionPool.borrowSession();
+          try {
+            byte[] signature = signer.signDigest(session, key, digest);
+            entry = new Entry(path, size, digest, signature);
+          } finally {
+            sessionPool.returnSession(session);
+          }
+        }
+      } catch (TokenException | IOException | RuntimeException ex) {
+        failed(file, ex);
+        return;
+      }
+
+      try {
+        synchronized (manifest) {
+          manifest.write(entry.toLine());
+          manifest.write('\n');
+        }
+      } catch (IOException ex) {
+        writeException = ex;
+        failed(file, ex);
+        return;
+      }
+
+      completedFiles.incrementAndGet();
+      completedBytes.addAndGet(size);
+      if (listener != null) {
+        listener.completed(entry, progress());
+      }
+    }
+
+    void failed(Path file, Exception ex) {
+      failedFiles.incrementAndGet();
+      if (listener != null) {
+        listener.failed(file, ex, progress());
+      }
+    }
+
+    private String relativePath(Path file) {
+      // a root that is a file itself is listed with its name
+      Path relative = file.equals(root) ? file.getFileName()
+          : root.relativize(file);
+      StringBuilder path = new StringBuilder();
+      for (Path name : relative) {
+        if (path.length() > 0) {
+          path.append('/');
+        }
+        path.append(name.toString());
+      }
+      return path.toString();
+    }
+
+  }
+
+  private static byte[] hash(Path file, HashAlgorithm hashAlgorithm)
+      throws TokenException, IOException {
+    MessageDigest md;
+    try {
+      md = hashAlgorithm.acquire();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new TokenException(ex);
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        md.update(buffer, 0, read);
+      }
+      return md.digest();
+    } finally {
+      hashAlgorithm.release(md);
+    }
+  }
+
+}
@@ -0,0 +1,661 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.OutputLengthCache;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.params.Params;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Gathers concurrent single requests (sign, decrypt, digest) that use the
+ * same key and mechanism and executes them back to back on one pooled
+ * session. This helps request/response services whose callers arrive one
+ * at a time and cannot batch explicitly.
+ * <p/>
+ * A batch is executed as soon as it holds <code>maxBatchSize</code>
+ * requests, or when the window started by its first request has elapsed,
+ * whatever happens first. Hence the latency added by the dispatcher is
+ * bounded by the window (plus the waiting time for a free session). Under
+ * low load, a window of 0 executes every request immediately.
+ *
+ * <pre>
+ * <code>
+ *   MicroBatchDispatcher dispatcher =
+ *       new MicroBatchDispatcher(sessionPool, 200, 32);
+ *   byte[] signature = dispatcher.sign(mechanism, privateKey, data);
+ * </code>
+ * </pre>
+ *
+ * @invariants (sessionPool <> null) and (windowMicros >= 0)
+ *             and (maxBatchSize > 0)
+ */
+public class MicroBatchDispatcher {
+
+  private enum Operation {
+    SIGN,
+    DECRYPT,
+    DIGEST
+  }
+
+  /**
+   * Identifies the requests which can be executed in the same batch. It
+   * holds an immutable copy of the mechanism taken at submission, not the
+   * caller's mechanism, which may still be modified. The batch executes
+   * this very copy.
+   */
+  private static final class BatchKey {
+
+    private final Operation operation;
+
+    private final Mechanism mechanism;
+
+    private final long mechanismCode;
+
+    private final Params params;
+
+    private final long keyHandle;
+
+    private BatchKey(Operation operation, Mechanism mechanism,
+        long keyHandle) {
+      this.operation = operation;
+      // ImmutableParams deep-copies the parameters
+      this.mechanism = mechanism.isImmutable() ? mechanism
+          : Mechanism.getImmutable(mechanism.getMechanismCode(),
+              mechanism.getParams());
+      this.mechanismCode = mechanism.getMechanismCode();
+      this.params = this.mechanism.getParams();
+      this.keyHandle = keyHandle;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof BatchKey)) {
+        return false;
+      }
+
+      BatchKey other = (BatchKey) otherObject;
+      return operation == other.operation && keyHandle == other.keyHandle
+          && mechanismCode == other.mechanismCode
+          && Util.objEquals(params, other.params);
+    }
+
+    @Override
+    public int hashCode() {
+      return (operation.hashCode() * 31 + (int) mechanismCode) * 31
+          + ((params != null) ? params.hashCode() : 0)
+          ^ (int) (keyHandle ^ (keyHandle >>> 32));
+    }
+
+  }
+
+  private static final class Request {
+
+    private final byte[] data;
+
+    private final CompletableFuture<byte[]> future;
+
+    private Request(byte[] data) {
+      this.data = data;
+      this.future = new CompletableFuture<>();
+    }
+
+  }
+
+  /**
+   * The requests of one batch key which wait for execution. A batch is
+   * removed from the pending batches as soon as it has been drained and no
+   * flush is scheduled, so that keys used only once do not accumulate.
+   * A removed batch is retired and accepts no more requests.
+   */
+  private final class PendingBatch implements Runnable {
+
+    private final BatchKey batchKey;
+
+    private final Operation operation;
+
+    private final Mechanism mechanism;
+
+    private final Key key;
+
+    private List<Request> requests = new ArrayList<>();
+
+    private boolean flushScheduled;
+
+    private boolean retired;
+
+    private PendingBatch(BatchKey batchKey, Mechanism mechanism, Key key) {
+      this.batchKey = batchKey;
+      this.operation = batchKey.operation;
+      this.mechanism = mechanism;
+      this.key = key;
+    }
+
+    /**
+     * Adds a request. Must be called while holding the lock of this batch,
+     * after checking that it is not retired.
+     *
+     * @return The requests to execute now, or null.
+     */
+    private List<Request> add(Request request) {
+      requests.add(request);
+      if (requests.size() >= maxBatchSize || windowMicros == 0) {
+        return drain();
+      }
+
+      if (!flushScheduled) {
+        scheduler.schedule(this, windowMicros, TimeUnit.MICROSECONDS);
+        flushScheduled = true;
+      }
+      return null;
+    }
+
+    /**
+     * Takes all requests and retires this batch unless a flush is still
+     * scheduled. Must be called while holding the lock of this batch.
+     *
+     * @return The requests, or null if there are none.
+     */
+    private List<Request> drain() {
+      List<Request> drained = requests.isEmpty() ? null : requests;
+      requests = new ArrayList<>();
+      if (!flushScheduled) {
+        retire();
+      }
+      return drained;
+    }
+
+    private void retire() {
+      if (!retired) {
+        retired = true;
+        pendingBatches.remove(batchKey, this);
+      }
+    }
+
+    /**
+     * Called when the window has elapsed.
+     */
+    @Override
+    public void run() {
+      List<Request> drained;
+      synchronized (this) {
+        flushScheduled = false;
+        drained = drain();
+      }
+      dispatch(this, drained);
+    }
+
+  }
+
+  private final SessionPool sessionPool;
+
+  private final long windowMicros;
+
+  private final int maxBatchSize;
+
+  private final ConcurrentMap<BatchKey, PendingBatch> pendingBatches =
+      new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler;
+
+  private final ExecutorService workers;
+
+  private volatile boolean closed;
+
+  private final OutputLengthCache outputLengths = new OutputLengthCache(1024);
+
+  /**
+   * Creates a new dispatcher.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from. At most
+   *          <code>sessionPool.getMaxSessions()</code> batches are executed
+   *          at the same time.
+   * @param windowMicros
+   *          The maximal time in microseconds a request waits for other
+   *          requests to join its batch; e.g. 100 to 500. 0 disables
+   *          gathering.
+   * @param maxBatchSize
+   *          The maximal number of requests per batch.
+   * @preconditions (sessionPool <> null) and (windowMicros >= 0)
+   *                and (maxBatchSize > 0)
+   * @postconditions
+   */
+  public MicroBatchDispatcher(SessionPool sessionPool, long windowMicros,
+      int maxBatchSize) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (windowMicros < 0) {
+      throw new IllegalArgumentException(
+          "windowMicros must not be negative: " + windowMicros);
+    }
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException(
+          "maxBatchSize must be positive: " + maxBatchSize);
+    }
+    this.windowMicros = windowMicros;
+    this.maxBatchSize = maxBatchSize;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new DaemonThreadFactory("pkcs11-dispatcher-timer"));
+    this.workers = Executors.newFixedThreadPool(sessionPool.getMaxSessions(),
+        new DaemonThreadFactory("pkcs11-dispatcher"));
+  }
+
+  public long getWindowMicros() {
+    return windowMicros;
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Submits a sign request.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @param data
+   *          The data to sign.
+   * @return The future signature. It completes exceptionally with a
+   *         TokenException if signing failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public CompletableFuture<byte[]> submitSign(Mechanism mechanism, Key key,
+      byte[] data) {
+    Util.requireNonNull("key", key);
+    return submit(Operation.SIGN, mechanism, key, data);
+  }
+
+  /**
+   * Submits a decrypt request.
+   *
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @param data
+   *          The ciphertext.
+   * @return The future plaintext. It completes exceptionally with a
+   *         TokenException if decrypting failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public CompletableFuture<byte[]> submitDecrypt(Mechanism mechanism,
+      Key key, byte[] data) {
+    Util.requireNonNull("key", key);
+    return submit(Operation.DECRYPT, mechanism, key, data);
+  }
+
+  /**
+   * Submits a digest request.
+   *
+   * @param mechanism
+   *          The digest mechanism.
+   * @param data
+   *          The data to digest.
+   * @return The future digest. It completes exceptionally with a
+   *         TokenException if digesting failed.
+   * @preconditions (mechanism <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public CompletableFuture<byte[]> submitDigest(Mechanism mechanism,
+      byte[] data) {
+    return submit(Operation.DIGEST, mechanism, null, data);
+  }
+
+  /**
+   * Signs the given data and waits for the result.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @param data
+   *          The data to sign.
+   * @return The signature.
+   * @exception TokenException
+   *              If signing failed or the thread has been interrupted.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] sign(Mechanism mechanism, Key key, byte[] data)
+      throws TokenException {
+    return await(submitSign(mechanism, key, data));
+  }
+
+  /**
+   * Decrypts the given data and waits for the result.
+   *
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @param data
+   *          The ciphertext.
+   * @return The plaintext.
+   * @exception TokenException
+   *              If decrypting failed or the thread has been interrupted.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] decrypt(Mechanism mechanism, Key key, byte[] data)
+      throws TokenException {
+    return await(submitDecrypt(mechanism, key, data));
+  }
+
+  /**
+   * Digests the given data and waits for the result.
+   *
+   * @param mechanism
+   *          The digest mechanism.
+   * @param data
+   *          The data to digest.
+   * @return The digest.
+   * @exception TokenException
+   *              If digesting failed or the thread has been interrupted.
+   * @preconditions (mechanism <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] digest(Mechanism mechanism, byte[] data)
+      throws TokenException {
+    return await(submitDigest(mechanism, data));
+  }
+
+  /**
+   * Executes all pending requests and stops the threads of this
+   * dispatcher. Requests submitted afterwards fail.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void close() {
+    closed = true;
+    // flushes already scheduled are cancelled, the batches are drained here
+    scheduler.shutdownNow();
+    for (PendingBatch batch : pendingBatches.values()) {
+      List<Request> drained;
+      synchronized (batch) {
+        batch.flushScheduled = false;
+        drained = batch.drain();
+      }
+      dispatch(batch, drained);
+    }
+    workers.shutdown();
+  }
+
+  private CompletableFuture<byte[]> submit(Operation operation,
+      Mechanism mechanism, Key key, byte[] data) {
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("data", data);
+
+    BatchKey batchKey = new BatchKey(operation, mechanism,
+        (key == null) ? -1 : key.getObjectHandle());
+    Request request = new Request(data);
+    while (true) {
+      PendingBatch batch = pendingBatches.get(batchKey);
+      if (batch == null) {
+        batch = new PendingBatch(batchKey, batchKey.mechanism, key);
+        PendingBatch existing = pendingBatches.putIfAbsent(batchKey, batch);
+        if (existing != null) {
+          batch = existing;
+        }
+      }
+
+      List<Request> toExecute;
+      synchronized (batch) {
+        // checked under the lock, so that close() either sees this request
+        // when draining the batch or this method sees the closed flag
+        if (closed) {
+          request.future.completeExceptionally(
+              new TokenException("dispatcher is closed"));
+          return request.future;
+        }
+        if (batch.retired) {
+          // drained and removed in the meantime, use a new batch
+          continue;
+        }
+        try {
+          toExecute = batch.add(request);
+        } catch (RejectedExecutionException ex) {
+          // the scheduler has been shut down
+          batch.requests.remove(request);
+          request.future.completeExceptionally(
+              new TokenException("dispatcher is closed"));
+          return request.future;
+        }
+      }
+
+      dispatch(batch, toExecute);
+      return request.future;
+    }
+  }
+
+  private void dispatch(final PendingBatch batch,
+      final List<Request> requests) {
+    if (requests == null) {
+      return;
+    }
+
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          execute(batch, requests);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      fail(requests, new TokenException("dispatcher is closed"));
+    }
+  }
+
+  private void execute(PendingBatch batch, List<Request> requests) {
+    int index = 0;
+    while (index >= 0 && index < requests.size()) {
+      Session session;
+      try {
+        session = sessionPool.borrowSession();
+      } catch (TokenException ex) {
+        fail(requests.subList(index, requests.size()), ex);
+        return;
+      }
+
+      int next = index;
+      try {
+        next = execute(batch, requests, index, session);
+      } finally {
+        index = next;
+        if (next < 0) {
+          sessionPool.returnSession(session);
+        } else {
+          // left with an active operation, continue on a fresh session
+          sessionPool.invalidateSession(session);
+        }
+      }
+    }
+  }
+
+  /**
+   * Executes the requests from <code>fromIndex</code> on. Stops after a
+   * request that left the session with an active operation; in this case,
+   * the session must not be used any more.
+   *
+   * @return -1 if all requests were executed, otherwise the index of the
+   *         request after the one that left the session unusable.
+   */
+  private int execute(PendingBatch batch, List<Request> requests,
+      int fromIndex, Session session) {
+    byte[] buffer = null;
+    for (int i = fromIndex; i < requests.size(); i++) {
+      Request request = requests.get(i);
+      try {
+        byte[] result;
+        switch (batch.operation) {
+          case SIGN:
+            session.signInit(batch.mechanism, batch.key);
+            result = session.sign(request.data);
+            break;
+          case DECRYPT:
+            int minLen = outputLengths.getDecryptedLength(session,
+                batch.mechanism, batch.key, request.data.length);
+            if (buffer == null || buffer.length < minLen) {
+              buffer = new byte[minLen];
+            }
+            session.decryptInit(batch.mechanism, batch.key);
+            try {
+              int len = session.decrypt(request.data, 0,
+                  request.data.length, buffer, 0, buffer.length);
+              result = new byte[len];
+              System.arraycopy(buffer, 0, result, 0, len);
+            } catch (PKCS11Exception ex) {
+              if (!BatchOperations.isBufferTooSmall(ex)) {
+                throw ex;
+              }
+              // the decryption is still active, see BatchOperations
+              try {
+                result = BatchOperations.complete(session, false,
+                    batch.mechanism, batch.key, request.data, buffer.length);
+              } catch (PKCS11Exception ex2) {
+                if (BatchOperations.isBufferTooSmall(ex2)) {
+                  request.future.completeExceptionally(ex2);
+                  return i + 1;
+                }
+                throw ex2;
+              }
+            }
+            outputLengths.learnDecryptedLength(batch.mechanism, batch.key,
+                request.data.length, result.length);
+            break;
+          default:
+            try {
+              result = digest(session, batch.mechanism, request.data);
+            } catch (PKCS11Exception ex) {
+              if (BatchOperations.isBufferTooSmall(ex)) {
+                // the digest is still active, and C_DigestSingle cannot
+                // continue it
+                request.future.completeExceptionally(ex);
+                return i + 1;
+              }
+              throw ex;
+            }
+            break;
+        }
+        request.future.complete(result);
+      } catch (TokenException ex) {
+        request.future.completeExceptionally(ex);
+      } catch (RuntimeException ex) {
+        request.future.completeExceptionally(ex);
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] digest(Session session, Mechanism mechanism,
+      byte[] data) throws TokenException {
+    // the native C_DigestSingle returns at most 64 bytes (MAX_DIGEST_LEN),
+    // a larger buffer would not help
+    byte[] digest = new byte[64];
+    int len = session.digestSingle(mechanism, data, 0, data.length,
+        digest, 0, digest.length);
+
+    if (len == digest.length) {
+      return digest;
+    }
+    byte[] result = new byte[len];
+    System.arraycopy(digest, 0, result, 0, len);
+    return result;
+  }
+
+  private static void fail(List<Request> requests, TokenException ex) {
+    for (Request request : requests) {
+      request.future.completeExceptionally(ex);
+    }
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> future)
+      throws TokenException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("interrupted", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof TokenException) {
+        throw (TokenException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new TokenException((Exception) cause);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("MicroBatchDispatcher (window: ", windowMicros,
+        " us, max batch size: ", maxBatchSize, ")");
+  }
+
+}
@@ -0,0 +1,344 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.params.IVParams;
+
+/**
+ * Decrypts large AES-CBC ciphertexts on several sessions in parallel. The
+ * ciphertext is cut at block boundaries into segments; each segment is
+ * decrypted with a one-shot call whose IV is the last ciphertext block of
+ * the preceding segment (the IV of the message for the first segment), so
+ * the result is the same as with a single operation over the whole
+ * ciphertext. Only the final segment is decrypted with CKM_AES_CBC_PAD if
+ * the plaintext is padded, all others with CKM_AES_CBC.
+ * <p/>
+ * CBC encryption cannot be parallelized this way, since each block depends
+ * on the previous ciphertext block.
+ *
+ * <pre>
+ * <code>
+ *   ParallelCbcDecryptor decryptor = new ParallelCbcDecryptor(sessionPool, 8,
+ *       ParallelCbcDecryptor.DEFAULT_SEGMENT_SIZE);
+ *   int len = decryptor.decrypt(aesKey, iv, true, in, 0, in.length, out, 0);
+ *   decryptor.close();
+ * </code>
+ * </pre>
+ *
+ * @invariants (runner <> null) and (segmentSize > 0)
+ *             and (segmentSize % BLOCK_SIZE == 0)
+ */
+public class ParallelCbcDecryptor {
+
+  /**
+   * The AES block size and the length of the IV.
+   */
+  public static final int BLOCK_SIZE = 16;
+
+  /**
+   * The default segment size.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  private final SegmentRunner runner;
+
+  private final int segmentSize;
+
+  /**
+   * Creates a new decryptor. Call {@link #close()} to release the worker
+   * threads.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from.
+   * @param parallelism
+   *          The maximal number of segments processed at the same time. It
+   *          is capped by the maximal number of sessions of the pool.
+   * @param segmentSize
+   *          The number of bytes per segment; a multiple of the block size.
+   * @preconditions (sessionPool <> null) and (parallelism > 0)
+   *                and (segmentSize > 0) and (segmentSize % 16 == 0)
+   * @postconditions
+   */
+  public ParallelCbcDecryptor(SessionPool sessionPool, int parallelism,
+      int segmentSize) {
+    if (segmentSize < 1 || segmentSize % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("segmentSize must be a positive"
+          + " multiple of " + BLOCK_SIZE + ": " + segmentSize);
+    }
+    this.runner = new SegmentRunner(sessionPool, parallelism, "pkcs11-cbc");
+    this.segmentSize = segmentSize;
+  }
+
+  public int getParallelism() {
+    return runner.getParallelism();
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Decrypts a ciphertext. <code>in</code> and <code>out</code> may be the
+   * same array if <code>inOfs == outOfs</code>; the IVs of all segments are
+   * taken before any output is written.
+   *
+   * @param key
+   *          The AES key.
+   * @param iv
+   *          The IV of the message.
+   * @param padded
+   *          Whether the plaintext is padded according to PKCS#7.
+   * @param in
+   *          The ciphertext.
+   * @param inOfs
+   *          The offset of the ciphertext.
+   * @param inLen
+   *          The length of the ciphertext; a multiple of the block size.
+   * @param out
+   *          The array to receive the plaintext. It must have room for
+   *          <code>inLen</code> bytes, since the padding is known only after
+   *          the final segment has been decrypted.
+   * @param outOfs
+   *          The offset of the plaintext.
+   * @return The length of the plaintext without padding.
+   * @exception TokenException
+   *              If decrypting a segment failed, e.g. due to an invalid
+   *              padding; the content of the output is undefined then.
+   * @preconditions (key <> null) and (iv <> null) and (iv.length == 16)
+   *                and (in <> null) and (out <> null)
+   * @postconditions (result >= 0)
+   */
+  public int decrypt(final Key key, byte[] iv, final boolean padded,
+      final byte[] in, final int inOfs, final int inLen, final byte[] out,
+      final int outOfs) throws TokenException {
+    Util.requireNonNull("key", key);
+    checkIv(iv);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (inOfs < 0 || inLen < 0 || inOfs > in.length - inLen) {
+      throw new IllegalArgumentException("invalid input range");
+    }
+    if (outOfs < 0 || outOfs > out.length - inLen) {
+      throw new IllegalArgumentException("output too small");
+    }
+    checkLength(inLen, padded);
+    if (inLen == 0) {
+      return 0;
+    }
+
+    final int segments = (int) ((inLen + (long) segmentSize - 1)
+        / segmentSize);
+    // collect the IVs first, the output may overwrite the ciphertext
+    final byte[][] ivs = new byte[segments][];
+    ivs[0] = iv.clone();
+    for (int i = 1; i < segments; i++) {
+      int ivOfs = inOfs + i * segmentSize - BLOCK_SIZE;
+      ivs[i] = Arrays.copyOfRange(in, ivOfs, ivOfs + BLOCK_SIZE);
+    }
+
+    final AtomicInteger finalLength = new AtomicInteger();
+    try {
+      runner.run(segments, 0, new SegmentRunner.SegmentTask() {
+        @Override
+        public void process(Session session, int segment, byte[] buffer)
+            throws TokenException {
+          int offset = segment * segmentSize;
+          int len = Math.min(segmentSize, inLen - offset);
+          boolean last = segment == segments - 1;
+          int outLen = decryptSegment(session, key, ivs[segment],
+              padded && last, in, inOfs + offset, len, out, outOfs + offset);
+          if (last) {
+            finalLength.set(outLen);
+          }
+        }
+      });
+    } catch (IOException ex) {
+      // not thrown without channels
+      throw new TokenException(ex);
+    }
+    return (segments - 1) * segmentSize + finalLength.get();
+  }
+
+  /**
+   * Decrypts a ciphertext from a file into another file. Each worker reads
+   * its segment and the preceding ciphertext block with positional reads
+   * and writes the plaintext at the corresponding position of the output,
+   * so the positions of the channels are not changed. The output range must
+   * not overlap the ciphertext in the same file.
+   *
+   * @param key
+   *          The AES key.
+   * @param iv
+   *          The IV of the message.
+   * @param padded
+   *          Whether the plaintext is padded according to PKCS#7.
+   * @param in
+   *          The channel to read the ciphertext from.
+   * @param inPosition
+   *          The position of the ciphertext.
+   * @param length
+   *          The length of the ciphertext; a multiple of the block size.
+   * @param out
+   *          The channel to write the plaintext to.
+   * @param outPosition
+   *          The position of the plaintext.
+   * @return The length of the plaintext without padding. Nothing is written
+   *         beyond it.
+   * @exception TokenException
+   *              If decrypting a segment failed, e.g. due to an invalid
+   *              padding.
+   * @exception IOException
+   *              If reading or writing failed.
+   * @preconditions (key <> null) and (iv <> null) and (iv.length == 16)
+   *                and (in <> null) and (out <> null)
+   * @postconditions (result >= 0)
+   */
+  public long decrypt(final Key key, byte[] iv, final boolean padded,
+      final FileChannel in, final long inPosition, final long length,
+      final FileChannel out, final long outPosition)
+      throws TokenException, IOException {
+    Util.requireNonNull("key", key);
+    checkIv(iv);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (inPosition < 0 || length < 0 || outPosition < 0) {
+      throw new IllegalArgumentException("invalid range");
+    }
+    checkLength(length, padded);
+    if (length == 0) {
+      return 0;
+    }
+
+    final long segmentCount = (length + segmentSize - 1) / segmentSize;
+    if (segmentCount > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many segments, increase the"
+          + " segment size: " + segmentCount);
+    }
+    final int segments = (int) segmentCount;
+    final byte[] firstIv = iv.clone();
+    final AtomicInteger finalLength = new AtomicInteger();
+    // the buffer holds the IV followed by the segment
+    runner.run(segments, (int) Math.min(segmentSize, length) + BLOCK_SIZE,
+        new SegmentRunner.SegmentTask() {
+          @Override
+          public void process(Session session, int segment, byte[] buffer)
+              throws TokenException, IOException {
+            long offset = (long) segment * segmentSize;
+            int len = (int) Math.min(segmentSize, length - offset);
+            if (segment == 0) {
+              System.arraycopy(firstIv, 0, buffer, 0, BLOCK_SIZE);
+              SegmentRunner.readFully(in, inPosition, buffer, BLOCK_SIZE,
+                  len);
+            } else {
+              SegmentRunner.readFully(in, inPosition + offset - BLOCK_SIZE,
+                  buffer, 0, BLOCK_SIZE + len);
+            }
+            byte[] segmentIv = Arrays.copyOf(buffer, BLOCK_SIZE);
+            boolean last = segment == segments - 1;
+            int outLen = decryptSegment(session, key, segmentIv,
+                padded && last, buffer, BLOCK_SIZE, len, buffer, 0);
+            SegmentRunner.writeFully(out, outPosition + offset, buffer,
+                outLen);
+            if (last) {
+              finalLength.set(outLen);
+            }
+          }
+        });
+    return (segments - 1L) * segmentSize + finalLength.get();
+  }
+
+  /**
+   * Releases the worker threads.
+   */
+  public void close() {
+    runner.close();
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("ParallelCbcDecryptor: parallelism=",
+        runner.getParallelism(), ", segmentSize=", segmentSize);
+  }
+
+  private static int decryptSegment(Session session, Key key, byte[] iv,
+      boolean padded, byte[] in, int inOfs, int len, byte[] out, int outOfs)
+      throws TokenException {
+    Mechanism mechanism = Mechanism.get(padded
+        ? PKCS11Constants.CKM_AES_CBC_PAD : PKCS11Constants.CKM_AES_CBC);
+    mechanism.setParams(new IVParams(iv));
+    session.decryptInit(mechanism, key);
+    return session.decrypt(in, inOfs, len, out, outOfs, len);
+  }
+
+  private static void checkIv(byte[] iv) {
+    Util.requireNonNull("iv", iv);
+    if (iv.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException("iv.length must be " + BLOCK_SIZE);
+    }
+  }
+
+  private static void checkLength(long length, boolean padded) {
+    if (length % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("ciphertext length must be a"
+          + " multiple of " + BLOCK_SIZE + ": " + length);
+    }
+    if (padded && length == 0) {
+      throw new IllegalArgumentException(
+          "a padded ciphertext must not be empty");
+    }
+  }
+
+}
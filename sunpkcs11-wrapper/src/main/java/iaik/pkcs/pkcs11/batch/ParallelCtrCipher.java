@@ -0,0 +1,403 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.params.AesCtrParams;
+
+/**
+ * Encrypts and decrypts large data with CKM_AES_CTR on several sessions in
+ * parallel. The data is split into segments of a fixed number of blocks;
+ * the counter block of each segment is the initial counter block plus the
+ * index of its first block, so the result is the same as with a single
+ * operation over the whole data. Each segment is processed with a one-shot
+ * encrypt or decrypt call on a session of the pool.
+ * <p/>
+ * The counter block is incremented as one 128-bit big-endian integer, which
+ * matches the counter width of {@link AesCtrParams}. Never use the same key
+ * and counter range twice for encryption.
+ *
+ * <pre>
+ * <code>
+ *   ParallelCtrCipher cipher = new ParallelCtrCipher(sessionPool, 8,
+ *       ParallelCtrCipher.DEFAULT_SEGMENT_SIZE);
+ *   cipher.encrypt(aesKey, counterBlock, in, 0, in.length, out, 0);
+ *   cipher.close();
+ * </code>
+ * </pre>
+ *
+ * @invariants (runner <> null) and (segmentSize > 0)
+ *             and (segmentSize % BLOCK_SIZE == 0)
+ */
+public class ParallelCtrCipher {
+
+  /**
+   * The AES block size and the length of the counter block.
+   */
+  public static final int BLOCK_SIZE = 16;
+
+  /**
+   * The default segment size.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  private final SegmentRunner runner;
+
+  private final int segmentSize;
+
+  /**
+   * Creates a new cipher. Call {@link #close()} to release the worker
+   * threads.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from.
+   * @param parallelism
+   *          The maximal number of segments processed at the same time. It
+   *          is capped by the maximal number of sessions of the pool.
+   * @param segmentSize
+   *          The number of bytes per segment; a multiple of the block size.
+   * @preconditions (sessionPool <> null) and (parallelism > 0)
+   *                and (segmentSize > 0) and (segmentSize % 16 == 0)
+   * @postconditions
+   */
+  public ParallelCtrCipher(SessionPool sessionPool, int parallelism,
+      int segmentSize) {
+    if (segmentSize < 1 || segmentSize % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("segmentSize must be a positive"
+          + " multiple of " + BLOCK_SIZE + ": " + segmentSize);
+    }
+    this.runner = new SegmentRunner(sessionPool, parallelism, "pkcs11-ctr");
+    this.segmentSize = segmentSize;
+  }
+
+  public int getParallelism() {
+    return runner.getParallelism();
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Encrypts data. <code>in</code> and <code>out</code> may be the same
+   * array if <code>inOfs == outOfs</code>.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block.
+   * @param in
+   *          The plaintext.
+   * @param inOfs
+   *          The offset of the plaintext.
+   * @param inLen
+   *          The length of the plaintext.
+   * @param out
+   *          The array to receive the ciphertext.
+   * @param outOfs
+   *          The offset of the ciphertext; <code>inLen</code> bytes are
+   *          written.
+   * @return The length of the ciphertext, which is <code>inLen</code>.
+   * @exception TokenException
+   *              If encrypting a segment failed; the content of the output
+   *              is undefined then.
+   * @preconditions (key <> null) and (counterBlock <> null)
+   *                and (counterBlock.length == 16) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public int encrypt(Key key, byte[] counterBlock, byte[] in, int inOfs,
+      int inLen, byte[] out, int outOfs) throws TokenException {
+    return crypt(true, key, counterBlock, in, inOfs, inLen, out, outOfs);
+  }
+
+  /**
+   * Decrypts data; see
+   * {@link #encrypt(Key, byte[], byte[], int, int, byte[], int)}.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block used for the encryption.
+   * @param in
+   *          The ciphertext.
+   * @param inOfs
+   *          The offset of the ciphertext.
+   * @param inLen
+   *          The length of the ciphertext.
+   * @param out
+   *          The array to receive the plaintext.
+   * @param outOfs
+   *          The offset of the plaintext; <code>inLen</code> bytes are
+   *          written.
+   * @return The length of the plaintext, which is <code>inLen</code>.
+   * @exception TokenException
+   *              If decrypting a segment failed; the content of the output
+   *              is undefined then.
+   * @preconditions (key <> null) and (counterBlock <> null)
+   *                and (counterBlock.length == 16) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public int decrypt(Key key, byte[] counterBlock, byte[] in, int inOfs,
+      int inLen, byte[] out, int outOfs) throws TokenException {
+    return crypt(false, key, counterBlock, in, inOfs, inLen, out, outOfs);
+  }
+
+  /**
+   * Encrypts a range of a file into another (or the same) file. Each worker
+   * reads its segments with positional reads and writes the result at the
+   * corresponding position of the output, so the positions of the channels
+   * are not changed.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block.
+   * @param in
+   *          The channel to read the plaintext from.
+   * @param inPosition
+   *          The position of the plaintext.
+   * @param length
+   *          The length of the plaintext.
+   * @param out
+   *          The channel to write the ciphertext to.
+   * @param outPosition
+   *          The position of the ciphertext.
+   * @return The length of the ciphertext, which is <code>length</code>.
+   * @exception TokenException
+   *              If encrypting a segment failed.
+   * @exception IOException
+   *              If reading or writing failed.
+   * @preconditions (key <> null) and (counterBlock <> null)
+   *                and (counterBlock.length == 16) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public long encrypt(Key key, byte[] counterBlock, FileChannel in,
+      long inPosition, long length, FileChannel out, long outPosition)
+      throws TokenException, IOException {
+    return crypt(true, key, counterBlock, in, inPosition, length, out,
+        outPosition);
+  }
+
+  /**
+   * Decrypts a range of a file into another (or the same) file; see
+   * {@link #encrypt(Key, byte[], FileChannel, long, long, FileChannel, long)}.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block used for the encryption.
+   * @param in
+   *          The channel to read the ciphertext from.
+   * @param inPosition
+   *          The position of the ciphertext.
+   * @param length
+   *          The length of the ciphertext.
+   * @param out
+   *          The channel to write the plaintext to.
+   * @param outPosition
+   *          The position of the plaintext.
+   * @return The length of the plaintext, which is <code>length</code>.
+   * @exception TokenException
+   *              If decrypting a segment failed.
+   * @exception IOException
+   *              If reading or writing failed.
+   * @preconditions (key <> null) and (counterBlock <> null)
+   *                and (counterBlock.length == 16) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public long decrypt(Key key, byte[] counterBlock, FileChannel in,
+      long inPosition, long length, FileChannel out, long outPosition)
+      throws TokenException, IOException {
+    return crypt(false, key, counterBlock, in, inPosition, length, out,
+        outPosition);
+  }
+
+  /**
+   * Releases the worker threads.
+   */
+  public void close() {
+    runner.close();
+  }
+
+  /**
+   * Computes the counter block for the given block offset, i.e. the initial
+   * counter block plus <code>blockOffset</code> as 128-bit big-endian
+   * integer, wrapping around.
+   *
+   * @param counterBlock
+   *          The initial counter block.
+   * @param blockOffset
+   *          The number of blocks to advance.
+   * @return The new counter block.
+   * @preconditions (counterBlock <> null) and (counterBlock.length == 16)
+   *                and (blockOffset >= 0)
+   * @postconditions (result <> null) and (result.length == 16)
+   */
+  public static byte[] counterBlockAt(byte[] counterBlock, long blockOffset) {
+    checkCounterBlock(counterBlock);
+    if (blockOffset < 0) {
+      throw new IllegalArgumentException(
+          "blockOffset must not be negative: " + blockOffset);
+    }
+
+    byte[] result = counterBlock.clone();
+    long carry = blockOffset;
+    for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+      long sum = (result[i] & 0xFF) + (carry & 0xFF);
+      result[i] = (byte) sum;
+      carry = (carry >>> 8) + (sum >>> 8);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("ParallelCtrCipher: parallelism=",
+        runner.getParallelism(), ", segmentSize=", segmentSize);
+  }
+
+  private int crypt(final boolean encrypt, final Key key,
+      final byte[] counterBlock, final byte[] in, final int inOfs,
+      final int inLen, final byte[] out, final int outOfs)
+      throws TokenException {
+    Util.requireNonNull("key", key);
+    checkCounterBlock(counterBlock);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (inOfs < 0 || inLen < 0 || inOfs > in.length - inLen) {
+      throw new IllegalArgumentException("invalid input range");
+    }
+    if (outOfs < 0 || outOfs > out.length - inLen) {
+      throw new IllegalArgumentException("output too small");
+    }
+
+    int segments = (int) ((inLen + (long) segmentSize - 1) / segmentSize);
+    try {
+      runner.run(segments, 0, new SegmentRunner.SegmentTask() {
+        @Override
+        public void process(Session session, int segment, byte[] buffer)
+            throws TokenException {
+          int offset = segment * segmentSize;
+          int len = Math.min(segmentSize, inLen - offset);
+          cryptSegment(session, encrypt, key, counterBlock, offset,
+              in, inOfs + offset, len, out, outOfs + offset);
+        }
+      });
+    } catch (IOException ex) {
+      // not thrown without channels
+      throw new TokenException(ex);
+    }
+    return inLen;
+  }
+
+  private long crypt(final boolean encrypt, final Key key,
+      final byte[] counterBlock, final FileChannel in, final long inPosition,
+      final long length, final FileChannel out, final long outPosition)
+      throws TokenException, IOException {
+    Util.requireNonNull("key", key);
+    checkCounterBlock(counterBlock);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (inPosition < 0 || length < 0 || outPosition < 0) {
+      throw new IllegalArgumentException("invalid range");
+    }
+
+    long segments = (length + segmentSize - 1) / segmentSize;
+    if (segments > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many segments, increase the"
+          + " segment size: " + segments);
+    }
+    runner.run((int) segments, (int) Math.min(segmentSize, length),
+        new SegmentRunner.SegmentTask() {
+          @Override
+          public void process(Session session, int segment, byte[] buffer)
+              throws TokenException, IOException {
+            long offset = (long) segment * segmentSize;
+            int len = (int) Math.min(segmentSize, length - offset);
+            SegmentRunner.readFully(in, inPosition + offset, buffer, 0, len);
+            cryptSegment(session, encrypt, key, counterBlock, offset,
+                buffer, 0, len, buffer, 0);
+            SegmentRunner.writeFully(out, outPosition + offset, buffer, len);
+          }
+        });
+    return length;
+  }
+
+  private static void cryptSegment(Session session, boolean encrypt, Key key,
+      byte[] counterBlock, long offset, byte[] in, int inOfs, int len,
+      byte[] out, int outOfs) throws TokenException {
+    Mechanism mechanism = Mechanism.get(PKCS11Constants.CKM_AES_CTR);
+    mechanism.setParams(new AesCtrParams(
+        counterBlockAt(counterBlock, offset / BLOCK_SIZE)));
+    if (encrypt) {
+      session.encryptInit(mechanism, key);
+      session.encrypt(in, inOfs, len, out, outOfs, len);
+    } else {
+      session.decryptInit(mechanism, key);
+      session.decrypt(in, inOfs, len, out, outOfs, len);
+    }
+  }
+
+  private static void checkCounterBlock(byte[] counterBlock) {
+    Util.requireNonNull("counterBlock", counterBlock);
+    if (counterBlock.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException(
+          "counterBlock.length must be " + BLOCK_SIZE);
+    }
+  }
+
+}
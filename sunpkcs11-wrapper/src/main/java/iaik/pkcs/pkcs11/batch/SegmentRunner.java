@@ -0,0 +1,228 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.batch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+
+/**
+ * Processes the independent segments of a large job on the sessions of a
+ * pool. Each worker borrows one session and takes segment after segment
+ * until all are done; the calling thread is one of the workers. The first
+ * failure stops the workers and is thrown to the caller.
+ *
+ * @invariants (sessionPool <> null) and (parallelism > 0)
+ */
+class SegmentRunner {
+
+  /**
+   * Processes one segment.
+   */
+  interface SegmentTask {
+
+    /**
+     * Processes a segment.
+     *
+     * @param session
+     *          The session of the worker.
+     * @param segment
+     *          The index of the segment.
+     * @param buffer
+     *          The buffer of the worker, or null if none was requested.
+     * @exception TokenException
+     *              If the token operation failed.
+     * @exception IOException
+     *              If reading or writing the data failed.
+     */
+    void process(Session session, int segment, byte[] buffer)
+        throws TokenException, IOException;
+
+  }
+
+  private final SessionPool sessionPool;
+
+  private final int parallelism;
+
+  private final ExecutorService executor;
+
+  SegmentRunner(SessionPool sessionPool, int parallelism, String threadName) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "parallelism must be positive: " + parallelism);
+    }
+    this.parallelism = Math.min(parallelism, sessionPool.getMaxSessions());
+    this.executor = (this.parallelism > 1)
+        ? Executors.newFixedThreadPool(this.parallelism - 1,
+            new DaemonThreadFactory(threadName))
+        : null;
+  }
+
+  int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Processes all segments and waits until they are done.
+   *
+   * @param segments
+   *          The number of segments.
+   * @param bufferSize
+   *          The size of the buffer each worker gets, or 0 for none.
+   * @param task
+   *          The task processing a segment.
+   * @exception TokenException
+   *              If a token operation failed or the caller was interrupted.
+   * @exception IOException
+   *              If reading or writing the data failed.
+   */
+  void run(int segments, final int bufferSize, final SegmentTask task)
+      throws TokenException, IOException {
+    final AtomicInteger nextSegment = new AtomicInteger();
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final int total = segments;
+
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        Session session = null;
+        try {
+          session = sessionPool.borrowSession();
+          byte[] buffer = (bufferSize > 0) ? new byte[bufferSize] : null;
+          int segment;
+          while (failure.get() == null
+              && (segment = nextSegment.getAndIncrement()) < total) {
+            task.process(session, segment, buffer);
+          }
+        } catch (TokenException | IOException | RuntimeException ex) {
+          failure.compareAndSet(null, ex);
+        } finally {
+          if (session != null) {
+            sessionPool.returnSession(session);
+          }
+        }
+      }
+    };
+
+    int workers = Math.min(parallelism, segments);
+    List<Future<?>> futures = new ArrayList<>(workers);
+    for (int i = 1; i < workers; i++) {
+      futures.add(executor.submit(worker));
+    }
+    worker.run();
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw (Error) cause;
+      } catch (InterruptedException ex) {
+        failure.compareAndSet(null, ex);
+        Thread.currentThread().interrupt();
+        throw new TokenException("interrupted", ex);
+      }
+    }
+
+    Exception ex = failure.get();
+    if (ex instanceof TokenException) {
+      throw (TokenException) ex;
+    } else if (ex instanceof IOException) {
+      throw (IOException) ex;
+    } else if (ex != null) {
+      throw (RuntimeException) ex;
+    }
+  }
+
+  void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Reads exactly <code>len</code> bytes at an absolute position.
+   */
+  static void readFully(FileChannel channel, long position, byte[] buffer,
+      int ofs, int len) throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, ofs, len);
+    while (target.hasRemaining()) {
+      long readPosition = position + target.position() - ofs;
+      if (channel.read(target, readPosition) < 0) {
+        throw new EOFException("unexpected end of channel at "
+            + readPosition);
+      }
+    }
+  }
+
+  /**
+   * Writes <code>len</code> bytes at an absolute position.
+   */
+  static void writeFully(FileChannel channel, long position, byte[] buffer,
+      int len) throws IOException {
+    ByteBuffer source = ByteBuffer.wrap(buffer, 0, len);
+    while (source.hasRemaining()) {
+      channel.write(source, position + source.position());
+    }
+  }
+
+}
@@ -0,0 +1,272 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.params.EcDH1KeyDerivationParams;
+import iaik.pkcs.pkcs11.params.ImmutableParams;
+import iaik.pkcs.pkcs11.params.Params;
+import sun.security.pkcs11.wrapper.CK_ECDH1_DERIVE_PARAMS;
+
+/**
+ * Caches the secret keys derived by ECDH key agreement
+ * ({@link Session#deriveKey} with {@link EcDH1KeyDerivationParams}), so that
+ * agreeing again with the same peer public key, e.g. when a peer reconnects
+ * with an ephemeral key still in its validity window, is a lookup instead
+ * of a key agreement on the token.
+ * <p/>
+ * Entries are keyed by the base key, the mechanism, the key derivation
+ * function, the SHA-256 hashes of the peer public data and of the shared
+ * data, and the attributes of the template. They are evicted when the cache
+ * is full (least recently used first) or when their time to live has
+ * passed; choose a time to live not longer than the validity of the peer
+ * keys. Evicted keys are destroyed once their leases are closed. Use
+ * templates that create session objects (CKA_TOKEN false), since the cache
+ * destroys the keys it created.
+ *
+ * <pre>
+ * <code>
+ *   DerivedKeyCache cache = new DerivedKeyCache(sessionPool, 1000,
+ *       5, TimeUnit.MINUTES);
+ *   Mechanism mechanism = Mechanism.get(PKCS11Constants.CKM_ECDH1_DERIVE);
+ *   mechanism.setParams(new EcDH1KeyDerivationParams(
+ *       PKCS11Constants.CKD_NULL, null, peerPoint));
+ *   try (KeyLease lease = cache.deriveKey(session, mechanism, privateKey,
+ *       aesTemplate)) {
+ *     ...
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (cache <> null)
+ */
+public class DerivedKeyCache {
+
+  private static final byte[] NO_DATA = new byte[0];
+
+  /**
+   * Identifies a derived key.
+   */
+  private static final class CacheKey {
+
+    private final long baseKeyHandle;
+
+    private final long mechanismCode;
+
+    private final long kdf;
+
+    private final byte[] publicDataHash;
+
+    private final byte[] sharedDataHash;
+
+    private final String template;
+
+    private final int hashCode;
+
+    CacheKey(long baseKeyHandle, long mechanismCode, long kdf,
+        byte[] publicDataHash, byte[] sharedDataHash, String template) {
+      this.baseKeyHandle = baseKeyHandle;
+      this.mechanismCode = mechanismCode;
+      this.kdf = kdf;
+      this.publicDataHash = publicDataHash;
+      this.sharedDataHash = sharedDataHash;
+      this.template = template;
+      this.hashCode = Arrays.hashCode(publicDataHash) ^ (int) baseKeyHandle;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof CacheKey)) {
+        return false;
+      }
+
+      CacheKey other = (CacheKey) otherObject;
+      return baseKeyHandle == other.baseKeyHandle
+          && mechanismCode == other.mechanismCode
+          && kdf == other.kdf
+          && Arrays.equals(publicDataHash, other.publicDataHash)
+          && Arrays.equals(sharedDataHash, other.sharedDataHash)
+          && template.equals(other.template);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+  }
+
+  private final HandleCache<CacheKey> cache;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param sessionPool
+   *          The pool providing the sessions to destroy evicted keys with
+   *          in the background; a pool of the token the keys are derived on.
+   * @param maxEntries
+   *          The maximal number of cached keys.
+   * @param ttl
+   *          The time to live of a cached key, counted from its creation.
+   * @param unit
+   *          The unit of <code>ttl</code>.
+   * @preconditions (sessionPool <> null) and (maxEntries > 0) and (ttl > 0)
+   *                and (unit <> null)
+   * @postconditions
+   */
+  public DerivedKeyCache(SessionPool sessionPool, int maxEntries, long ttl,
+      TimeUnit unit) {
+    this.cache = new HandleCache<>(sessionPool, maxEntries, ttl, unit);
+  }
+
+  /**
+   * Gets the cached key for the given key agreement, or derives it with
+   * {@link Session#deriveKey(Mechanism, Key, Key)} and caches the new key.
+   *
+   * @param session
+   *          The session to derive with if the key is not cached.
+   * @param mechanism
+   *          The derivation mechanism, e.g. CKM_ECDH1_DERIVE, with
+   *          {@link EcDH1KeyDerivationParams}, which may be frozen in
+   *          {@link ImmutableParams}.
+   * @param baseKey
+   *          The own private key.
+   * @param template
+   *          The template for the derived key.
+   * @return The lease of the derived key; close it when done.
+   * @exception TokenException
+   *              If deriving failed.
+   * @preconditions (session <> null) and (mechanism <> null)
+   *                and ((mechanism.getParams() instanceof
+   *                EcDH1KeyDerivationParams) or (mechanism.getParams()
+   *                instanceof ImmutableParams wrapping them))
+   *                and (baseKey <> null)
+   * @postconditions (result <> null)
+   */
+  public KeyLease deriveKey(Session session, Mechanism mechanism,
+      Key baseKey, Key template) throws TokenException {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("baseKey", baseKey);
+    Params params = mechanism.getParams();
+    Params wrapped = (params instanceof ImmutableParams)
+        ? ((ImmutableParams) params).getParams() : params;
+    if (!(wrapped instanceof EcDH1KeyDerivationParams)) {
+      throw new IllegalArgumentException(
+          "mechanism must have EcDH1KeyDerivationParams");
+    }
+
+    // the values the token derives with; the snapshot of immutable
+    // mechanisms, which may differ from the wrapped parameters
+    CK_ECDH1_DERIVE_PARAMS ckParams =
+        (CK_ECDH1_DERIVE_PARAMS) params.getPKCS11ParamsObject();
+    byte[] publicData = ckParams.pPublicData;
+    byte[] sharedData = ckParams.pSharedData;
+    CacheKey cacheKey = new CacheKey(baseKey.getObjectHandle(),
+        mechanism.getMechanismCode(), ckParams.kdf,
+        HandleCache.hash((publicData == null) ? NO_DATA : publicData),
+        HandleCache.hash((sharedData == null) ? NO_DATA : sharedData),
+        HandleCache.describe(template));
+    KeyLease lease = cache.acquire(cacheKey);
+    if (lease != null) {
+      return lease;
+    }
+
+    Key key = session.deriveKey(mechanism, baseKey, template);
+    return cache.add(cacheKey, key);
+  }
+
+  /**
+   * Removes the expired keys and destroys those not leased. Expired keys are
+   * also removed when they are looked up; call this method periodically to
+   * free the token memory of keys that are not looked up again.
+   *
+   * @return The number of removed keys.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int purgeExpired() {
+    return cache.purgeExpired();
+  }
+
+  /**
+   * Removes all keys and destroys those not leased; leased keys are
+   * destroyed when their leases are closed.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  public long getEvictions() {
+    return cache.getEvictions();
+  }
+
+  @Override
+  public String toString() {
+    return "DerivedKeyCache: " + cache;
+  }
+
+}
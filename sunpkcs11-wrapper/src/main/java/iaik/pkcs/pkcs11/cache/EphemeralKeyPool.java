@@ -0,0 +1,589 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.cache;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.Functions;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Provides short-lived secret session keys, e.g. per-message content
+ * encryption keys, without generating and destroying a key on the request
+ * path. The keys are generated per {@link Profile} (mechanism and template)
+ * in advance by background threads, and destroyed by them after use.
+ * <p/>
+ * Each key is handed out for up to <code>maxUses</code> leases; with 1,
+ * every lease gets a fresh key. A key that reached its uses is retired and
+ * destroyed in the background as soon as its last lease is closed. If no
+ * key is ready, one is generated on the caller's session.
+ *
+ * <pre>
+ * <code>
+ *   EphemeralKeyPool pool = new EphemeralKeyPool(sessionPool, 1, 32, 1);
+ *   EphemeralKeyPool.Profile aes = new EphemeralKeyPool.Profile(
+ *       Mechanism.get(PKCS11Constants.CKM_AES_KEY_GEN), aesTemplate);
+ *   try (KeyLease lease = pool.acquire(aes, session)) {
+ *     session.encryptInit(gcmMechanism, lease.getKey());
+ *     ...
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (sessionPool <> null) and (readyKeys > 0) and (maxUses > 0)
+ */
+public class EphemeralKeyPool implements Closeable {
+
+  /**
+   * The mechanism and template of the keys. The template must not be
+   * modified after the profile was created.
+   */
+  public static final class Profile {
+
+    private final Mechanism mechanism;
+
+    private final PKCS11Object template;
+
+    private final String description;
+
+    /**
+     * Creates a new profile.
+     *
+     * @param mechanism
+     *          The key generation mechanism.
+     * @param template
+     *          The template for the keys. CKA_TOKEN must not be true.
+     * @exception TokenException
+     *              If the attributes of the template cannot be read.
+     * @preconditions (mechanism <> null) and (template <> null)
+     * @postconditions
+     */
+    public Profile(Mechanism mechanism, PKCS11Object template)
+        throws TokenException {
+      this.mechanism = Util.requireNonNull("mechanism", mechanism);
+      this.template = Util.requireNonNull("template", template);
+      Attribute token = template.getAttribute(PKCS11Constants.CKA_TOKEN);
+      if (token instanceof BooleanAttribute && Boolean.TRUE.equals(
+          ((BooleanAttribute) token).getBooleanValue())) {
+        throw new IllegalArgumentException(
+            "template must not create token objects");
+      }
+      this.description = HandleCache.describe(mechanism) + "|"
+          + HandleCache.describe(template);
+    }
+
+    public Mechanism getMechanism() {
+      return mechanism;
+    }
+
+    public PKCS11Object getTemplate() {
+      return template;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof Profile)) {
+        return false;
+      }
+
+      return description.equals(((Profile) otherObject).description);
+    }
+
+    @Override
+    public int hashCode() {
+      return description.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return Util.concatObjects("Profile: mechanism=",
+          Functions.mechanismCodeToString(mechanism.getMechanismCode()));
+    }
+
+  }
+
+  /**
+   * A key with its uses and leases, guarded by the lock of its profile
+   * state.
+   */
+  private static final class Entry {
+
+    private final Key key;
+
+    private int uses;
+
+    private int leases;
+
+    private boolean retired;
+
+    Entry(Key key) {
+      this.key = key;
+    }
+
+  }
+
+  /**
+   * The keys of a profile.
+   */
+  private static final class ProfileState {
+
+    private final Profile profile;
+
+    // guarded by this
+    private final ArrayDeque<Entry> ready = new ArrayDeque<>();
+
+    // guarded by this
+    private Entry current;
+
+    // guarded by this
+    private int generating;
+
+    ProfileState(Profile profile) {
+      this.profile = profile;
+    }
+
+  }
+
+  private final SessionPool sessionPool;
+
+  private final int readyKeys;
+
+  private final int maxUses;
+
+  private final ExecutorService background;
+
+  private final ConcurrentMap<Profile, ProfileState> states =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a new pool. Call {@link #close()} to stop the background
+   * threads and destroy the remaining keys.
+   *
+   * @param sessionPool
+   *          The pool providing the sessions for generating and destroying
+   *          keys in the background.
+   * @param backgroundThreads
+   *          The number of threads generating and destroying keys.
+   * @param readyKeys
+   *          The number of keys to keep ready per profile.
+   * @param maxUses
+   *          The number of leases a key is handed out for before it is
+   *          retired.
+   * @preconditions (sessionPool <> null) and (backgroundThreads > 0)
+   *                and (readyKeys > 0) and (maxUses > 0)
+   * @postconditions
+   */
+  public EphemeralKeyPool(SessionPool sessionPool, int backgroundThreads,
+      int readyKeys, int maxUses) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (backgroundThreads < 1) {
+      throw new IllegalArgumentException(
+          "backgroundThreads must be positive: " + backgroundThreads);
+    }
+    if (readyKeys < 1) {
+      throw new IllegalArgumentException(
+          "readyKeys must be positive: " + readyKeys);
+    }
+    if (maxUses < 1) {
+      throw new IllegalArgumentException(
+          "maxUses must be positive: " + maxUses);
+    }
+    this.readyKeys = readyKeys;
+    this.maxUses = maxUses;
+    this.background = Executors.newFixedThreadPool(backgroundThreads,
+        new ThreadFactory() {
+          private final AtomicInteger counter = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "EphemeralKeyPool-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  public int getReadyKeys() {
+    return readyKeys;
+  }
+
+  public int getMaxUses() {
+    return maxUses;
+  }
+
+  /**
+   * Registers a profile and starts generating its keys. Profiles are also
+   * registered by their first {@link #acquire}.
+   *
+   * @param profile
+   *          The profile.
+   * @preconditions (profile <> null)
+   * @postconditions
+   */
+  public void register(Profile profile) {
+    refill(getState(profile));
+  }
+
+  /**
+   * Leases a key of the given profile. Close the lease after the last use
+   * of the key; do not destroy the key.
+   *
+   * @param profile
+   *          The profile.
+   * @param session
+   *          The session to generate a key with if none is ready.
+   * @return The lease of the key.
+   * @exception TokenException
+   *              If no key was ready and generating one failed.
+   * @preconditions (profile <> null) and (session <> null)
+   * @postconditions (result <> null)
+   */
+  public KeyLease acquire(Profile profile, Session session)
+      throws TokenException {
+    Util.requireNonNull("session", session);
+    if (closed) {
+      throw new IllegalStateException("pool is closed");
+    }
+
+    ProfileState state = getState(profile);
+    Entry entry;
+    synchronized (state) {
+      entry = state.current;
+      if (entry == null) {
+        entry = state.ready.poll();
+      }
+      if (entry != null) {
+        state.current = entry;
+        lease(state, entry);
+      }
+    }
+
+    if (entry != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      entry = new Entry(generate(session, profile));
+      synchronized (state) {
+        lease(state, entry);
+        if (!entry.retired) {
+          // another thread may have set a current key in the meantime
+          if (state.current == null) {
+            state.current = entry;
+          } else {
+            state.ready.addFirst(entry);
+          }
+        }
+      }
+    }
+    refill(state);
+    return newLease(state, entry);
+  }
+
+  /**
+   * Gets the number of ready keys of a profile, not counting the key
+   * currently handed out.
+   *
+   * @param profile
+   *          The profile.
+   * @return The number of ready keys.
+   * @preconditions (profile <> null)
+   * @postconditions (result >= 0)
+   */
+  public int getReadyCount(Profile profile) {
+    ProfileState state = states.get(profile);
+    if (state == null) {
+      return 0;
+    }
+    synchronized (state) {
+      return state.ready.size();
+    }
+  }
+
+  /**
+   * Gets the number of leases served by a ready key.
+   *
+   * @return The number of hits.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Gets the number of leases that had to generate on the caller's session.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Gets the number of failed background generations and destructions.
+   *
+   * @return The number of failures.
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * Stops the background threads and destroys all keys not leased; leased
+   * keys are destroyed when their leases are closed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    background.shutdownNow();
+
+    List<Key> toDestroy = new ArrayList<>();
+    for (ProfileState state : states.values()) {
+      synchronized (state) {
+        if (state.current != null) {
+          state.ready.add(state.current);
+          state.current = null;
+        }
+        for (Entry entry : state.ready) {
+          entry.retired = true;
+          if (entry.leases == 0) {
+            toDestroy.add(entry.key);
+          }
+        }
+        state.ready.clear();
+      }
+    }
+    destroy(toDestroy);
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("EphemeralKeyPool: profiles=", states.size(),
+        ", readyKeys=", readyKeys, ", maxUses=", maxUses, ", hits=",
+        hits.get(), ", misses=", misses.get(), ", failures=",
+        failures.get());
+  }
+
+  private ProfileState getState(Profile profile) {
+    Util.requireNonNull("profile", profile);
+    ProfileState state = states.get(profile);
+    if (state == null) {
+      state = new ProfileState(profile);
+      ProfileState existing = states.putIfAbsent(profile, state);
+      if (existing != null) {
+        state = existing;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Counts a use of the entry and retires it after its last use. Called
+   * with the lock of the state held.
+   */
+  private void lease(ProfileState state, Entry entry) {
+    entry.uses++;
+    entry.leases++;
+    if (entry.uses >= maxUses) {
+      entry.retired = true;
+      if (state.current == entry) {
+        state.current = null;
+      }
+    }
+  }
+
+  private KeyLease newLease(final ProfileState state, final Entry entry) {
+    return new KeyLease(entry.key, new KeyLease.Releaser() {
+      @Override
+      public void release() {
+        boolean destroy;
+        synchronized (state) {
+          entry.leases--;
+          destroy = entry.retired && entry.leases == 0;
+        }
+        if (destroy) {
+          destroyInBackground(entry.key);
+        }
+      }
+    });
+  }
+
+  /**
+   * Schedules generations until the ready and the running generations reach
+   * the number of ready keys.
+   */
+  private void refill(final ProfileState state) {
+    synchronized (state) {
+      while (!closed
+          && state.ready.size() + state.generating < readyKeys) {
+        state.generating++;
+        try {
+          background.execute(new Runnable() {
+            @Override
+            public void run() {
+              generateInBackground(state);
+            }
+          });
+        } catch (RejectedExecutionException ex) {
+          // closed concurrently
+          state.generating--;
+          return;
+        }
+      }
+    }
+  }
+
+  private void generateInBackground(ProfileState state) {
+    Key key = null;
+    try {
+      Session session = sessionPool.borrowSession();
+      try {
+        key = generate(session, state.profile);
+      } finally {
+        sessionPool.returnSession(session);
+      }
+    } catch (TokenException | RuntimeException ex) {
+      // the next acquire generates itself and schedules a new refill
+      failures.incrementAndGet();
+    }
+
+    boolean discard;
+    synchronized (state) {
+      state.generating--;
+      discard = closed;
+      if (key != null && !discard) {
+        state.ready.add(new Entry(key));
+      }
+    }
+    if (key != null && discard) {
+      List<Key> toDestroy = new ArrayList<>(1);
+      toDestroy.add(key);
+      destroy(toDestroy);
+    }
+  }
+
+  private void destroyInBackground(final Key key) {
+    final List<Key> toDestroy = new ArrayList<>(1);
+    toDestroy.add(key);
+    try {
+      background.execute(new Runnable() {
+        @Override
+        public void run() {
+          destroy(toDestroy);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      // closed, destroy in the calling thread
+      destroy(toDestroy);
+    }
+  }
+
+  private void destroy(List<Key> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    Session session;
+    try {
+      session = sessionPool.borrowSession();
+    } catch (TokenException ex) {
+      failures.incrementAndGet();
+      return;
+    }
+    try {
+      for (Key key : keys) {
+        try {
+          session.destroyObject(key.getObjectHandle());
+        } catch (TokenException ex) {
+          failures.incrementAndGet();
+        }
+      }
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  private static Key generate(Session session, Profile profile)
+      throws TokenException {
+    PKCS11Object key = session.generateKey(profile.mechanism,
+        profile.template);
+    if (!(key instanceof Key)) {
+      // not expected for key generation mechanisms
+      session.destroyObject(key);
+      throw new TokenException("generated object is not a key: "
+          + key.getClass().getName());
+    }
+    return (Key) key;
+  }
+
+}
@@ -0,0 +1,432 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.cache;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.hybrid.HashAlgorithm;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+
+/**
+ * Caches session key objects created on the token, keyed by the inputs that
+ * created them. The cache is bounded in size (least recently used entries
+ * are evicted first) and in time (entries expire a fixed time after their
+ * creation). Keys are handed out as {@link KeyLease}s; an evicted or
+ * expired key is destroyed on the token as soon as no lease holds it any
+ * more, so a key is never destroyed while it is in use.
+ * <p/>
+ * Keys are destroyed by a background thread with a session of the pool
+ * given to the constructor; it must be a pool of the token the keys were
+ * created on. Evicting a key or closing a lease thus never waits for a
+ * session, even if the caller holds the last session of that pool. Session
+ * objects are destroyed by the token anyway when the session that created
+ * them is closed, so the sessions creating cached keys should stay open as
+ * long as the cache, e.g. by taking them from the same pool.
+ *
+ * @param <K>
+ *          The type of the cache keys.
+ * @invariants (sessionPool <> null) and (entries.size() <= maxEntries)
+ */
+@SuppressWarnings("restriction")
+class HandleCache<K> {
+
+  /**
+   * A cached key object with its bookkeeping.
+   */
+  static final class Entry {
+
+    final Key key;
+
+    final long expiresAt;
+
+    int leases;
+
+    boolean evicted;
+
+    Entry(Key key, long expiresAt) {
+      this.key = key;
+      this.expiresAt = expiresAt;
+    }
+
+  }
+
+  private final SessionPool sessionPool;
+
+  private final int maxEntries;
+
+  private final long ttlNanos;
+
+  private final LinkedHashMap<K, Entry> entries;
+
+  /**
+   * Destroys the keys. Its thread terminates when idle, so the cache needs
+   * no close method.
+   */
+  private final ThreadPoolExecutor destroyer;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  HandleCache(SessionPool sessionPool, int maxEntries, long ttl,
+      TimeUnit unit) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    Util.requireNonNull("unit", unit);
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException(
+          "maxEntries must be positive: " + maxEntries);
+    }
+    if (ttl < 1) {
+      throw new IllegalArgumentException("ttl must be positive: " + ttl);
+    }
+    this.maxEntries = maxEntries;
+    this.ttlNanos = unit.toNanos(ttl);
+    // access order, the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    this.destroyer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger counter = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "HandleCache-destroy-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    this.destroyer.allowCoreThreadTimeOut(true);
+  }
+
+  int getMaxEntries() {
+    return maxEntries;
+  }
+
+  long getTtlNanos() {
+    return ttlNanos;
+  }
+
+  /**
+   * Leases the cached key for the given cache key.
+   *
+   * @param cacheKey
+   *          The cache key.
+   * @return The lease, or null if no valid key is cached.
+   */
+  KeyLease acquire(K cacheKey) {
+    List<Key> toDestroy = null;
+    KeyLease lease = null;
+    synchronized (this) {
+      Entry entry = entries.get(cacheKey);
+      if (entry != null && isExpired(entry, System.nanoTime())) {
+        entries.remove(cacheKey);
+        toDestroy = evict(entry, null);
+        entry = null;
+      }
+      if (entry == null) {
+        misses++;
+      } else {
+        hits++;
+        entry.leases++;
+        lease = newLease(entry);
+      }
+    }
+    destroy(toDestroy);
+    return lease;
+  }
+
+  /**
+   * Adds a newly created key and leases it. If another thread added a key
+   * for the same cache key in the meantime, the new key is destroyed and
+   * the existing one is leased instead.
+   *
+   * @param cacheKey
+   *          The cache key.
+   * @param key
+   *          The new key object.
+   * @return The lease of the cached key.
+   */
+  KeyLease add(K cacheKey, Key key) {
+    List<Key> toDestroy = new ArrayList<>(2);
+    KeyLease lease;
+    synchronized (this) {
+      long now = System.nanoTime();
+      Entry entry = entries.get(cacheKey);
+      if (entry != null && !isExpired(entry, now)) {
+        toDestroy.add(key);
+      } else {
+        if (entry != null) {
+          evict(entry, toDestroy);
+        }
+        entry = new Entry(key, now + ttlNanos);
+        entries.put(cacheKey, entry);
+        // evict the least recently used entries
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+          Entry eldest = it.next();
+          it.remove();
+          evict(eldest, toDestroy);
+        }
+      }
+      entry.leases++;
+      lease = newLease(entry);
+    }
+    destroy(toDestroy);
+    return lease;
+  }
+
+  private KeyLease newLease(final Entry entry) {
+    return new KeyLease(entry.key, new KeyLease.Releaser() {
+      @Override
+      public void release() {
+        HandleCache.this.release(entry);
+      }
+    });
+  }
+
+  /**
+   * Releases a lease; called by {@link KeyLease#close()}.
+   */
+  private void release(Entry entry) {
+    boolean destroy;
+    synchronized (this) {
+      entry.leases--;
+      destroy = entry.evicted && entry.leases == 0;
+    }
+    if (destroy) {
+      destroy(Arrays.asList(entry.key));
+    }
+  }
+
+  /**
+   * Removes all expired entries.
+   *
+   * @return The number of removed entries.
+   */
+  int purgeExpired() {
+    List<Key> toDestroy = new ArrayList<>();
+    int removed = 0;
+    synchronized (this) {
+      long now = System.nanoTime();
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (isExpired(entry, now)) {
+          it.remove();
+          evict(entry, toDestroy);
+          removed++;
+        }
+      }
+    }
+    destroy(toDestroy);
+    return removed;
+  }
+
+  /**
+   * Removes all entries.
+   */
+  void clear() {
+    List<Key> toDestroy = new ArrayList<>();
+    synchronized (this) {
+      for (Entry entry : entries.values()) {
+        evict(entry, toDestroy);
+      }
+      entries.clear();
+    }
+    destroy(toDestroy);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return Util.concatObjects("size=", entries.size(), ", maxEntries=",
+        maxEntries, ", ttlMillis=", ttlNanos / 1000000L, ", hits=", hits,
+        ", misses=", misses, ", evictions=", evictions);
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    return now - entry.expiresAt >= 0;
+  }
+
+  /**
+   * Marks an entry removed from the map as evicted. Its key is added to the
+   * keys to destroy if no lease holds it.
+   */
+  private List<Key> evict(Entry entry, List<Key> toDestroy) {
+    entry.evicted = true;
+    evictions++;
+    if (entry.leases == 0) {
+      if (toDestroy == null) {
+        toDestroy = new ArrayList<>(1);
+      }
+      toDestroy.add(entry.key);
+    }
+    return toDestroy;
+  }
+
+  /**
+   * Destroys the given keys in the background. The calling thread may hold
+   * a session of the pool, possibly the last one, so it must not borrow one.
+   */
+  private void destroy(final List<Key> keys) {
+    if (keys == null || keys.isEmpty()) {
+      return;
+    }
+
+    destroyer.execute(new Runnable() {
+      @Override
+      public void run() {
+        destroyNow(keys);
+      }
+    });
+  }
+
+  private void destroyNow(List<Key> keys) {
+    Session session;
+    try {
+      session = sessionPool.borrowSession();
+    } catch (TokenException ex) {
+      // the objects vanish with the sessions that created them
+      return;
+    }
+    try {
+      for (Key key : keys) {
+        try {
+          session.destroyObject(key.getObjectHandle());
+        } catch (TokenException ex) {
+          // already gone, e.g. its session was closed
+        }
+      }
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  /**
+   * Hashes data which is part of a cache key, so the cache does not keep
+   * the data itself.
+   */
+  static byte[] hash(byte[] data) throws TokenException {
+    try {
+      return HashAlgorithm.SHA256.digest(data, 0, data.length);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new TokenException(ex);
+    }
+  }
+
+  /**
+   * Describes a mechanism including its parameters. Unlike the mechanism
+   * itself, the description cannot be changed after it was used as cache
+   * key.
+   */
+  static String describe(Mechanism mechanism) {
+    Util.requireNonNull("mechanism", mechanism);
+    Object params = mechanism.getParams();
+    return (params == null) ? Long.toString(mechanism.getMechanismCode())
+        : mechanism.getMechanismCode() + ":" + params;
+  }
+
+  /**
+   * Describes the attributes set in a template.
+   */
+  static String describe(PKCS11Object template) throws TokenException {
+    CK_ATTRIBUTE[] attributes = PKCS11Object.getSetAttributes(template);
+    if (attributes == null) {
+      return "";
+    }
+
+    StringBuilder sb = new StringBuilder(32 * attributes.length);
+    for (CK_ATTRIBUTE attribute : attributes) {
+      sb.append(attribute.type).append('=');
+      Object value = attribute.pValue;
+      if (value instanceof byte[]) {
+        sb.append(Util.toHex((byte[]) value));
+      } else if (value instanceof char[]) {
+        sb.append((char[]) value);
+      } else if (value instanceof long[]) {
+        sb.append(Arrays.toString((long[]) value));
+      } else {
+        sb.append(value);
+      }
+      sb.append(';');
+    }
+    return sb.toString();
+  }
+
+}
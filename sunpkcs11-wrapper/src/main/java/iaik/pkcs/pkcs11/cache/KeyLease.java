@@ -0,0 +1,123 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.cache;
+
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * A key handed out by a cache or pool of session keys. The key stays on the
+ * token at least until the lease is closed, even if it is evicted from the
+ * cache or retired by the pool in the meantime. Close the lease as soon as
+ * the key is not needed any more, preferably with try-with-resources. Do not
+ * destroy the key.
+ *
+ * <pre>
+ * <code>
+ *   try (KeyLease lease = cache.unwrapKey(session, mechanism, kek,
+ *       wrappedKey, template)) {
+ *     session.decryptInit(contentMechanism, lease.getKey());
+ *     ...
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (key <> null) and (releaser <> null)
+ */
+public class KeyLease implements AutoCloseable {
+
+  /**
+   * Returns a leased key to its owner.
+   */
+  interface Releaser {
+
+    void release();
+
+  }
+
+  private final Key key;
+
+  private final Releaser releaser;
+
+  private boolean closed;
+
+  KeyLease(Key key, Releaser releaser) {
+    this.key = key;
+    this.releaser = releaser;
+  }
+
+  /**
+   * Gets the leased key.
+   *
+   * @return The key object.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Key getKey() {
+    if (closed) {
+      throw new IllegalStateException("lease is closed");
+    }
+    return key;
+  }
+
+  /**
+   * Releases the lease. Further calls have no effect.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    releaser.release();
+  }
+
+  @Override
+  public String toString() {
+    return "KeyLease: handle=" + key.getObjectHandle()
+        + (closed ? " (closed)" : "");
+  }
+
+}
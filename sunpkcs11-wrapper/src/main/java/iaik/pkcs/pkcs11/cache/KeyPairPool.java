@@ -0,0 +1,580 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.Functions;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.CharArrayAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.KeyPair;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Keeps key pairs generated in advance, so that handing out a new key pair
+ * does not wait for the key generation, e.g. of large RSA keys. The pairs
+ * are generated per {@link Profile} (mechanism and templates) by background
+ * threads on sessions of a pool. When a pair is taken, its final label and
+ * ID are set with {@link Session#setAttributeValues}.
+ * <p/>
+ * The number of pairs kept ready adapts to the demand of each profile: it
+ * is the number of pairs requested during one generation, estimated from
+ * the average time between two requests and the average generation time,
+ * plus one; at least the minimum and at most the maximum given to the
+ * constructor. If no pair is ready, it is generated on the caller's session
+ * and the number is doubled.
+ * <p/>
+ * The pairs are created with the attributes of the templates; token objects
+ * that are ready but not taken yet are therefore visible on the token.
+ * {@link #close()} destroys them.
+ *
+ * <pre>
+ * <code>
+ *   KeyPairPool pool = new KeyPairPool(sessionPool, 2, 2, 16);
+ *   KeyPairPool.Profile rsa3072 = new KeyPairPool.Profile(
+ *       Mechanism.get(PKCS11Constants.CKM_RSA_PKCS_KEY_PAIR_GEN),
+ *       publicKeyTemplate, privateKeyTemplate);
+ *   pool.register(rsa3072);
+ *   ...
+ *   KeyPair pair = pool.take(rsa3072, session, label, id);
+ * </code>
+ * </pre>
+ *
+ * @invariants (sessionPool <> null) and (0 < minReady <= maxReady)
+ */
+public class KeyPairPool implements Closeable {
+
+  /**
+   * The mechanism and templates of the key pairs. The templates must not be
+   * modified after the profile was created.
+   */
+  public static final class Profile {
+
+    private final Mechanism mechanism;
+
+    private final PKCS11Object publicKeyTemplate;
+
+    private final PKCS11Object privateKeyTemplate;
+
+    private final String description;
+
+    /**
+     * Creates a new profile.
+     *
+     * @param mechanism
+     *          The key pair generation mechanism.
+     * @param publicKeyTemplate
+     *          The template for the public keys.
+     * @param privateKeyTemplate
+     *          The template for the private keys.
+     * @exception TokenException
+     *              If the attributes of a template cannot be read.
+     * @preconditions (mechanism <> null)
+     * @postconditions
+     */
+    public Profile(Mechanism mechanism, PKCS11Object publicKeyTemplate,
+        PKCS11Object privateKeyTemplate) throws TokenException {
+      this.mechanism = Util.requireNonNull("mechanism", mechanism);
+      this.publicKeyTemplate = publicKeyTemplate;
+      this.privateKeyTemplate = privateKeyTemplate;
+      this.description = HandleCache.describe(mechanism) + "|"
+          + HandleCache.describe(publicKeyTemplate) + "|"
+          + HandleCache.describe(privateKeyTemplate);
+    }
+
+    public Mechanism getMechanism() {
+      return mechanism;
+    }
+
+    public PKCS11Object getPublicKeyTemplate() {
+      return publicKeyTemplate;
+    }
+
+    public PKCS11Object getPrivateKeyTemplate() {
+      return privateKeyTemplate;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof Profile)) {
+        return false;
+      }
+
+      return description.equals(((Profile) otherObject).description);
+    }
+
+    @Override
+    public int hashCode() {
+      return description.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return Util.concatObjects("Profile: mechanism=",
+          Functions.mechanismCodeToString(mechanism.getMechanismCode()));
+    }
+
+  }
+
+  /**
+   * The ready pairs and the demand statistics of a profile.
+   */
+  private final class ProfileState {
+
+    private final Profile profile;
+
+    private final BlockingQueue<KeyPair> ready =
+        new LinkedBlockingQueue<>();
+
+    // guarded by this
+    private int target = minReady;
+
+    // guarded by this
+    private int generating;
+
+    // guarded by this
+    private long lastRequest;
+
+    // guarded by this
+    private long averageInterval;
+
+    // guarded by this
+    private long averageGeneration;
+
+    ProfileState(Profile profile) {
+      this.profile = profile;
+    }
+
+    synchronized void requested(long now, boolean hit) {
+      if (lastRequest != 0) {
+        averageInterval = average(averageInterval, now - lastRequest);
+      }
+      lastRequest = now;
+      if (!hit) {
+        target = Math.min(maxReady, 2 * target);
+      } else if (averageInterval > 0 && averageGeneration > 0) {
+        long needed = averageGeneration / averageInterval + 1;
+        target = (int) Math.max(minReady, Math.min(maxReady, needed));
+      }
+    }
+
+    synchronized void generated(long nanos) {
+      averageGeneration = average(averageGeneration, nanos);
+    }
+
+    synchronized int getTarget() {
+      return target;
+    }
+
+  }
+
+  private final SessionPool sessionPool;
+
+  private final int minReady;
+
+  private final int maxReady;
+
+  private final ExecutorService generators;
+
+  private final ConcurrentMap<Profile, ProfileState> states =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a new pool. Call {@link #close()} to stop the background
+   * generation and destroy the pairs not taken.
+   *
+   * @param sessionPool
+   *          The pool providing the sessions for the background generation.
+   * @param generatorThreads
+   *          The number of threads generating in the background. It is
+   *          capped by the maximal number of sessions of the pool minus one,
+   *          so that a session remains for the other users of the pool.
+   * @param minReady
+   *          The minimal number of pairs to keep ready per profile.
+   * @param maxReady
+   *          The maximal number of pairs to keep ready per profile.
+   * @preconditions (sessionPool <> null) and (generatorThreads > 0)
+   *                and (0 < minReady <= maxReady)
+   * @postconditions
+   */
+  public KeyPairPool(SessionPool sessionPool, int generatorThreads,
+      int minReady, int maxReady) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (generatorThreads < 1) {
+      throw new IllegalArgumentException(
+          "generatorThreads must be positive: " + generatorThreads);
+    }
+    if (minReady < 1) {
+      throw new IllegalArgumentException(
+          "minReady must be positive: " + minReady);
+    }
+    if (maxReady < minReady) {
+      throw new IllegalArgumentException(
+          "maxReady must not be less than minReady: " + maxReady);
+    }
+    this.minReady = minReady;
+    this.maxReady = maxReady;
+    int threads = Math.max(1,
+        Math.min(generatorThreads, sessionPool.getMaxSessions() - 1));
+    this.generators = Executors.newFixedThreadPool(threads,
+        new ThreadFactory() {
+          private final AtomicInteger counter = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "KeyPairPool-generator-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Registers a profile and starts generating its minimal number of pairs.
+   * Profiles are also registered by their first {@link #take}.
+   *
+   * @param profile
+   *          The profile.
+   * @preconditions (profile <> null)
+   * @postconditions
+   */
+  public void register(Profile profile) {
+    refill(getState(profile));
+  }
+
+  /**
+   * Takes a key pair of the given profile and sets its label and ID. If no
+   * pair is ready, a pair is generated with the given session.
+   *
+   * @param profile
+   *          The profile.
+   * @param session
+   *          The session to set the attributes with, and to generate with if
+   *          no pair is ready.
+   * @param label
+   *          The label to set on both keys, or null to keep the label of
+   *          the template.
+   * @param id
+   *          The ID to set on both keys, or null to keep the ID of the
+   *          template.
+   * @return The key pair. The attributes of the returned key objects are
+   *         those read after the generation, with label and ID updated.
+   * @exception TokenException
+   *              If generating or setting the attributes failed. If setting
+   *              the attributes failed, the pair has been destroyed.
+   * @preconditions (profile <> null) and (session <> null)
+   * @postconditions (result <> null)
+   */
+  public KeyPair take(Profile profile, Session session, char[] label,
+      byte[] id) throws TokenException {
+    Util.requireNonNull("session", session);
+    if (closed) {
+      throw new IllegalStateException("pool is closed");
+    }
+
+    ProfileState state = getState(profile);
+    KeyPair pair = state.ready.poll();
+    state.requested(System.nanoTime(), pair != null);
+    if (pair != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      long start = System.nanoTime();
+      pair = session.generateKeyPair(profile.mechanism,
+          profile.publicKeyTemplate, profile.privateKeyTemplate);
+      state.generated(System.nanoTime() - start);
+    }
+    refill(state);
+
+    if (label != null || id != null) {
+      GenericTemplate template = new GenericTemplate();
+      if (label != null) {
+        CharArrayAttribute labelAttribute =
+            new CharArrayAttribute(PKCS11Constants.CKA_LABEL);
+        labelAttribute.setCharArrayValue(label);
+        template.addAttribute(labelAttribute);
+      }
+      if (id != null) {
+        ByteArrayAttribute idAttribute =
+            new ByteArrayAttribute(PKCS11Constants.CKA_ID);
+        idAttribute.setByteArrayValue(id);
+        template.addAttribute(idAttribute);
+      }
+      try {
+        session.setAttributeValues(pair.getPublicKey(), template);
+        session.setAttributeValues(pair.getPrivateKey(), template);
+      } catch (TokenException | RuntimeException ex) {
+        // e.g. CKA_MODIFIABLE false; do not leave an unlabelled pair behind
+        destroy(session, pair);
+        throw ex;
+      }
+      if (label != null) {
+        pair.getPublicKey().getLabel().setCharArrayValue(label);
+        pair.getPrivateKey().getLabel().setCharArrayValue(label);
+      }
+      if (id != null) {
+        pair.getPublicKey().getId().setByteArrayValue(id);
+        pair.getPrivateKey().getId().setByteArrayValue(id);
+      }
+    }
+    return pair;
+  }
+
+  /**
+   * Gets the number of ready pairs of a profile.
+   *
+   * @param profile
+   *          The profile.
+   * @return The number of ready pairs.
+   * @preconditions (profile <> null)
+   * @postconditions (result >= 0)
+   */
+  public int getReadyCount(Profile profile) {
+    ProfileState state = states.get(profile);
+    return (state == null) ? 0 : state.ready.size();
+  }
+
+  /**
+   * Gets the number of pairs currently kept ready for a profile.
+   *
+   * @param profile
+   *          The profile.
+   * @return The target number of ready pairs.
+   * @preconditions (profile <> null)
+   * @postconditions (result >= 0)
+   */
+  public int getTargetCount(Profile profile) {
+    ProfileState state = states.get(profile);
+    return (state == null) ? 0 : state.getTarget();
+  }
+
+  /**
+   * Gets the number of takes served by a ready pair.
+   *
+   * @return The number of hits.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Gets the number of takes that had to generate on the caller's session.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Gets the number of failed background generations.
+   *
+   * @return The number of failures.
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * Stops the background generation and destroys the pairs not taken.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    generators.shutdownNow();
+
+    List<KeyPair> unused = new ArrayList<>();
+    for (ProfileState state : states.values()) {
+      state.ready.drainTo(unused);
+    }
+    destroy(unused);
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("KeyPairPool: profiles=", states.size(),
+        ", minReady=", minReady, ", maxReady=", maxReady, ", hits=",
+        hits.get(), ", misses=", misses.get(), ", failures=", failures.get());
+  }
+
+  private ProfileState getState(Profile profile) {
+    Util.requireNonNull("profile", profile);
+    ProfileState state = states.get(profile);
+    if (state == null) {
+      state = new ProfileState(profile);
+      ProfileState existing = states.putIfAbsent(profile, state);
+      if (existing != null) {
+        state = existing;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Schedules generations until the ready and the running generations reach
+   * the target.
+   */
+  private void refill(final ProfileState state) {
+    synchronized (state) {
+      while (!closed
+          && state.ready.size() + state.generating < state.target) {
+        state.generating++;
+        try {
+          generators.execute(new Runnable() {
+            @Override
+            public void run() {
+              generate(state);
+            }
+          });
+        } catch (RejectedExecutionException ex) {
+          // closed concurrently
+          state.generating--;
+          return;
+        }
+      }
+    }
+  }
+
+  private void generate(ProfileState state) {
+    KeyPair pair = null;
+    try {
+      Session session = sessionPool.borrowSession();
+      try {
+        long start = System.nanoTime();
+        pair = session.generateKeyPair(state.profile.mechanism,
+            state.profile.publicKeyTemplate,
+            state.profile.privateKeyTemplate);
+        state.generated(System.nanoTime() - start);
+      } finally {
+        sessionPool.returnSession(session);
+      }
+    } catch (TokenException | RuntimeException ex) {
+      // the next take generates itself and schedules a new refill
+      failures.incrementAndGet();
+    }
+
+    synchronized (state) {
+      state.generating--;
+      if (pair != null) {
+        state.ready.add(pair);
+      }
+    }
+    if (closed && pair != null && state.ready.remove(pair)) {
+      List<KeyPair> unused = new ArrayList<>(1);
+      unused.add(pair);
+      destroy(unused);
+    }
+  }
+
+  private void destroy(List<KeyPair> pairs) {
+    if (pairs.isEmpty()) {
+      return;
+    }
+
+    Session session;
+    try {
+      session = sessionPool.borrowSession();
+    } catch (TokenException ex) {
+      return;
+    }
+    try {
+      for (KeyPair pair : pairs) {
+        destroy(session, pair);
+      }
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  private static void destroy(Session session, KeyPair pair) {
+    try {
+      session.destroyObject(pair.getPublicKey());
+    } catch (TokenException ex) {
+      // already gone
+    }
+    try {
+      session.destroyObject(pair.getPrivateKey());
+    } catch (TokenException ex) {
+      // already gone
+    }
+  }
+
+  /**
+   * Exponential moving average with weight 1/4 for the new value.
+   */
+  private static long average(long average, long value) {
+    return (average == 0) ? value : average + (value - average) / 4;
+  }
+
+}
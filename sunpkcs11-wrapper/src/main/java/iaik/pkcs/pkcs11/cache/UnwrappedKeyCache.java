@@ -0,0 +1,242 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Caches the session keys created by {@link Session#unwrapKey}, so that
+ * unwrapping the same wrapped key again, e.g. the content-encryption key of
+ * an envelope that is decrypted repeatedly, is a lookup instead of a
+ * private key operation on the token.
+ * <p/>
+ * Entries are keyed by the unwrapping key, the mechanism with its
+ * parameters, the attributes of the template and the SHA-256 hash of the
+ * wrapped key; the wrapped key itself is not kept. They are evicted when the
+ * cache is full (least recently used first) or when their time to live
+ * has passed, and the evicted key objects are destroyed once their leases
+ * are closed. Use templates that create session objects (CKA_TOKEN false),
+ * since the cache destroys the keys it created.
+ *
+ * <pre>
+ * <code>
+ *   UnwrappedKeyCache cache = new UnwrappedKeyCache(sessionPool, 1000,
+ *       10, TimeUnit.MINUTES);
+ *   ...
+ *   try (KeyLease lease = cache.unwrapKey(session, oaepMechanism, rsaKey,
+ *       encryptedKey, aesTemplate)) {
+ *     session.decryptInit(contentMechanism, lease.getKey());
+ *     ...
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (cache <> null)
+ */
+public class UnwrappedKeyCache {
+
+  /**
+   * Identifies an unwrapped key.
+   */
+  private static final class CacheKey {
+
+    private final long unwrappingKeyHandle;
+
+    private final String mechanism;
+
+    private final String template;
+
+    private final byte[] wrappedKeyHash;
+
+    private final int hashCode;
+
+    CacheKey(long unwrappingKeyHandle, String mechanism, String template,
+        byte[] wrappedKeyHash) {
+      this.unwrappingKeyHandle = unwrappingKeyHandle;
+      this.mechanism = mechanism;
+      this.template = template;
+      this.wrappedKeyHash = wrappedKeyHash;
+      this.hashCode = Arrays.hashCode(wrappedKeyHash)
+          ^ (int) unwrappingKeyHandle;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof CacheKey)) {
+        return false;
+      }
+
+      CacheKey other = (CacheKey) otherObject;
+      return unwrappingKeyHandle == other.unwrappingKeyHandle
+          && Arrays.equals(wrappedKeyHash, other.wrappedKeyHash)
+          && mechanism.equals(other.mechanism)
+          && template.equals(other.template);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+  }
+
+  private final HandleCache<CacheKey> cache;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param sessionPool
+   *          The pool providing the sessions to destroy evicted keys with
+   *          in the background; a pool of the token the keys are unwrapped on.
+   * @param maxEntries
+   *          The maximal number of cached keys.
+   * @param ttl
+   *          The time to live of a cached key, counted from its creation.
+   * @param unit
+   *          The unit of <code>ttl</code>.
+   * @preconditions (sessionPool <> null) and (maxEntries > 0) and (ttl > 0)
+   *                and (unit <> null)
+   * @postconditions
+   */
+  public UnwrappedKeyCache(SessionPool sessionPool, int maxEntries, long ttl,
+      TimeUnit unit) {
+    this.cache = new HandleCache<>(sessionPool, maxEntries, ttl, unit);
+  }
+
+  /**
+   * Gets the cached key for the given wrapped key, or unwraps it with
+   * {@link Session#unwrapKey(Mechanism, Key, byte[], PKCS11Object)} and
+   * caches the new key.
+   *
+   * @param session
+   *          The session to unwrap with if the key is not cached.
+   * @param mechanism
+   *          The unwrapping mechanism.
+   * @param unwrappingKey
+   *          The unwrapping key.
+   * @param wrappedKey
+   *          The wrapped key.
+   * @param keyTemplate
+   *          The template for the unwrapped key.
+   * @return The lease of the unwrapped key; close it when done.
+   * @exception TokenException
+   *              If unwrapping failed.
+   * @preconditions (session <> null) and (mechanism <> null)
+   *                and (unwrappingKey <> null) and (wrappedKey <> null)
+   * @postconditions (result <> null)
+   */
+  public KeyLease unwrapKey(Session session, Mechanism mechanism,
+      Key unwrappingKey, byte[] wrappedKey, PKCS11Object keyTemplate)
+      throws TokenException {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("unwrappingKey", unwrappingKey);
+    Util.requireNonNull("wrappedKey", wrappedKey);
+
+    CacheKey cacheKey = new CacheKey(unwrappingKey.getObjectHandle(),
+        HandleCache.describe(mechanism), HandleCache.describe(keyTemplate),
+        HandleCache.hash(wrappedKey));
+    KeyLease lease = cache.acquire(cacheKey);
+    if (lease != null) {
+      return lease;
+    }
+
+    Key key = session.unwrapKey(mechanism, unwrappingKey, wrappedKey,
+        keyTemplate);
+    return cache.add(cacheKey, key);
+  }
+
+  /**
+   * Removes the expired keys and destroys those not leased. Expired keys are
+   * also removed when they are looked up; call this method periodically to
+   * free the token memory of keys that are not looked up again.
+   *
+   * @return The number of removed keys.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int purgeExpired() {
+    return cache.purgeExpired();
+  }
+
+  /**
+   * Removes all keys and destroys those not leased; leased keys are
+   * destroyed when their leases are closed.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  public long getEvictions() {
+    return cache.getEvictions();
+  }
+
+  @Override
+  public String toString() {
+    return "UnwrappedKeyCache: " + cache;
+  }
+
+}
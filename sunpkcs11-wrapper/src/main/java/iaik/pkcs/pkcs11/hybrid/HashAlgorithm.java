@@ -0,0 +1,248 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.hybrid;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+
+/**
+ * The hash algorithms for hashing in software. Each constant knows its JCA
+ * name, the PKCS#11 mechanism and MGF1 codes, and the DER encoding of the
+ * DigestInfo prefix for PKCS#1 v1.5 signatures, and keeps a pool of
+ * MessageDigest instances.
+ */
+public enum HashAlgorithm {
+
+  SHA1("SHA-1", 20, PKCS11Constants.CKM_SHA_1, PKCS11Constants.CKG_MGF1_SHA1,
+      "3021300906052b0e03021a05000414"),
+
+  SHA224("SHA-224", 28, PKCS11Constants.CKM_SHA224,
+      PKCS11Constants.CKG_MGF1_SHA224,
+      "302d300d06096086480165030402040500041c"),
+
+  SHA256("SHA-256", 32, PKCS11Constants.CKM_SHA256,
+      PKCS11Constants.CKG_MGF1_SHA256,
+      "3031300d060960864801650304020105000420"),
+
+  SHA384("SHA-384", 48, PKCS11Constants.CKM_SHA384,
+      PKCS11Constants.CKG_MGF1_SHA384,
+      "3041300d060960864801650304020205000430"),
+
+  SHA512("SHA-512", 64, PKCS11Constants.CKM_SHA512,
+      PKCS11Constants.CKG_MGF1_SHA512,
+      "3051300d060960864801650304020305000440"),
+
+  SHA3_224("SHA3-224", 28, PKCS11Constants.CKM_SHA3_224,
+      PKCS11Constants.CKG_MGF1_SHA3_224,
+      "302d300d06096086480165030402070500041c"),
+
+  SHA3_256("SHA3-256", 32, PKCS11Constants.CKM_SHA3_256,
+      PKCS11Constants.CKG_MGF1_SHA3_256,
+      "3031300d060960864801650304020805000420"),
+
+  SHA3_384("SHA3-384", 48, PKCS11Constants.CKM_SHA3_384,
+      PKCS11Constants.CKG_MGF1_SHA3_384,
+      "3041300d060960864801650304020905000430"),
+
+  SHA3_512("SHA3-512", 64, PKCS11Constants.CKM_SHA3_512,
+      PKCS11Constants.CKG_MGF1_SHA3_512,
+      "3051300d060960864801650304020a05000440");
+
+  /**
+   * The maximal number of idle MessageDigest instances kept per algorithm.
+   */
+  private static final int MAX_POOLED = 64;
+
+  private final String jcaName;
+
+  private final int digestLength;
+
+  private final long mechanismCode;
+
+  private final long mgf;
+
+  private final byte[] digestInfoPrefix;
+
+  private final Queue<MessageDigest> pool =
+      new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  private HashAlgorithm(String jcaName, int digestLength, long mechanismCode,
+      long mgf, String digestInfoPrefix) {
+    this.jcaName = jcaName;
+    this.digestLength = digestLength;
+    this.mechanismCode = mechanismCode;
+    this.mgf = mgf;
+    this.digestInfoPrefix = decodeHex(digestInfoPrefix);
+  }
+
+  public String getJcaName() {
+    return jcaName;
+  }
+
+  public int getDigestLength() {
+    return digestLength;
+  }
+
+  /**
+   * @return The code of the PKCS#11 digest mechanism; e.g. CKM_SHA256.
+   */
+  public long getMechanismCode() {
+    return mechanismCode;
+  }
+
+  /**
+   * @return The code of the MGF1 variant using this hash; e.g.
+   *         CKG_MGF1_SHA256.
+   */
+  public long getMaskGenerationFunction() {
+    return mgf;
+  }
+
+  /**
+   * @return The length of the DigestInfo prefix.
+   */
+  public int getDigestInfoPrefixLength() {
+    return digestInfoPrefix.length;
+  }
+
+  /**
+   * Encodes the DigestInfo of the given digest as input for CKM_RSA_PKCS.
+   *
+   * @param digest
+   *          The digest computed with this algorithm.
+   * @return The DER-encoded DigestInfo.
+   * @preconditions (digest <> null) and (digest.length == getDigestLength())
+   * @postconditions (result <> null)
+   */
+  public byte[] encodeDigestInfo(byte[] digest) {
+    if (digest.length != digestLength) {
+      throw new IllegalArgumentException("digest must have " + digestLength
+          + " bytes, but has " + digest.length);
+    }
+
+    byte[] digestInfo = new byte[digestInfoPrefix.length + digestLength];
+    System.arraycopy(digestInfoPrefix, 0, digestInfo, 0,
+        digestInfoPrefix.length);
+    System.arraycopy(digest, 0, digestInfo, digestInfoPrefix.length,
+        digestLength);
+    return digestInfo;
+  }
+
+  /**
+   * Gets a MessageDigest of this algorithm from the pool, or creates a new
+   * one. Hand it back via {@link #release(MessageDigest)}.
+   *
+   * @return A MessageDigest in its initial state.
+   * @exception NoSuchAlgorithmException
+   *              If no provider supports this algorithm.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public MessageDigest acquire() throws NoSuchAlgorithmException {
+    MessageDigest md = pool.poll();
+    if (md == null) {
+      return MessageDigest.getInstance(jcaName);
+    }
+    pooled.decrementAndGet();
+    return md;
+  }
+
+  /**
+   * Resets the given MessageDigest and returns it to the pool.
+   *
+   * @param md
+   *          A MessageDigest got from {@link #acquire()}.
+   * @preconditions (md <> null)
+   * @postconditions
+   */
+  public void release(MessageDigest md) {
+    md.reset();
+    if (pooled.incrementAndGet() <= MAX_POOLED) {
+      pool.offer(md);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * Hashes the given data with a pooled MessageDigest.
+   *
+   * @param data
+   *          The data to hash.
+   * @param offset
+   *          The offset of the data.
+   * @param length
+   *          The length of the data.
+   * @return The digest.
+   * @exception NoSuchAlgorithmException
+   *              If no provider supports this algorithm.
+   * @preconditions (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] digest(byte[] data, int offset, int length)
+      throws NoSuchAlgorithmException {
+    MessageDigest md = acquire();
+    try {
+      md.update(data, offset, length);
+      return md.digest();
+    } finally {
+      release(md);
+    }
+  }
+
+  private static byte[] decodeHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,306 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.hybrid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.params.RSAPkcsPssParams;
+
+/**
+ * Creates signatures by hashing in software and signing only the digest on
+ * the token, with the raw mechanisms CKM_RSA_PKCS, CKM_RSA_PKCS_PSS and
+ * CKM_ECDSA. Compared to the combined mechanisms like CKM_SHA256_RSA_PKCS,
+ * the data never crosses the JNI boundary or the link to the token; this
+ * matters for large documents and for tokens attached via USB or network.
+ * <p/>
+ * For PKCS#1 v1.5 the DigestInfo is built from a constant prefix per hash
+ * algorithm. The signature mechanism, including the PSS parameters, is
+ * built once per signer. Instances are immutable and can be shared by
+ * threads.
+ *
+ * <pre>
+ * <code>
+ *   HybridSigner signer = new HybridSigner(
+ *       HybridSigner.Scheme.RSA_PKCS1, HashAlgorithm.SHA256);
+ *   byte[] signature = signer.sign(session, privateKey, document);
+ * </code>
+ * </pre>
+ *
+ * @invariants (scheme <> null) and (hashAlgorithm <> null)
+ *             and (mechanism <> null)
+ */
+public class HybridSigner {
+
+  /**
+   * The signature schemes.
+   */
+  public enum Scheme {
+
+    /**
+     * RSA PKCS#1 v1.5; the token signs the DigestInfo with CKM_RSA_PKCS.
+     */
+    RSA_PKCS1,
+
+    /**
+     * RSA PSS with MGF1 over the same hash and a salt of the digest length;
+     * the token signs the digest with CKM_RSA_PKCS_PSS.
+     */
+    RSA_PSS,
+
+    /**
+     * ECDSA; the token signs the digest with CKM_ECDSA.
+     */
+    ECDSA
+
+  }
+
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  private final Scheme scheme;
+
+  private final HashAlgorithm hashAlgorithm;
+
+  private final Mechanism mechanism;
+
+  /**
+   * Creates a new signer.
+   *
+   * @param scheme
+   *          The signature scheme.
+   * @param hashAlgorithm
+   *          The hash algorithm.
+   * @exception NoSuchAlgorithmException
+   *              If no provider supports the hash algorithm.
+   * @preconditions (scheme <> null) and (hashAlgorithm <> null)
+   * @postconditions
+   */
+  public HybridSigner(Scheme scheme, HashAlgorithm hashAlgorithm)
+      throws NoSuchAlgorithmException {
+    this.scheme = Util.requireNonNull("scheme", scheme);
+    this.hashAlgorithm = Util.requireNonNull("hashAlgorithm", hashAlgorithm);
+    // fail early and warm up the pool
+    hashAlgorithm.release(hashAlgorithm.acquire());
+
+    switch (scheme) {
+      case RSA_PKCS1:
+        mechanism = Mechanism.getShared(PKCS11Constants.CKM_RSA_PKCS);
+        break;
+      case RSA_PSS:
+        mechanism = Mechanism.getImmutable(PKCS11Constants.CKM_RSA_PKCS_PSS,
+            new RSAPkcsPssParams(
+                Mechanism.get(hashAlgorithm.getMechanismCode()),
+                hashAlgorithm.getMaskGenerationFunction(),
+                hashAlgorithm.getDigestLength()));
+        break;
+      default:
+        mechanism = Mechanism.getShared(PKCS11Constants.CKM_ECDSA);
+        break;
+    }
+  }
+
+  public Scheme getScheme() {
+    return scheme;
+  }
+
+  public HashAlgorithm getHashAlgorithm() {
+    return hashAlgorithm;
+  }
+
+  /**
+   * Gets the immutable mechanism passed to the token.
+   *
+   * @return The token mechanism.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Mechanism getMechanism() {
+    return mechanism;
+  }
+
+  /**
+   * Hashes the given data in software and signs the digest on the token.
+   *
+   * @param session
+   *          The session to sign with.
+   * @param key
+   *          The private key.
+   * @param data
+   *          The data to sign.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing failed.
+   * @preconditions (session <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] sign(Session session, Key key, byte[] data)
+      throws TokenException {
+    return sign(session, key, data, 0, data.length);
+  }
+
+  /**
+   * Hashes the given part of the data in software and signs the digest on
+   * the token.
+   *
+   * @param session
+   *          The session to sign with.
+   * @param key
+   *          The private key.
+   * @param data
+   *          The data to sign.
+   * @param offset
+   *          The offset of the data.
+   * @param length
+   *          The length of the data.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing failed.
+   * @preconditions (session <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] sign(Session session, Key key, byte[] data, int offset,
+      int length) throws TokenException {
+    Util.requireNonNull("data", data);
+    byte[] digest;
+    try {
+      digest = hashAlgorithm.digest(data, offset, length);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new TokenException(ex);
+    }
+    return signDigest(session, key, digest);
+  }
+
+  /**
+   * Hashes the content of the given stream in software and signs the digest
+   * on the token. The stream is read to its end but not closed.
+   *
+   * @param session
+   *          The session to sign with.
+   * @param key
+   *          The private key.
+   * @param data
+   *          The stream providing the data to sign.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing failed.
+   * @exception IOException
+   *              If reading the stream failed.
+   * @preconditions (session <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] sign(Session session, Key key, InputStream data)
+      throws TokenException, IOException {
+    Util.requireNonNull("data", data);
+    byte[] digest;
+    MessageDigest md;
+    try {
+      md = hashAlgorithm.acquire();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new TokenException(ex);
+    }
+    try {
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+        md.update(buffer, 0, read);
+      }
+      digest = md.digest();
+    } finally {
+      hashAlgorithm.release(md);
+    }
+    return signDigest(session, key, digest);
+  }
+
+  /**
+   * Signs a digest computed by the caller with the hash algorithm of this
+   * signer.
+   *
+   * @param session
+   *          The session to sign with.
+   * @param key
+   *          The private key.
+   * @param digest
+   *          The digest.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing failed.
+   * @preconditions (session <> null) and (key <> null) and (digest <> null)
+   *                and (digest.length == getHashAlgorithm().getDigestLength())
+   * @postconditions (result <> null)
+   */
+  public byte[] signDigest(Session session, Key key, byte[] digest)
+      throws TokenException {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("digest", digest);
+
+    byte[] toBeSigned;
+    if (scheme == Scheme.RSA_PKCS1) {
+      toBeSigned = hashAlgorithm.encodeDigestInfo(digest);
+    } else if (digest.length != hashAlgorithm.getDigestLength()) {
+      throw new IllegalArgumentException("digest must have "
+          + hashAlgorithm.getDigestLength() + " bytes, but has "
+          + digest.length);
+    } else {
+      toBeSigned = digest;
+    }
+
+    session.signInit(mechanism, key);
+    return session.sign(toBeSigned);
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("HybridSigner (", scheme, " with ",
+        hashAlgorithm.getJcaName(), ")");
+  }
+
+}
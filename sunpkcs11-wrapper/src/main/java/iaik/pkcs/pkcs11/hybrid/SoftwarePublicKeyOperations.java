@@ -0,0 +1,641 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.hybrid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import javax.crypto.Cipher;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Performs signature verification and public-key encryption in software
+ * instead of on the token. These operations involve no secret material, and
+ * the CPU usually handles them faster and in parallel, which leaves the
+ * token time for the private-key operations.
+ * <p/>
+ * The public key is read from the token once per key handle, from an RSA or
+ * EC public key object or from an X.509 certificate object, and the
+ * resulting JCA PublicKey is cached. Mechanisms without a software
+ * equivalent, e.g. PSS or OAEP with parameters, and keys which cannot be
+ * converted are processed on the token with a session of the pool. With
+ * {@link Policy#TOKEN_ONLY}, all operations are processed on the token,
+ * e.g. where compliance requires it.
+ * <p/>
+ * Like {@link Session#verify(byte[], byte[])}, the verify methods return
+ * normally if the signature is valid and throw a PKCS11Exception with
+ * CKR_SIGNATURE_INVALID otherwise.
+ *
+ * <pre>
+ * <code>
+ *   SoftwarePublicKeyOperations verifier = new SoftwarePublicKeyOperations(
+ *       sessionPool, executor, SoftwarePublicKeyOperations.Policy.SOFTWARE);
+ *   verifier.verify(Mechanism.get(PKCS11Constants.CKM_SHA256_RSA_PKCS),
+ *       publicKey, data, signature);
+ * </code>
+ * </pre>
+ *
+ * @invariants (sessionPool <> null) and (executor <> null)
+ *             and (policy <> null)
+ */
+public class SoftwarePublicKeyOperations {
+
+  /**
+   * Where the operations are performed.
+   */
+  public enum Policy {
+
+    /**
+     * In software where possible, otherwise on the token.
+     */
+    SOFTWARE,
+
+    /**
+     * Always on the token.
+     */
+    TOKEN_ONLY
+
+  }
+
+  /**
+   * The JCA signature algorithms per PKCS#11 mechanism. For the ECDSA
+   * mechanisms, the raw signature is converted to DER.
+   */
+  private static final class SignatureAlgorithmsHolder {
+
+    private static final Map<Long, String> ALGORITHMS;
+
+    static {
+      Map<Long, String> map = new HashMap<>();
+      map.put(PKCS11Constants.CKM_RSA_PKCS, "NONEwithRSA");
+      map.put(PKCS11Constants.CKM_SHA1_RSA_PKCS, "SHA1withRSA");
+      map.put(PKCS11Constants.CKM_SHA224_RSA_PKCS, "SHA224withRSA");
+      map.put(PKCS11Constants.CKM_SHA256_RSA_PKCS, "SHA256withRSA");
+      map.put(PKCS11Constants.CKM_SHA384_RSA_PKCS, "SHA384withRSA");
+      map.put(PKCS11Constants.CKM_SHA512_RSA_PKCS, "SHA512withRSA");
+      map.put(PKCS11Constants.CKM_ECDSA, "NONEwithECDSA");
+      map.put(PKCS11Constants.CKM_ECDSA_SHA1, "SHA1withECDSA");
+      map.put(PKCS11Constants.CKM_ECDSA_SHA224, "SHA224withECDSA");
+      map.put(PKCS11Constants.CKM_ECDSA_SHA256, "SHA256withECDSA");
+      map.put(PKCS11Constants.CKM_ECDSA_SHA384, "SHA384withECDSA");
+      map.put(PKCS11Constants.CKM_ECDSA_SHA512, "SHA512withECDSA");
+      ALGORITHMS = map;
+    }
+
+  }
+
+  /**
+   * DER encoding of the OID id-ecPublicKey.
+   */
+  private static final byte[] EC_PUBLIC_KEY_OID = new byte[] {
+    0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01 };
+
+  private final SessionPool sessionPool;
+
+  private final Executor executor;
+
+  private final Policy policy;
+
+  /**
+   * The converted public keys by object handle. Keys which cannot be
+   * converted are mapped to the key itself as marker.
+   */
+  private final ConcurrentMap<Long, Object> publicKeys =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new instance.
+   *
+   * @param sessionPool
+   *          The pool providing the sessions for reading public keys and
+   *          for the operations on the token.
+   * @param executor
+   *          The executor running the asynchronous operations.
+   * @param policy
+   *          Where to perform the operations.
+   * @preconditions (sessionPool <> null) and (executor <> null)
+   *                and (policy <> null)
+   * @postconditions
+   */
+  public SoftwarePublicKeyOperations(SessionPool sessionPool,
+      Executor executor, Policy policy) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    this.executor = Util.requireNonNull("executor", executor);
+    this.policy = Util.requireNonNull("policy", policy);
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Verifies the signature in the calling thread.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The token public key or certificate.
+   * @param data
+   *          The signed data.
+   * @param signature
+   *          The signature to verify.
+   * @exception TokenException
+   *              If the signature is invalid or verifying failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   *                and (signature <> null)
+   * @postconditions
+   */
+  public void verify(Mechanism mechanism, PKCS11Object key, byte[] data,
+      byte[] signature) throws TokenException {
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("data", data);
+    Util.requireNonNull("signature", signature);
+
+    String algorithm = SignatureAlgorithmsHolder.ALGORITHMS.get(
+        mechanism.getMechanismCode());
+    PublicKey publicKey = (algorithm == null || mechanism.getParams() != null)
+        ? null : getPublicKey(key);
+    if (publicKey == null) {
+      verifyOnToken(mechanism, key, data, signature);
+      return;
+    }
+
+    boolean valid;
+    try {
+      Signature verifier = Signature.getInstance(algorithm);
+      verifier.initVerify(publicKey);
+      verifier.update(data);
+      valid = verifier.verify(algorithm.endsWith("ECDSA")
+          ? encodeEcdsaSignature(signature) : signature);
+    } catch (java.security.SignatureException ex) {
+      // malformed signature
+      valid = false;
+    } catch (GeneralSecurityException ex) {
+      throw new TokenException(ex);
+    }
+
+    if (!valid) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_SIGNATURE_INVALID);
+    }
+  }
+
+  /**
+   * Verifies the signature asynchronously on the executor.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The token public key or certificate.
+   * @param data
+   *          The signed data.
+   * @param signature
+   *          The signature to verify.
+   * @return The future, which completes normally if the signature is valid
+   *         and exceptionally with a TokenException otherwise.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   *                and (signature <> null)
+   * @postconditions (result <> null)
+   */
+  public CompletableFuture<Void> verifyAsync(final Mechanism mechanism,
+      final PKCS11Object key, final byte[] data, final byte[] signature) {
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          verify(mechanism, key, data, signature);
+          future.complete(null);
+        } catch (Throwable th) {
+          future.completeExceptionally(th);
+        }
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Encrypts the data in the calling thread. Software encryption supports
+   * CKM_RSA_PKCS and CKM_RSA_X_509.
+   *
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The token public key or certificate.
+   * @param data
+   *          The data to encrypt.
+   * @return The ciphertext.
+   * @exception TokenException
+   *              If encrypting failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] encrypt(Mechanism mechanism, PKCS11Object key, byte[] data)
+      throws TokenException {
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("data", data);
+
+    long code = mechanism.getMechanismCode();
+    String transformation;
+    if (code == PKCS11Constants.CKM_RSA_PKCS) {
+      transformation = "RSA/ECB/PKCS1Padding";
+    } else if (code == PKCS11Constants.CKM_RSA_X_509) {
+      transformation = "RSA/ECB/NoPadding";
+    } else {
+      transformation = null;
+    }
+
+    PublicKey publicKey = (transformation == null) ? null : getPublicKey(key);
+    if (publicKey == null || !"RSA".equals(publicKey.getAlgorithm())) {
+      return encryptOnToken(mechanism, key, data);
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance(transformation);
+      cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+      return cipher.doFinal(data);
+    } catch (GeneralSecurityException ex) {
+      throw new TokenException(ex);
+    }
+  }
+
+  /**
+   * Encrypts the data asynchronously on the executor.
+   *
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The token public key or certificate.
+   * @param data
+   *          The data to encrypt.
+   * @return The future ciphertext. It completes exceptionally with a
+   *         TokenException if encrypting failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (data <> null)
+   * @postconditions (result <> null)
+   */
+  public CompletableFuture<byte[]> encryptAsync(final Mechanism mechanism,
+      final PKCS11Object key, final byte[] data) {
+    final CompletableFuture<byte[]> future = new CompletableFuture<>();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          future.complete(encrypt(mechanism, key, data));
+        } catch (Throwable th) {
+          future.completeExceptionally(th);
+        }
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Gets the JCA public key of the given token public key or certificate.
+   * It is read from the token on first use and cached.
+   *
+   * @param key
+   *          The token public key or certificate.
+   * @return The public key, or null if the policy is
+   *         {@link Policy#TOKEN_ONLY} or the key cannot be converted.
+   * @exception TokenException
+   *              If reading the key from the token failed.
+   * @preconditions (key <> null)
+   * @postconditions
+   */
+  public PublicKey getPublicKey(PKCS11Object key) throws TokenException {
+    if (policy == Policy.TOKEN_ONLY) {
+      return null;
+    }
+
+    Long handle = key.getObjectHandle();
+    Object cached = publicKeys.get(handle);
+    if (cached == null) {
+      Session session = sessionPool.borrowSession();
+      try {
+        cached = readPublicKey(session, handle);
+      } finally {
+        sessionPool.returnSession(session);
+      }
+      if (cached == null) {
+        cached = handle;
+      }
+      publicKeys.put(handle, cached);
+    }
+    return (cached instanceof PublicKey) ? (PublicKey) cached : null;
+  }
+
+  /**
+   * Sets the public key of the given token object, e.g. from a certificate
+   * the application already holds.
+   *
+   * @param key
+   *          The token public key or certificate.
+   * @param publicKey
+   *          The corresponding JCA public key.
+   * @preconditions (key <> null) and (publicKey <> null)
+   * @postconditions
+   */
+  public void setPublicKey(PKCS11Object key, PublicKey publicKey) {
+    publicKeys.put(key.getObjectHandle(),
+        Util.requireNonNull("publicKey", publicKey));
+  }
+
+  /**
+   * Removes the cached public key of the given token object.
+   *
+   * @param key
+   *          The token public key or certificate.
+   * @preconditions (key <> null)
+   * @postconditions
+   */
+  public void forget(PKCS11Object key) {
+    publicKeys.remove(key.getObjectHandle());
+  }
+
+  private void verifyOnToken(Mechanism mechanism, PKCS11Object key,
+      byte[] data, byte[] signature) throws TokenException {
+    Session session = sessionPool.borrowSession();
+    try {
+      session.verifyInit(mechanism, toKey(key));
+      session.verify(data, signature);
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  private byte[] encryptOnToken(Mechanism mechanism, PKCS11Object key,
+      byte[] data) throws TokenException {
+    Session session = sessionPool.borrowSession();
+    try {
+      session.encryptInit(mechanism, toKey(key));
+      // RSA moduli up to 8192 bits
+      byte[] out = new byte[Math.max(data.length + 64, 1024)];
+      int len = session.encrypt(data, 0, data.length, out, 0, out.length);
+      byte[] result = new byte[len];
+      System.arraycopy(out, 0, result, 0, len);
+      return result;
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+  private static Key toKey(PKCS11Object object) throws TokenException {
+    if (!(object instanceof Key)) {
+      throw new TokenException(
+          "the token operation requires a key object, not " +
+          object.getClass().getName());
+    }
+    return (Key) object;
+  }
+
+  private static PublicKey readPublicKey(Session session, long handle)
+      throws TokenException {
+    LongAttribute objectClass = new LongAttribute(Attribute.CLASS);
+    if (PKCS11Object.probeAttributeValue(session, handle, objectClass)
+        != PKCS11Constants.CKR_OK || objectClass.getLongValue() == null) {
+      return null;
+    }
+
+    try {
+      if (objectClass.getLongValue() == PKCS11Constants.CKO_CERTIFICATE) {
+        byte[] encoded = readBytes(session, handle, Attribute.VALUE);
+        return (encoded == null) ? null
+            : CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(encoded)).getPublicKey();
+      }
+
+      LongAttribute keyType = new LongAttribute(Attribute.KEY_TYPE);
+      if (PKCS11Object.probeAttributeValue(session, handle, keyType)
+          != PKCS11Constants.CKR_OK || keyType.getLongValue() == null) {
+        return null;
+      }
+
+      long type = keyType.getLongValue();
+      if (type == PKCS11Constants.CKK_RSA) {
+        byte[] modulus = readBytes(session, handle, Attribute.MODULUS);
+        byte[] exponent = readBytes(session, handle,
+            Attribute.PUBLIC_EXPONENT);
+        if (modulus == null || exponent == null) {
+          return null;
+        }
+        return KeyFactory.getInstance("RSA").generatePublic(
+            new RSAPublicKeySpec(new BigInteger(1, modulus),
+                new BigInteger(1, exponent)));
+      } else if (type == PKCS11Constants.CKK_EC) {
+        byte[] params = readBytes(session, handle, Attribute.EC_PARAMS);
+        byte[] point = readBytes(session, handle, Attribute.EC_POINT);
+        if (params == null || point == null) {
+          return null;
+        }
+        return KeyFactory.getInstance("EC").generatePublic(
+            new X509EncodedKeySpec(encodeEcPublicKey(params, point)));
+      }
+      return null;
+    } catch (GeneralSecurityException ex) {
+      // e.g. unsupported curve; use the token
+      return null;
+    }
+  }
+
+  private static byte[] readBytes(Session session, long handle, Long type)
+      throws TokenException {
+    ByteArrayAttribute attribute = new ByteArrayAttribute(type);
+    if (PKCS11Object.probeAttributeValue(session, handle, attribute)
+        != PKCS11Constants.CKR_OK) {
+      return null;
+    }
+    return attribute.getByteArrayValue();
+  }
+
+  /**
+   * Encodes the SubjectPublicKeyInfo of an EC public key.
+   */
+  private static byte[] encodeEcPublicKey(byte[] params, byte[] point)
+      throws GeneralSecurityException {
+    // CKA_EC_POINT is a DER OCTET STRING, but some modules omit it. Both
+    // the OCTET STRING and an uncompressed point start with 0x04, so the
+    // length tells them apart.
+    int fieldLength = getFieldLength(params);
+    if (point.length != 2 * fieldLength + 1 && point.length != fieldLength + 1
+        && point.length > 2 && point[0] == 0x04) {
+      int[] header = parseLength(point, 1);
+      if (header != null && header[0] + header[1] == point.length) {
+        byte[] raw = new byte[header[1]];
+        System.arraycopy(point, header[0], raw, 0, raw.length);
+        point = raw;
+      }
+    }
+
+    byte[] bitString = new byte[point.length + 1];
+    System.arraycopy(point, 0, bitString, 1, point.length);
+
+    ByteArrayOutputStream algorithm = new ByteArrayOutputStream();
+    algorithm.write(EC_PUBLIC_KEY_OID, 0, EC_PUBLIC_KEY_OID.length);
+    algorithm.write(params, 0, params.length);
+
+    ByteArrayOutputStream info = new ByteArrayOutputStream();
+    writeTlv(info, 0x30, algorithm.toByteArray());
+    writeTlv(info, 0x03, bitString);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTlv(out, 0x30, info.toByteArray());
+    return out.toByteArray();
+  }
+
+  /**
+   * Gets the length in bytes of a field element of the given curve.
+   */
+  private static int getFieldLength(byte[] params)
+      throws GeneralSecurityException {
+    AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+    try {
+      parameters.init(params);
+    } catch (IOException ex) {
+      throw new InvalidAlgorithmParameterException(ex);
+    }
+    ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+    return (spec.getCurve().getField().getFieldSize() + 7) / 8;
+  }
+
+  /**
+   * Converts a PKCS#11 ECDSA signature (r || s) to the DER encoding the JCA
+   * expects.
+   */
+  private static byte[] encodeEcdsaSignature(byte[] signature) {
+    if (signature.length == 0 || signature.length % 2 != 0) {
+      // let the verifier reject it
+      return signature;
+    }
+
+    int half = signature.length / 2;
+    byte[] r = new byte[half];
+    byte[] s = new byte[half];
+    System.arraycopy(signature, 0, r, 0, half);
+    System.arraycopy(signature, half, s, 0, half);
+
+    ByteArrayOutputStream integers = new ByteArrayOutputStream();
+    writeTlv(integers, 0x02, new BigInteger(1, r).toByteArray());
+    writeTlv(integers, 0x02, new BigInteger(1, s).toByteArray());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTlv(out, 0x30, integers.toByteArray());
+    return out.toByteArray();
+  }
+
+  private static void writeTlv(ByteArrayOutputStream out, int tag,
+      byte[] value) {
+    out.write(tag);
+    int len = value.length;
+    if (len < 0x80) {
+      out.write(len);
+    } else if (len < 0x100) {
+      out.write(0x81);
+      out.write(len);
+    } else {
+      out.write(0x82);
+      out.write(len >>> 8);
+      out.write(len);
+    }
+    out.write(value, 0, len);
+  }
+
+  /**
+   * Parses a DER length.
+   *
+   * @return {offset of the value, length of the value}, or null.
+   */
+  private static int[] parseLength(byte[] encoded, int offset) {
+    int first = encoded[offset] & 0xff;
+    if (first < 0x80) {
+      return new int[] { offset + 1, first };
+    }
+
+    int numBytes = first & 0x7f;
+    if (numBytes == 0 || numBytes > 2 || offset + numBytes >= encoded.length) {
+      return null;
+    }
+    int len = 0;
+    for (int i = 1; i <= numBytes; i++) {
+      len = (len << 8) | (encoded[offset + i] & 0xff);
+    }
+    return new int[] { offset + 1 + numBytes, len };
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("SoftwarePublicKeyOperations (policy: ",
+        policy, ", cached keys: ", publicKeys.size(), ")");
+  }
+
+}
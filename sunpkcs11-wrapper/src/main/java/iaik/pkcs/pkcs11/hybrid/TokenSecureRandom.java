@@ -0,0 +1,123 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.hybrid;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+
+import iaik.pkcs.pkcs11.SessionPool;
+
+/**
+ * A SecureRandom drawing its bytes from a token via a prefetching
+ * {@link TokenSecureRandomSpi}.
+ *
+ * <pre>
+ * <code>
+ *   TokenSecureRandom random = new TokenSecureRandom(sessionPool);
+ *   byte[] nonce = new byte[16];
+ *   random.nextBytes(nonce);
+ *   ...
+ *   random.close();
+ * </code>
+ * </pre>
+ */
+public class TokenSecureRandom extends SecureRandom {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default ring buffer size.
+   */
+  public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+  /**
+   * The default number of bytes requested from the token per call.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+  private static final Provider PROVIDER = new Provider("PKCS11Wrapper", 1.0,
+      "PKCS#11 token random number generator") {
+    private static final long serialVersionUID = 1L;
+  };
+
+  private final transient TokenSecureRandomSpi spi;
+
+  /**
+   * Creates a new instance with a ring buffer of {@link #DEFAULT_CAPACITY}
+   * bytes, refilled in chunks of {@link #DEFAULT_CHUNK_SIZE} bytes when it is
+   * less than a quarter full. Seeds are not passed to the token.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from.
+   * @preconditions (sessionPool <> null)
+   * @postconditions
+   */
+  public TokenSecureRandom(SessionPool sessionPool) {
+    this(new TokenSecureRandomSpi(sessionPool, DEFAULT_CAPACITY,
+        DEFAULT_CAPACITY / 4, DEFAULT_CAPACITY, DEFAULT_CHUNK_SIZE, false));
+  }
+
+  /**
+   * Creates a new instance using the given SPI.
+   *
+   * @param spi
+   *          The configured SPI.
+   * @preconditions (spi <> null)
+   * @postconditions
+   */
+  public TokenSecureRandom(TokenSecureRandomSpi spi) {
+    super(spi, PROVIDER);
+    this.spi = spi;
+  }
+
+  /**
+   * Stops the refill thread and wipes the buffered bytes.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void close() {
+    spi.close();
+  }
+
+}
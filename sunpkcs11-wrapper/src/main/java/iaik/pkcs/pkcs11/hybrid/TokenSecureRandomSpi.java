@@ -0,0 +1,357 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.hybrid;
+
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.TokenRuntimeException;
+import iaik.pkcs.pkcs11.Util;
+
+/**
+ * A SecureRandomSpi serving random bytes of a token from memory. A ring
+ * buffer is refilled by a background thread in large chunks via
+ * {@link Session#generateRandom(byte[], int, int)}: whenever it holds less
+ * than the low watermark, the thread refills it up to the high watermark.
+ * Thus small draws, e.g. nonces, rarely wait for a round trip to the token.
+ * Consumed bytes are zeroised in the ring buffer.
+ * <p/>
+ * Seeds passed to {@link #engineSetSeed(byte[])} are mixed into the token's
+ * generator via {@link Session#seedRandom(byte[])} if enabled, and are
+ * ignored otherwise; many tokens do not accept seeds.
+ * <p/>
+ * Call {@link #close()} to stop the refill thread.
+ *
+ * @invariants (sessionPool <> null)
+ *             and (0 < lowWatermark < highWatermark <= capacity)
+ *             and (0 < chunkSize <= capacity - lowWatermark)
+ */
+public class TokenSecureRandomSpi extends SecureRandomSpi {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The time to wait before retrying after a failed refill.
+   */
+  private static final long RETRY_DELAY_MILLIS = 100;
+
+  private final transient SessionPool sessionPool;
+
+  private final boolean seedingEnabled;
+
+  private final int lowWatermark;
+
+  private final int highWatermark;
+
+  private final transient byte[] ring;
+
+  private final transient byte[] chunk;
+
+  private final transient ReentrantLock lock = new ReentrantLock();
+
+  private final transient Condition dataAvailable = lock.newCondition();
+
+  private final transient Condition refillNeeded = lock.newCondition();
+
+  /**
+   * The index of the next byte to consume.
+   */
+  private int head;
+
+  /**
+   * The number of bytes available.
+   */
+  private int count;
+
+  private TokenException failure;
+
+  private volatile boolean closed;
+
+  private final transient Thread refiller;
+
+  /**
+   * Creates a new SPI and starts its refill thread.
+   *
+   * @param sessionPool
+   *          The pool to borrow the sessions from.
+   * @param capacity
+   *          The size of the ring buffer; e.g. 64 KiB.
+   * @param lowWatermark
+   *          Refilling starts when fewer bytes are available.
+   * @param highWatermark
+   *          Refilling stops when at least this many bytes are available.
+   * @param chunkSize
+   *          The number of bytes requested from the token per call.
+   * @param seedingEnabled
+   *          Whether to pass seeds to the token.
+   * @preconditions (sessionPool <> null)
+   *                and (0 < lowWatermark < highWatermark <= capacity)
+   *                and (0 < chunkSize <= capacity - lowWatermark)
+   * @postconditions
+   */
+  public TokenSecureRandomSpi(SessionPool sessionPool, int capacity,
+      int lowWatermark, int highWatermark, int chunkSize,
+      boolean seedingEnabled) {
+    this.sessionPool = Util.requireNonNull("sessionPool", sessionPool);
+    if (lowWatermark <= 0 || lowWatermark >= highWatermark
+        || highWatermark > capacity) {
+      throw new IllegalArgumentException("0 < lowWatermark (" + lowWatermark
+          + ") < highWatermark (" + highWatermark + ") <= capacity ("
+          + capacity + ") required");
+    }
+    if (chunkSize <= 0 || lowWatermark > capacity - chunkSize) {
+      throw new IllegalArgumentException("0 < chunkSize (" + chunkSize
+          + ") <= capacity - lowWatermark (" + (capacity - lowWatermark)
+          + ") required");
+    }
+
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    this.seedingEnabled = seedingEnabled;
+    this.ring = new byte[capacity];
+    this.chunk = new byte[chunkSize];
+
+    refiller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        refillLoop();
+      }
+    }, "pkcs11-random-refill");
+    refiller.setDaemon(true);
+    refiller.start();
+  }
+
+  /**
+   * Gets the number of random bytes currently buffered.
+   *
+   * @return The number of buffered bytes.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int getAvailable() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void engineSetSeed(byte[] seed) {
+    if (!seedingEnabled || seed == null || seed.length == 0) {
+      return;
+    }
+
+    try {
+      Session session = sessionPool.borrowSession();
+      try {
+        session.seedRandom(seed);
+      } finally {
+        sessionPool.returnSession(session);
+      }
+    } catch (TokenException ex) {
+      throw new TokenRuntimeException("seeding the token failed", ex);
+    }
+  }
+
+  @Override
+  protected void engineNextBytes(byte[] bytes) {
+    int offset = 0;
+    lock.lock();
+    try {
+      while (offset < bytes.length) {
+        while (count == 0) {
+          if (closed) {
+            throw new IllegalStateException("closed");
+          }
+          if (failure != null) {
+            throw new TokenRuntimeException("refilling from the token failed",
+                failure);
+          }
+          refillNeeded.signal();
+          dataAvailable.awaitUninterruptibly();
+        }
+
+        int n = Math.min(Math.min(count, bytes.length - offset),
+            ring.length - head);
+        System.arraycopy(ring, head, bytes, offset, n);
+        Arrays.fill(ring, head, head + n, (byte) 0);
+        head = (head + n) % ring.length;
+        count -= n;
+        offset += n;
+      }
+
+      if (count < lowWatermark) {
+        refillNeeded.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected byte[] engineGenerateSeed(int numBytes) {
+    byte[] seed = new byte[numBytes];
+    engineNextBytes(seed);
+    return seed;
+  }
+
+  /**
+   * Stops the refill thread and wipes the buffered bytes. Further draws
+   * fail.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      Arrays.fill(ring, (byte) 0);
+      count = 0;
+      refillNeeded.signalAll();
+      dataAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void refillLoop() {
+    TokenException terminationCause = null;
+    try {
+      while (!closed) {
+        lock.lock();
+        try {
+          while (!closed && count >= lowWatermark) {
+            refillNeeded.awaitUninterruptibly();
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        TokenException refillFailure;
+        try {
+          refill();
+          continue;
+        } catch (TokenException ex) {
+          refillFailure = ex;
+        } catch (RuntimeException ex) {
+          refillFailure = new TokenException(ex);
+        }
+
+        lock.lock();
+        try {
+          failure = refillFailure;
+          dataAvailable.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        try {
+          TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS);
+        } catch (InterruptedException ex) {
+          terminationCause = new TokenException("refill thread interrupted",
+              ex);
+          return;
+        }
+      }
+    } finally {
+      // whatever ends this thread, waiting consumers must not wait forever
+      lock.lock();
+      try {
+        if (!closed) {
+          failure = (terminationCause != null) ? terminationCause
+              : new TokenException("refill thread terminated", failure);
+        }
+        dataAvailable.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void refill() throws TokenException {
+    Session session = sessionPool.borrowSession();
+    try {
+      while (!closed) {
+        lock.lock();
+        try {
+          if (count >= highWatermark || ring.length - count < chunk.length) {
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        session.generateRandom(chunk, 0, chunk.length);
+
+        lock.lock();
+        try {
+          if (closed) {
+            return;
+          }
+          int tail = (head + count) % ring.length;
+          int firstPart = Math.min(chunk.length, ring.length - tail);
+          System.arraycopy(chunk, 0, ring, tail, firstPart);
+          System.arraycopy(chunk, firstPart, ring, 0,
+              chunk.length - firstPart);
+          count += chunk.length;
+          failure = null;
+          dataAvailable.signalAll();
+        } finally {
+          lock.unlock();
+          Arrays.fill(chunk, (byte) 0);
+        }
+      }
+    } finally {
+      sessionPool.returnSession(session);
+    }
+  }
+
+}
@@ -0,0 +1,671 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.io;
+
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Collects the input of multi-part operations and passes it to the token in
+ * pieces of the threshold size, instead of one native call per small
+ * update. Inputs of at least the threshold size are passed through without
+ * copying. The collected input is flushed before the *Final call, so the
+ * result is the same as with the direct *Update calls.
+ * <p/>
+ * Since the input reaches the token later, an error caused by an update may
+ * be reported by a later update or the *Final call. As with the direct
+ * calls, the operation is terminated then. Encryption and decryption output
+ * is produced when input is flushed; the output array of an update must
+ * have room for the threshold plus the input length plus one block.
+ * <p/>
+ * Like the direct calls, an encryption or decryption call failing with
+ * CKR_BUFFER_TOO_SMALL does not terminate the operation; the call can be
+ * repeated with a larger output array. An update fails so before passing
+ * anything to the token. A *Final call keeps the output it already
+ * produced and returns it on the repeated call.
+ * <p/>
+ * The buffer is wiped when an operation ends. Like a session, an instance
+ * must not be used by multiple threads at the same time.
+ *
+ * <pre>
+ * <code>
+ *   CoalescingUpdater updater = new CoalescingUpdater(session, 64 * 1024);
+ *   updater.digestInit(Mechanism.get(PKCS11Constants.CKM_SHA256));
+ *   for (byte[] record : records) {
+ *     updater.digestUpdate(record, 0, record.length);
+ *   }
+ *   int len = updater.digestFinal(digest, 0, digest.length);
+ * </code>
+ * </pre>
+ *
+ * @invariants (session <> null) and (0 <= buffered <= threshold)
+ */
+public class CoalescingUpdater {
+
+  /**
+   * The default threshold.
+   */
+  public static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+  /**
+   * The largest block size of the supported ciphers.
+   */
+  private static final int MAX_BLOCK_SIZE = 16;
+
+  private enum Operation {
+    NONE,
+    DIGEST,
+    SIGN,
+    VERIFY,
+    ENCRYPT,
+    DECRYPT
+  }
+
+  private final Session session;
+
+  private final byte[] buffer;
+
+  private int buffered;
+
+  private Operation operation = Operation.NONE;
+
+  /**
+   * The output a *Final call produced before failing with
+   * CKR_BUFFER_TOO_SMALL, or null.
+   */
+  private byte[] pendingOutput;
+
+  private long nativeUpdateCount;
+
+  /**
+   * Creates a new instance with the {@link #DEFAULT_THRESHOLD}.
+   *
+   * @param session
+   *          The session to perform the operations with.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public CoalescingUpdater(Session session) {
+    this(session, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param session
+   *          The session to perform the operations with.
+   * @param threshold
+   *          The number of bytes to collect before an update is passed to
+   *          the token.
+   * @preconditions (session <> null) and (threshold > 0)
+   * @postconditions
+   */
+  public CoalescingUpdater(Session session, int threshold) {
+    this.session = Util.requireNonNull("session", session);
+    if (threshold < 1) {
+      throw new IllegalArgumentException(
+          "threshold must be positive: " + threshold);
+    }
+    this.buffer = new byte[threshold];
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  public int getThreshold() {
+    return buffer.length;
+  }
+
+  /**
+   * Gets the number of *Update calls passed to the token so far.
+   *
+   * @return The number of native update calls.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getNativeUpdateCount() {
+    return nativeUpdateCount;
+  }
+
+  /**
+   * Initializes a digesting operation; see
+   * {@link Session#digestInit(Mechanism)}.
+   *
+   * @param mechanism
+   *          The digest mechanism.
+   * @exception TokenException
+   *              If initializing failed.
+   * @preconditions (mechanism <> null)
+   * @postconditions
+   */
+  public void digestInit(Mechanism mechanism) throws TokenException {
+    reset();
+    session.digestInit(mechanism);
+    operation = Operation.DIGEST;
+  }
+
+  /**
+   * Adds data to the digesting operation.
+   *
+   * @param in
+   *          The data.
+   * @param inOfs
+   *          The offset of the data.
+   * @param inLen
+   *          The length of the data.
+   * @exception TokenException
+   *              If passing collected data to the token failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void digestUpdate(byte[] in, int inOfs, int inLen)
+      throws TokenException {
+    update(Operation.DIGEST, in, inOfs, inLen, null, 0, 0);
+  }
+
+  /**
+   * Adds the value of a secret key to the digesting operation; the collected
+   * data is flushed first to keep the order.
+   *
+   * @param key
+   *          The key to digest the value of.
+   * @exception TokenException
+   *              If digesting failed.
+   * @preconditions (key <> null)
+   * @postconditions
+   */
+  public void digestKey(SecretKey key) throws TokenException {
+    checkOperation(Operation.DIGEST);
+    flush(null, 0, 0);
+    session.digestKey(key);
+  }
+
+  /**
+   * Finalizes the digesting operation; see
+   * {@link Session#digestFinal(byte[], int, int)}.
+   *
+   * @param digest
+   *          The array to receive the digest.
+   * @param digestOfs
+   *          The offset at which the digest is written.
+   * @param digestLen
+   *          The space available for the digest.
+   * @return The length of the digest.
+   * @exception TokenException
+   *              If digesting failed.
+   * @preconditions (digest <> null)
+   * @postconditions
+   */
+  public int digestFinal(byte[] digest, int digestOfs, int digestLen)
+      throws TokenException {
+    checkOperation(Operation.DIGEST);
+    try {
+      flush(null, 0, 0);
+      return session.digestFinal(digest, digestOfs, digestLen);
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Initializes a signing operation; see
+   * {@link Session#signInit(Mechanism, Key)}.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @exception TokenException
+   *              If initializing failed.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void signInit(Mechanism mechanism, Key key) throws TokenException {
+    reset();
+    session.signInit(mechanism, key);
+    operation = Operation.SIGN;
+  }
+
+  /**
+   * Adds data to the signing operation.
+   *
+   * @param in
+   *          The data.
+   * @param inOfs
+   *          The offset of the data.
+   * @param inLen
+   *          The length of the data.
+   * @exception TokenException
+   *              If passing collected data to the token failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void signUpdate(byte[] in, int inOfs, int inLen)
+      throws TokenException {
+    update(Operation.SIGN, in, inOfs, inLen, null, 0, 0);
+  }
+
+  /**
+   * Finalizes the signing operation; see {@link Session#signFinal(int)}.
+   *
+   * @param expectedLen
+   *          The expected signature length.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public byte[] signFinal(int expectedLen) throws TokenException {
+    checkOperation(Operation.SIGN);
+    try {
+      flush(null, 0, 0);
+      return session.signFinal(expectedLen);
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Initializes a verification operation; see
+   * {@link Session#verifyInit(Mechanism, Key)}.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The verification key.
+   * @exception TokenException
+   *              If initializing failed.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void verifyInit(Mechanism mechanism, Key key) throws TokenException {
+    reset();
+    session.verifyInit(mechanism, key);
+    operation = Operation.VERIFY;
+  }
+
+  /**
+   * Adds data to the verification operation.
+   *
+   * @param in
+   *          The data.
+   * @param inOfs
+   *          The offset of the data.
+   * @param inLen
+   *          The length of the data.
+   * @exception TokenException
+   *              If passing collected data to the token failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void verifyUpdate(byte[] in, int inOfs, int inLen)
+      throws TokenException {
+    update(Operation.VERIFY, in, inOfs, inLen, null, 0, 0);
+  }
+
+  /**
+   * Finalizes the verification operation; see
+   * {@link Session#verifyFinal(byte[])}.
+   *
+   * @param signature
+   *          The signature value.
+   * @exception TokenException
+   *              If verifying failed or the signature is invalid.
+   * @preconditions (signature <> null)
+   * @postconditions
+   */
+  public void verifyFinal(byte[] signature) throws TokenException {
+    checkOperation(Operation.VERIFY);
+    try {
+      flush(null, 0, 0);
+      session.verifyFinal(signature);
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Initializes an encryption operation; see
+   * {@link Session#encryptInit(Mechanism, Key)}.
+   *
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The encryption key.
+   * @exception TokenException
+   *              If initializing failed.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void encryptInit(Mechanism mechanism, Key key)
+      throws TokenException {
+    reset();
+    session.encryptInit(mechanism, key);
+    operation = Operation.ENCRYPT;
+  }
+
+  /**
+   * Adds data to the encryption operation. Output is only produced if
+   * collected data is passed to the token.
+   *
+   * @param in
+   *          The data.
+   * @param inOfs
+   *          The offset of the data.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to receive the output.
+   * @param outOfs
+   *          The offset at which the output is written.
+   * @param outLen
+   *          The space available for the output.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If passing collected data to the token failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions (result >= 0)
+   */
+  public int encryptUpdate(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("out", out);
+    return update(Operation.ENCRYPT, in, inOfs, inLen, out, outOfs, outLen);
+  }
+
+  /**
+   * Finalizes the encryption operation. The collected data is passed to the
+   * token first; its output precedes the final output.
+   *
+   * @param out
+   *          The array to receive the output.
+   * @param outOfs
+   *          The offset at which the output is written.
+   * @param outLen
+   *          The space available for the output.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If encrypting failed.
+   * @preconditions (out <> null)
+   * @postconditions (result >= 0)
+   */
+  public int encryptFinal(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+    checkOperation(Operation.ENCRYPT);
+    return cryptFinal(out, outOfs, outLen);
+  }
+
+  /**
+   * Initializes a decryption operation; see
+   * {@link Session#decryptInit(Mechanism, Key)}.
+   *
+   * @param mechanism
+   *          The decryption mechanism.
+   * @param key
+   *          The decryption key.
+   * @exception TokenException
+   *              If initializing failed.
+   * @preconditions (mechanism <> null) and (key <> null)
+   * @postconditions
+   */
+  public void decryptInit(Mechanism mechanism, Key key)
+      throws TokenException {
+    reset();
+    session.decryptInit(mechanism, key);
+    operation = Operation.DECRYPT;
+  }
+
+  /**
+   * Adds data to the decryption operation. Output is only produced if
+   * collected data is passed to the token.
+   *
+   * @param in
+   *          The data.
+   * @param inOfs
+   *          The offset of the data.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to receive the output.
+   * @param outOfs
+   *          The offset at which the output is written.
+   * @param outLen
+   *          The space available for the output.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If passing collected data to the token failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions (result >= 0)
+   */
+  public int decryptUpdate(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("out", out);
+    return update(Operation.DECRYPT, in, inOfs, inLen, out, outOfs, outLen);
+  }
+
+  /**
+   * Finalizes the decryption operation. The collected data is passed to the
+   * token first; its output precedes the final output.
+   *
+   * @param out
+   *          The array to receive the output.
+   * @param outOfs
+   *          The offset at which the output is written.
+   * @param outLen
+   *          The space available for the output.
+   * @return The number of bytes written to <code>out</code>.
+   * @exception TokenException
+   *              If decrypting failed.
+   * @preconditions (out <> null)
+   * @postconditions (result >= 0)
+   */
+  public int decryptFinal(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+    checkOperation(Operation.DECRYPT);
+    return cryptFinal(out, outOfs, outLen);
+  }
+
+  private int update(Operation updateOperation, byte[] in, int inOfs,
+      int inLen, byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("in", in);
+    checkOperation(updateOperation);
+
+    int copied = 0;
+    boolean flushed = false;
+    try {
+      int written = 0;
+      if (buffered > 0 || inLen < buffer.length) {
+        int n = Math.min(inLen, buffer.length - buffered);
+        if (buffered + n == buffer.length && inLen - n >= buffer.length
+            && (operation == Operation.ENCRYPT
+                || operation == Operation.DECRYPT)
+            && outLen < buffered + inLen + MAX_BLOCK_SIZE) {
+          // two native calls would follow; fail before the first one
+          throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+        }
+        System.arraycopy(in, inOfs, buffer, buffered, n);
+        buffered += n;
+        copied = n;
+        inOfs += n;
+        inLen -= n;
+        if (buffered < buffer.length) {
+          return 0;
+        }
+        written = flush(out, outOfs, outLen);
+        flushed = true;
+      }
+
+      if (inLen >= buffer.length) {
+        written += nativeUpdate(in, inOfs, inLen,
+            out, outOfs + written, outLen - written);
+      } else if (inLen > 0) {
+        System.arraycopy(in, inOfs, buffer, 0, inLen);
+        buffered = inLen;
+      }
+      return written;
+    } catch (TokenException ex) {
+      if (!flushed && isBufferTooSmall(ex)) {
+        // the token took nothing and keeps the operation, so the call can
+        // be repeated with a larger output array
+        buffered -= copied;
+        Arrays.fill(buffer, buffered, buffered + copied, (byte) 0);
+        throw ex;
+      }
+      // the token terminated the operation
+      reset();
+      throw ex;
+    }
+  }
+
+  private int cryptFinal(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    int written = 0;
+    boolean keep = false;
+    try {
+      if (pendingOutput != null) {
+        // buffered is 0, the input was flushed by the failed call
+        if (pendingOutput.length > outLen) {
+          keep = true;
+          throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+        }
+        System.arraycopy(pendingOutput, 0, out, outOfs,
+            pendingOutput.length);
+        written = pendingOutput.length;
+      }
+      written += flush(out, outOfs + written, outLen - written);
+      written += (operation == Operation.ENCRYPT)
+          ? session.encryptFinal(out, outOfs + written, outLen - written)
+          : session.decryptFinal(out, outOfs + written, outLen - written);
+      return written;
+    } catch (TokenException ex) {
+      if (!keep && isBufferTooSmall(ex)) {
+        // the token keeps the operation; keep the output produced so far
+        keep = true;
+        byte[] produced = Arrays.copyOfRange(out, outOfs, outOfs + written);
+        if (pendingOutput != null) {
+          Arrays.fill(pendingOutput, (byte) 0);
+        }
+        pendingOutput = (written > 0) ? produced : null;
+        Arrays.fill(out, outOfs, outOfs + written, (byte) 0);
+      }
+      throw ex;
+    } finally {
+      if (!keep) {
+        reset();
+      }
+    }
+  }
+
+  private static boolean isBufferTooSmall(TokenException ex) {
+    return ex instanceof PKCS11Exception
+        && ((PKCS11Exception) ex).getErrorCode()
+            == PKCS11Constants.CKR_BUFFER_TOO_SMALL;
+  }
+
+  private int flush(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    if (buffered == 0) {
+      return 0;
+    }
+
+    int written = nativeUpdate(buffer, 0, buffered, out, outOfs, outLen);
+    Arrays.fill(buffer, 0, buffered, (byte) 0);
+    buffered = 0;
+    return written;
+  }
+
+  private int nativeUpdate(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    nativeUpdateCount++;
+    switch (operation) {
+      case DIGEST:
+        session.digestUpdate(in, inOfs, inLen);
+        return 0;
+      case SIGN:
+        session.signUpdate(in, inOfs, inLen);
+        return 0;
+      case VERIFY:
+        session.verifyUpdate(in, inOfs, inLen);
+        return 0;
+      case ENCRYPT:
+        return session.encryptUpdate(in, inOfs, inLen, out, outOfs, outLen);
+      default:
+        return session.decryptUpdate(in, inOfs, inLen, out, outOfs, outLen);
+    }
+  }
+
+  private void checkOperation(Operation expected) {
+    if (operation != expected) {
+      throw new IllegalStateException("no " + expected.name().toLowerCase()
+          + " operation initialized, but " + operation);
+    }
+  }
+
+  private void reset() {
+    Arrays.fill(buffer, 0, buffered, (byte) 0);
+    buffered = 0;
+    if (pendingOutput != null) {
+      Arrays.fill(pendingOutput, (byte) 0);
+      pendingOutput = null;
+    }
+    operation = Operation.NONE;
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("CoalescingUpdater (threshold: ", buffer.length,
+        ", operation: ", operation, ", buffered: ", buffered, ")");
+  }
+
+}
@@ -0,0 +1,447 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+
+package iaik.pkcs.pkcs11.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.OutputLengthCache;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * Digests and signs files with multi-part operations, overlapping the file
+ * I/O with the token work. While the token processes a chunk, a reader
+ * thread reads the next chunk into a second buffer; so a large file is
+ * processed at the speed of the slower of disk and token, not of both
+ * together.
+ * <p/>
+ * The chunk size adapts to the measured duration of the update calls: it
+ * grows while an update takes less than the target latency, since then the
+ * per-call overhead dominates, and shrinks when an update takes much longer,
+ * so that reading and updating stay balanced. The current size is shared by
+ * all files processed with this engine.
+ * <p/>
+ * The chunks are read into heap arrays with large positional reads, since
+ * the update calls of the native layer take arrays; a mapped or direct
+ * buffer would only add a copy.
+ * <p/>
+ * An engine may be used by multiple threads at the same time, each with its
+ * own session.
+ *
+ * <pre>
+ * <code>
+ *   try (FileDigestEngine engine = new FileDigestEngine()) {
+ *     byte[] digest = engine.digest(session,
+ *         Mechanism.get(PKCS11Constants.CKM_SHA256), path);
+ *   }
+ * </code>
+ * </pre>
+ *
+ * @invariants (minChunkSize <= chunkSize <= maxChunkSize)
+ */
+public class FileDigestEngine implements Closeable {
+
+  /**
+   * The default minimal chunk size.
+   */
+  public static final int DEFAULT_MIN_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The default maximal chunk size.
+   */
+  public static final int DEFAULT_MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * The default target duration of an update call in milliseconds.
+   */
+  public static final long DEFAULT_TARGET_UPDATE_MILLIS = 20;
+
+  /**
+   * The granularity of the chunk size.
+   */
+  private static final int CHUNK_ALIGNMENT = 4096;
+
+  // large enough for all common digests
+  private static final int MAX_DIGEST_LENGTH = 64;
+
+  private final int minChunkSize;
+
+  private final int maxChunkSize;
+
+  private final long targetUpdateNanos;
+
+  private final AtomicInteger chunkSize;
+
+  private final ExecutorService readers;
+
+  private final OutputLengthCache signatureLengths = new OutputLengthCache(256);
+
+  /**
+   * Creates a new engine with the default chunk sizes and target latency.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public FileDigestEngine() {
+    this(DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE,
+        DEFAULT_TARGET_UPDATE_MILLIS);
+  }
+
+  /**
+   * Creates a new engine.
+   *
+   * @param minChunkSize
+   *          The minimal number of bytes passed to one update call.
+   * @param maxChunkSize
+   *          The maximal number of bytes passed to one update call. Each file
+   *          being processed uses two buffers of up to this size.
+   * @param targetUpdateMillis
+   *          The duration of an update call to adapt the chunk size to.
+   * @preconditions (0 < minChunkSize <= maxChunkSize)
+   *                and (targetUpdateMillis > 0)
+   * @postconditions
+   */
+  public FileDigestEngine(int minChunkSize, int maxChunkSize,
+      long targetUpdateMillis) {
+    if (minChunkSize < 1) {
+      throw new IllegalArgumentException(
+          "minChunkSize must be positive: " + minChunkSize);
+    }
+    if (maxChunkSize < minChunkSize) {
+      throw new IllegalArgumentException(
+          "maxChunkSize must not be less than minChunkSize: " + maxChunkSize);
+    }
+    if (targetUpdateMillis < 1) {
+      throw new IllegalArgumentException(
+          "targetUpdateMillis must be positive: " + targetUpdateMillis);
+    }
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+    this.targetUpdateNanos = targetUpdateMillis * 1000000L;
+    this.chunkSize = new AtomicInteger(minChunkSize);
+    this.readers = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger counter = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable,
+            "FileDigestEngine-reader-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Gets the chunk size the next update will use.
+   *
+   * @return The current chunk size.
+   * @preconditions
+   * @postconditions (result > 0)
+   */
+  public int getChunkSize() {
+    return chunkSize.get();
+  }
+
+  public int getMinChunkSize() {
+    return minChunkSize;
+  }
+
+  public int getMaxChunkSize() {
+    return maxChunkSize;
+  }
+
+  /**
+   * Digests the content of a file.
+   *
+   * @param session
+   *          The session to digest with. No other operation must be active
+   *          on it.
+   * @param mechanism
+   *          The digest mechanism.
+   * @param file
+   *          The file to digest.
+   * @return The digest.
+   * @exception TokenException
+   *              If digesting failed.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (session <> null) and (mechanism <> null) and (file <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] digest(Session session, Mechanism mechanism, Path file)
+      throws TokenException, IOException {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("file", file);
+
+    session.digestInit(mechanism);
+    try {
+      process(session, false, file);
+    } catch (TokenException | IOException | RuntimeException ex) {
+      // terminate the operation, the update failure is reported
+      byte[] ignored = new byte[MAX_DIGEST_LENGTH];
+      try {
+        session.digestFinal(ignored, 0, ignored.length);
+      } catch (TokenException ex2) {
+        // the operation is terminated
+      }
+      throw ex;
+    }
+
+    byte[] digest = new byte[MAX_DIGEST_LENGTH];
+    int len = session.digestFinal(digest, 0, digest.length);
+    return Arrays.copyOf(digest, len);
+  }
+
+  /**
+   * Signs the content of a file.
+   *
+   * @param session
+   *          The session to sign with. No other operation must be active on
+   *          it.
+   * @param mechanism
+   *          The signature mechanism; it must support multi-part signing.
+   * @param key
+   *          The signing key.
+   * @param file
+   *          The file to sign.
+   * @return The signature.
+   * @exception TokenException
+   *              If signing failed.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (session <> null) and (mechanism <> null) and (key <> null)
+   *                and (file <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] sign(Session session, Mechanism mechanism, Key key, Path file)
+      throws TokenException, IOException {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("file", file);
+
+    int expectedLen = signatureLengths.getSignatureLength(session, mechanism,
+        key);
+    session.signInit(mechanism, key);
+    try {
+      process(session, true, file);
+    } catch (TokenException | IOException | RuntimeException ex) {
+      // terminate the operation, the update failure is reported
+      try {
+        session.signFinal(expectedLen);
+      } catch (TokenException ex2) {
+        // the operation is terminated
+      }
+      throw ex;
+    }
+
+    byte[] signature = session.signFinal(expectedLen);
+    signatureLengths.learnSignatureLength(mechanism, key, signature.length);
+    return signature;
+  }
+
+  /**
+   * Stops the reader threads. Operations in progress fail.
+   */
+  @Override
+  public void close() {
+    readers.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return Util.concatObjects("FileDigestEngine: chunkSize=", chunkSize.get(),
+        ", minChunkSize=", minChunkSize, ", maxChunkSize=", maxChunkSize,
+        ", targetUpdateMillis=", targetUpdateNanos / 1000000L);
+  }
+
+  private void process(Session session, boolean sign, Path file)
+      throws TokenException, IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      long size = channel.size();
+      int bufferSize = (int) Math.min(maxChunkSize, Math.max(size, 1));
+      int chunk = Math.min(chunkSize.get(), bufferSize);
+      // a second buffer is only needed if the file takes more than one read
+      byte[][] buffers = { new byte[bufferSize],
+          new byte[(size > chunk) ? bufferSize : 0] };
+
+      int current = 0;
+      long position = 0;
+      Future<Integer> pending = readers.submit(
+          new ChunkReader(channel, position, buffers[current], chunk));
+      while (true) {
+        int len = await(pending);
+        if (len <= 0) {
+          break;
+        }
+        position += len;
+
+        // read the next chunk while the token processes this one
+        pending = null;
+        if (position < size) {
+          chunk = Math.min(chunkSize.get(), bufferSize);
+          pending = readers.submit(new ChunkReader(channel, position,
+              buffers[1 - current], chunk));
+        }
+
+        long start = System.nanoTime();
+        try {
+          if (sign) {
+            session.signUpdate(buffers[current], 0, len);
+          } else {
+            session.digestUpdate(buffers[current], 0, len);
+          }
+        } catch (TokenException | RuntimeException ex) {
+          if (pending != null) {
+            pending.cancel(true);
+          }
+          throw ex;
+        }
+        adaptChunkSize(len, System.nanoTime() - start);
+
+        if (pending == null) {
+          break;
+        }
+        current = 1 - current;
+      }
+    }
+  }
+
+  private void adaptChunkSize(int len, long elapsedNanos) {
+    int current = chunkSize.get();
+    if (len < current) {
+      // the last chunk of a file says nothing about the chunk size
+      return;
+    }
+
+    long next;
+    if (elapsedNanos < targetUpdateNanos / 2) {
+      next = 2L * current;
+    } else if (elapsedNanos > 2 * targetUpdateNanos) {
+      next = current / 2;
+    } else {
+      return;
+    }
+    next = Math.max(minChunkSize, Math.min(maxChunkSize, next));
+    if (next > CHUNK_ALIGNMENT) {
+      next -= next % CHUNK_ALIGNMENT;
+    }
+    chunkSize.compareAndSet(current, (int) next);
+  }
+
+  private static int await(Future<Integer> pending) throws IOException {
+    try {
+      return pending.get();
+    } catch (InterruptedException ex) {
+      pending.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while reading");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Reads a chunk of the file into a buffer at an absolute position.
+   */
+  private static class ChunkReader implements Callable<Integer> {
+
+    private final FileChannel channel;
+
+    private final long position;
+
+    private final byte[] buffer;
+
+    private final int length;
+
+    ChunkReader(FileChannel channel, long position, byte[] buffer,
+        int length) {
+      this.channel = channel;
+      this.position = position;
+      this.buffer = buffer;
+      this.length = length;
+    }
+
+    @Override
+    public Integer call() throws IOException {
+      ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+      while (target.hasRemaining()) {
+        int n = channel.read(target, position + target.position());
+        if (n < 0) {
+          break;
+        }
+      }
+      return target.position();
+    }
+
+  }
+
+}
@@ -0,0 +1,200 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.io;
+
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * The multi-part cipher operation shared by the stream and channel adapters.
+ * The output of each call is written to a reused buffer, which grows if the
+ * token reports CKR_BUFFER_TOO_SMALL; this does not terminate the operation,
+ * so the call is repeated.
+ */
+final class TokenCipher {
+
+  /**
+   * The output space reserved beyond the chunk size; enough for a block of
+   * padding and an authentication tag.
+   */
+  private static final int OUTPUT_RESERVE = 64;
+
+  private final Session session;
+
+  private final CipherMode mode;
+
+  private final int chunkSize;
+
+  private byte[] output;
+
+  private boolean finished;
+
+  /**
+   * The error which terminated the operation, or null.
+   */
+  private TokenException failure;
+
+  TokenCipher(Session session, CipherMode mode, Mechanism mechanism, Key key,
+      int chunkSize) throws TokenException {
+    this.session = Util.requireNonNull("session", session);
+    this.mode = Util.requireNonNull("mode", mode);
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException(
+          "chunkSize must be positive: " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+    this.output = new byte[chunkSize + OUTPUT_RESERVE];
+
+    if (mode == CipherMode.ENCRYPT) {
+      session.encryptInit(mechanism, key);
+    } else {
+      session.decryptInit(mechanism, key);
+    }
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return The buffer holding the output of the last call.
+   */
+  byte[] getOutput() {
+    return output;
+  }
+
+  /**
+   * @return True, if the operation has been finalized or has failed.
+   */
+  boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * @return The error which terminated the operation, or null.
+   */
+  TokenException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Processes at most chunkSize bytes.
+   *
+   * @return The number of output bytes in {@link #getOutput()}.
+   */
+  int update(byte[] in, int inOfs, int inLen) throws TokenException {
+    checkNotFailed();
+    while (true) {
+      try {
+        return (mode == CipherMode.ENCRYPT)
+            ? session.encryptUpdate(in, inOfs, inLen, output, 0,
+                output.length)
+            : session.decryptUpdate(in, inOfs, inLen, output, 0,
+                output.length);
+      } catch (TokenException ex) {
+        growOrFail(ex);
+      }
+    }
+  }
+
+  /**
+   * Finalizes the operation.
+   *
+   * @return The number of output bytes in {@link #getOutput()}.
+   */
+  int doFinal() throws TokenException {
+    checkNotFailed();
+    finished = true;
+    while (true) {
+      try {
+        return (mode == CipherMode.ENCRYPT)
+            ? session.encryptFinal(output, 0, output.length)
+            : session.decryptFinal(output, 0, output.length);
+      } catch (TokenException ex) {
+        growOrFail(ex);
+      }
+    }
+  }
+
+  /**
+   * Terminates the operation if it is still active, discarding the output,
+   * and wipes the output buffer.
+   */
+  void close() {
+    if (!finished) {
+      try {
+        doFinal();
+      } catch (TokenException ex) {
+        // the operation is terminated anyway
+      }
+    }
+    Arrays.fill(output, (byte) 0);
+  }
+
+  private void checkNotFailed() throws TokenException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void growOrFail(TokenException ex) throws TokenException {
+    if (!(ex instanceof PKCS11Exception) || ((PKCS11Exception) ex)
+        .getErrorCode() != PKCS11Constants.CKR_BUFFER_TOO_SMALL) {
+      // the token terminated the operation
+      finished = true;
+      failure = ex;
+      throw ex;
+    }
+    // e.g. AES-GCM decryption, which outputs all data with the final call
+    Arrays.fill(output, (byte) 0);
+    output = new byte[2 * output.length];
+  }
+
+}
@@ -0,0 +1,217 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * An input stream which reads data from the underlying stream and returns
+ * it encrypted or decrypted by the token. The data is passed to the token in
+ * pieces of at most the chunk size, and the buffers are reused, so that
+ * payloads of any size stream through in constant memory. At the end of the
+ * underlying stream, the operation is finalized and its final output is
+ * returned.
+ *
+ * <pre>
+ * <code>
+ *   InputStream in = new TokenCipherInputStream(fileIn, session,
+ *       CipherMode.DECRYPT, mechanism, key, 64 * 1024);
+ *   ... read the plaintext ...
+ *   in.close();
+ * </code>
+ * </pre>
+ */
+public class TokenCipherInputStream extends FilterInputStream {
+
+  private final TokenCipher cipher;
+
+  private final byte[] input;
+
+  private final byte[] single = new byte[1];
+
+  private int outputPos;
+
+  private int outputLimit;
+
+  private boolean closed;
+
+  /**
+   * Creates a new stream and initializes the operation.
+   *
+   * @param in
+   *          The stream to read the input from.
+   * @param session
+   *          The session to perform the operation with. It must not be used
+   *          for other operations until this stream is at its end or closed.
+   * @param mode
+   *          Whether to encrypt or decrypt.
+   * @param mechanism
+   *          The cipher mechanism.
+   * @param key
+   *          The key.
+   * @param chunkSize
+   *          The maximal number of bytes passed to the token per call.
+   * @exception TokenException
+   *              If initializing the operation failed.
+   * @preconditions (in <> null) and (session <> null) and (mode <> null)
+   *                and (mechanism <> null) and (key <> null)
+   *                and (chunkSize > 0)
+   * @postconditions
+   */
+  public TokenCipherInputStream(InputStream in, Session session,
+      CipherMode mode, Mechanism mechanism, Key key, int chunkSize)
+      throws TokenException {
+    super(in);
+    cipher = new TokenCipher(session, mode, mechanism, key, chunkSize);
+    input = new byte[chunkSize];
+  }
+
+  @Override
+  public int read() throws IOException {
+    int n;
+    while ((n = read(single, 0, 1)) == 0) {
+      // loop until a byte is available or the end is reached
+    }
+    return (n < 0) ? -1 : (single[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("stream closed");
+    }
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+
+    while (outputPos == outputLimit) {
+      if (cipher.isFinished()) {
+        if (cipher.getFailure() != null) {
+          // not the end of the data, the operation failed
+          throw new IOException(cipher.getFailure());
+        }
+        return -1;
+      }
+      fill();
+    }
+
+    int n = Math.min(len, outputLimit - outputPos);
+    System.arraycopy(cipher.getOutput(), outputPos, b, off, n);
+    outputPos += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    byte[] skipBuffer = new byte[(int) Math.min(n, 4096)];
+    while (skipped < n) {
+      int read = read(skipBuffer, 0,
+          (int) Math.min(n - skipped, skipBuffer.length));
+      if (read < 0) {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return outputLimit - outputPos;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * Terminates the operation, if it is still active, and closes the
+   * underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    outputPos = outputLimit;
+    cipher.close();
+    Arrays.fill(input, (byte) 0);
+    in.close();
+  }
+
+  private void fill() throws IOException {
+    int read = in.read(input, 0, input.length);
+    try {
+      outputPos = 0;
+      outputLimit = (read < 0) ? cipher.doFinal()
+          : cipher.update(input, 0, read);
+    } catch (TokenException ex) {
+      outputLimit = 0;
+      throw new IOException(ex);
+    }
+  }
+
+}
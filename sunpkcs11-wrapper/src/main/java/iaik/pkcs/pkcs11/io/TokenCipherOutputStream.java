@@ -0,0 +1,172 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * An output stream which encrypts or decrypts the written data with the
+ * token and writes the result to the underlying stream. The data is passed
+ * to the token in pieces of at most the chunk size, and the output buffer is
+ * reused, so that payloads of any size stream through in constant memory.
+ * Closing the stream finalizes the operation and writes the final output,
+ * e.g. the last padded block.
+ *
+ * <pre>
+ * <code>
+ *   OutputStream out = new TokenCipherOutputStream(fileOut, session,
+ *       CipherMode.ENCRYPT, mechanism, key, 64 * 1024);
+ *   ... write the plaintext ...
+ *   out.close();
+ * </code>
+ * </pre>
+ */
+public class TokenCipherOutputStream extends FilterOutputStream {
+
+  private final TokenCipher cipher;
+
+  private final byte[] single = new byte[1];
+
+  private boolean closed;
+
+  /**
+   * Creates a new stream and initializes the operation.
+   *
+   * @param out
+   *          The stream to write the output to.
+   * @param session
+   *          The session to perform the operation with. It must not be used
+   *          for other operations until this stream is closed.
+   * @param mode
+   *          Whether to encrypt or decrypt.
+   * @param mechanism
+   *          The cipher mechanism.
+   * @param key
+   *          The key.
+   * @param chunkSize
+   *          The maximal number of bytes passed to the token per call.
+   * @exception TokenException
+   *              If initializing the operation failed.
+   * @preconditions (out <> null) and (session <> null) and (mode <> null)
+   *                and (mechanism <> null) and (key <> null)
+   *                and (chunkSize > 0)
+   * @postconditions
+   */
+  public TokenCipherOutputStream(OutputStream out, Session session,
+      CipherMode mode, Mechanism mechanism, Key key, int chunkSize)
+      throws TokenException {
+    super(out);
+    cipher = new TokenCipher(session, mode, mechanism, key, chunkSize);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("stream closed");
+    }
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    try {
+      while (len > 0) {
+        int n = Math.min(len, cipher.getChunkSize());
+        int outLen = cipher.update(b, off, n);
+        if (outLen > 0) {
+          out.write(cipher.getOutput(), 0, outLen);
+        }
+        off += n;
+        len -= n;
+      }
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  /**
+   * Flushes the underlying stream. Data the token holds back, e.g. an
+   * incomplete block, is only written by {@link #close()}.
+   */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Finalizes the operation, writes the final output and closes the
+   * underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      int outLen = cipher.doFinal();
+      if (outLen > 0) {
+        out.write(cipher.getOutput(), 0, outLen);
+      }
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    } finally {
+      cipher.close();
+      out.close();
+    }
+  }
+
+}
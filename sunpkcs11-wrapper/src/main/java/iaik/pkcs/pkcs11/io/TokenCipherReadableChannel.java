@@ -0,0 +1,179 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * A channel which reads data from the source channel and returns it
+ * encrypted or decrypted by the token; the channel counterpart of
+ * {@link TokenCipherInputStream}. At the end of the source, the operation is
+ * finalized and its final output is returned.
+ */
+public class TokenCipherReadableChannel implements ReadableByteChannel {
+
+  private final ReadableByteChannel source;
+
+  private final TokenCipher cipher;
+
+  private final ByteBuffer input;
+
+  private int outputPos;
+
+  private int outputLimit;
+
+  private boolean open = true;
+
+  /**
+   * Creates a new channel and initializes the operation.
+   *
+   * @param source
+   *          The channel to read the input from.
+   * @param session
+   *          The session to perform the operation with. It must not be used
+   *          for other operations until this channel is at its end or
+   *          closed.
+   * @param mode
+   *          Whether to encrypt or decrypt.
+   * @param mechanism
+   *          The cipher mechanism.
+   * @param key
+   *          The key.
+   * @param chunkSize
+   *          The maximal number of bytes passed to the token per call.
+   * @exception TokenException
+   *              If initializing the operation failed.
+   * @preconditions (source <> null) and (session <> null) and (mode <> null)
+   *                and (mechanism <> null) and (key <> null)
+   *                and (chunkSize > 0)
+   * @postconditions
+   */
+  public TokenCipherReadableChannel(ReadableByteChannel source,
+      Session session, CipherMode mode, Mechanism mechanism, Key key,
+      int chunkSize) throws TokenException {
+    this.source = Util.requireNonNull("source", source);
+    cipher = new TokenCipher(session, mode, mechanism, key, chunkSize);
+    input = ByteBuffer.allocate(chunkSize);
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    while (outputPos == outputLimit) {
+      if (cipher.isFinished()) {
+        if (cipher.getFailure() != null) {
+          // not the end of the data, the operation failed
+          throw new IOException(cipher.getFailure());
+        }
+        return -1;
+      }
+      if (!fill()) {
+        // the source has no data available right now
+        return 0;
+      }
+    }
+
+    int n = Math.min(dst.remaining(), outputLimit - outputPos);
+    dst.put(cipher.getOutput(), outputPos, n);
+    outputPos += n;
+    return n;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Terminates the operation, if it is still active, and closes the source
+   * channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!open) {
+      return;
+    }
+    open = false;
+    cipher.close();
+    Arrays.fill(input.array(), (byte) 0);
+    source.close();
+  }
+
+  /**
+   * @return false, if the source provided no data.
+   */
+  private boolean fill() throws IOException {
+    input.clear();
+    int read = source.read(input);
+    if (read == 0) {
+      return false;
+    }
+
+    try {
+      outputPos = 0;
+      outputLimit = (read < 0) ? cipher.doFinal()
+          : cipher.update(input.array(), 0, read);
+      return true;
+    } catch (TokenException ex) {
+      outputLimit = 0;
+      throw new IOException(ex);
+    }
+  }
+
+}
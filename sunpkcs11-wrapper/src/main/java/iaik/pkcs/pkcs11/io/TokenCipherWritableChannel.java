@@ -0,0 +1,172 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.Util;
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * A channel which encrypts or decrypts the written data with the token and
+ * writes the result to the target channel; the channel counterpart of
+ * {@link TokenCipherOutputStream}. Heap buffers are passed to the token
+ * directly; the content of direct buffers is copied through a reused
+ * array. Closing the channel finalizes the operation.
+ */
+public class TokenCipherWritableChannel implements WritableByteChannel {
+
+  private final WritableByteChannel target;
+
+  private final TokenCipher cipher;
+
+  private final byte[] input;
+
+  private boolean open = true;
+
+  /**
+   * Creates a new channel and initializes the operation.
+   *
+   * @param target
+   *          The channel to write the output to.
+   * @param session
+   *          The session to perform the operation with. It must not be used
+   *          for other operations until this channel is closed.
+   * @param mode
+   *          Whether to encrypt or decrypt.
+   * @param mechanism
+   *          The cipher mechanism.
+   * @param key
+   *          The key.
+   * @param chunkSize
+   *          The maximal number of bytes passed to the token per call.
+   * @exception TokenException
+   *              If initializing the operation failed.
+   * @preconditions (target <> null) and (session <> null) and (mode <> null)
+   *                and (mechanism <> null) and (key <> null)
+   *                and (chunkSize > 0)
+   * @postconditions
+   */
+  public TokenCipherWritableChannel(WritableByteChannel target,
+      Session session, CipherMode mode, Mechanism mechanism, Key key,
+      int chunkSize) throws TokenException {
+    this.target = Util.requireNonNull("target", target);
+    cipher = new TokenCipher(session, mode, mechanism, key, chunkSize);
+    input = new byte[chunkSize];
+  }
+
+  /**
+   * Processes all remaining bytes of the given buffer.
+   *
+   * @return The number of bytes consumed.
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+
+    int consumed = 0;
+    try {
+      while (src.hasRemaining()) {
+        int n = Math.min(src.remaining(), cipher.getChunkSize());
+        int outLen;
+        if (src.hasArray()) {
+          outLen = cipher.update(src.array(),
+              src.arrayOffset() + src.position(), n);
+          src.position(src.position() + n);
+        } else {
+          src.get(input, 0, n);
+          outLen = cipher.update(input, 0, n);
+        }
+        writeFully(outLen);
+        consumed += n;
+      }
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    }
+    return consumed;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Finalizes the operation, writes the final output and closes the target
+   * channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!open) {
+      return;
+    }
+    open = false;
+
+    try {
+      writeFully(cipher.doFinal());
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    } finally {
+      cipher.close();
+      Arrays.fill(input, (byte) 0);
+      target.close();
+    }
+  }
+
+  private void writeFully(int len) throws IOException {
+    ByteBuffer output = ByteBuffer.wrap(cipher.getOutput(), 0, len);
+    while (output.hasRemaining()) {
+      target.write(output);
+    }
+  }
+
+}
@@ -42,8 +42,10 @@
 
 package iaik.pkcs.pkcs11.objects;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.Map;
 import java.util.Set;
 
 import iaik.pkcs.pkcs11.Util;
@@ -205,190 +207,108 @@ public abstract class Attribute {
   public static final Long MIME_TYPES
       = new Long(PKCS11Constants.CKA_MIME_TYPES);
 
-  protected static Hashtable<Long, String> attributeNames;
-  protected static Hashtable<Long, Class<?>> attributeClasses;
-
-  /**
-   * True, if the object really possesses this attribute.
-   */
-  protected boolean present;
-
-  /**
-   * True, if this attribute is sensitive.
-   */
-  protected boolean sensitive;
-
-  /**
-   * The CK_ATTRIBUTE that is used to hold the PKCS#11 type of this attribute
-   * and the value.
-   */
-  protected CK_ATTRIBUTE ckAttribute;
-
-  /**
-   * Empty constructor.
-   * Attention! If you use this constructor, you must set ckAttribute to
-   * ensure that the class invariant is not violated.
-   *
-   * @preconditions
-   * @postconditions
-   */
-  protected Attribute() { /* left empty intentionally */
-  }
-
   /**
-   * Constructor taking the PKCS#11 type of the attribute.
-   *
-   * @param type
-   *          The PKCS#11 type of this attribute; e.g.
-   *          PKCS11Constants.CKA_PRIVATE.
-   * @preconditions (type <> null)
-   * @postconditions
+   * Lazily initialized, immutable map of attribute types to names. The
+   * holder class is loaded on first use, hence lookups need no lock.
    */
-  protected Attribute(Long type) {
-    Util.requireNonNull("type", type);
-    present = false;
-    sensitive = false;
-    ckAttribute = new CK_ATTRIBUTE();
-    ckAttribute.type = type.longValue();
-  }
-
-  /**
-   * Get the name of the given attribute type.
-   *
-   * @param type
-   *          The attribute type.
-   * @return The name of the attribute type, or null if there is no such type.
-   * @preconditions
-   * @postconditions
-   */
-  protected static synchronized String getAttributeName(Long type) {
-    Util.requireNonNull("type", type);
-
-    if (attributeNames == null) {
-      attributeNames = new Hashtable<>(85);
-      attributeNames.put(CLASS, "Class");
-      attributeNames.put(TOKEN, "Token");
-      attributeNames.put(PRIVATE, "Private");
-      attributeNames.put(LABEL, "Label");
-      attributeNames.put(APPLICATION, "Application");
-      attributeNames.put(VALUE, "Value");
-      attributeNames.put(OBJECT_ID, "PKCS11Object ID");
-      attributeNames.put(CERTIFICATE_TYPE, "Certificate Type");
-      attributeNames.put(ISSUER, "Issuer");
-      attributeNames.put(SERIAL_NUMBER, "Serial Number");
-      attributeNames.put(URL, "URL");
-      attributeNames.put(HASH_OF_SUBJECT_PUBLIC_KEY,
+  private static final class AttributeNamesHolder {
+
+    private static final Map<Long, String> NAMES;
+
+    static {
+      Map<Long, String> map = new HashMap<>(128);
+
+      map.put(CLASS, "Class");
+      map.put(TOKEN, "Token");
+      map.put(PRIVATE, "Private");
+      map.put(LABEL, "Label");
+      map.put(APPLICATION, "Application");
+      map.put(VALUE, "Value");
+      map.put(OBJECT_ID, "PKCS11Object ID");
+      map.put(CERTIFICATE_TYPE, "Certificate Type");
+      map.put(ISSUER, "Issuer");
+      map.put(SERIAL_NUMBER, "Serial Number");
+      map.put(URL, "URL");
+      map.put(HASH_OF_SUBJECT_PUBLIC_KEY,
           "Hash Of Subject Public Key");
-      attributeNames.put(HASH_OF_ISSUER_PUBLIC_KEY,
+      map.put(HASH_OF_ISSUER_PUBLIC_KEY,
           "Hash Of Issuer Public Key");
-      attributeNames.put(JAVA_MIDP_SECURITY_DOMAIN,
+      map.put(JAVA_MIDP_SECURITY_DOMAIN,
           "Java MIDP Security Domain");
-      attributeNames.put(AC_ISSUER, "AC Issuer");
-      attributeNames.put(OWNER, "Owner");
-      attributeNames.put(ATTR_TYPES, "Attribute Types");
-      attributeNames.put(TRUSTED, "Trusted");
-      attributeNames.put(KEY_TYPE, "Key Type");
-      attributeNames.put(SUBJECT, "Subject");
-      attributeNames.put(ID, "ID");
-      attributeNames.put(CHECK_VALUE, "Check Value");
-      attributeNames.put(CERTIFICATE_CATEGORY, "Certificate Category");
-      attributeNames.put(SENSITIVE, "Sensitive");
-      attributeNames.put(ENCRYPT, "Encrypt");
-      attributeNames.put(DECRYPT, "Decrypt");
-      attributeNames.put(WRAP, "Wrap");
-      attributeNames.put(UNWRAP, "Unwrap");
-      attributeNames.put(WRAP_TEMPLATE, "Wrap Template");
-      attributeNames.put(UNWRAP_TEMPLATE, "Unwrap Template");
-      attributeNames.put(SIGN, "Sign");
-      attributeNames.put(SIGN_RECOVER, "Sign Recover");
-      attributeNames.put(VERIFY, "Verify");
-      attributeNames.put(VERIFY_RECOVER, "Verify Recover");
-      attributeNames.put(DERIVE, "Derive");
-      attributeNames.put(START_DATE, "Start Date");
-      attributeNames.put(END_DATE, "End Date");
-      attributeNames.put(MODULUS, "Modulus");
-      attributeNames.put(MODULUS_BITS, "Modulus Bits");
-      attributeNames.put(PUBLIC_EXPONENT, "Public Exponent");
-      attributeNames.put(PRIVATE_EXPONENT, "Private Exponent");
-      attributeNames.put(PRIME_1, "Prime 1");
-      attributeNames.put(PRIME_2, "Prime 2");
-      attributeNames.put(EXPONENT_1, "Exponent 1");
-      attributeNames.put(EXPONENT_2, "Exponent 2");
-      attributeNames.put(COEFFICIENT, "Coefficient");
-      attributeNames.put(PRIME, "Prime");
-      attributeNames.put(SUBPRIME, "Subprime");
-      attributeNames.put(BASE, "Base");
-      attributeNames.put(PRIME_BITS, "Prime Pits");
-      attributeNames.put(SUB_PRIME_BITS, "Subprime Bits");
-      attributeNames.put(VALUE_BITS, "Value Bits");
-      attributeNames.put(VALUE_LEN, "Value Length");
-      attributeNames.put(EXTRACTABLE, "Extractable");
-      attributeNames.put(LOCAL, "Local");
-      attributeNames.put(NEVER_EXTRACTABLE, "Never Extractable");
-      attributeNames.put(WRAP_WITH_TRUSTED, "Wrap With Trusted");
-      attributeNames.put(ALWAYS_SENSITIVE, "Always Sensitive");
-      attributeNames.put(ALWAYS_AUTHENTICATE, "Always Authenticate");
-      attributeNames.put(KEY_GEN_MECHANISM, "Key Generation Mechanism");
-      attributeNames.put(ALLOWED_MECHANISMS, "Allowed Mechanisms");
-      attributeNames.put(MODIFIABLE, "Modifiable");
-      attributeNames.put(EC_PARAMS, "EC Parameters");
-      attributeNames.put(EC_POINT, "EC Point");
-      attributeNames.put(SECONDARY_AUTH, "Secondary Authentication");
-      attributeNames.put(AUTH_PIN_FLAGS, "Authentication PIN Flags");
-      attributeNames.put(HW_FEATURE_TYPE, "Hardware Feature Type");
-      attributeNames.put(RESET_ON_INIT, "Reset on Initialization");
-      attributeNames.put(HAS_RESET, "Has been reset");
-      attributeNames.put(VENDOR_DEFINED, "Vendor Defined");
+      map.put(AC_ISSUER, "AC Issuer");
+      map.put(OWNER, "Owner");
+      map.put(ATTR_TYPES, "Attribute Types");
+      map.put(TRUSTED, "Trusted");
+      map.put(KEY_TYPE, "Key Type");
+      map.put(SUBJECT, "Subject");
+      map.put(ID, "ID");
+      map.put(CHECK_VALUE, "Check Value");
+      map.put(CERTIFICATE_CATEGORY, "Certificate Category");
+      map.put(SENSITIVE, "Sensitive");
+      map.put(ENCRYPT, "Encrypt");
+      map.put(DECRYPT, "Decrypt");
+      map.put(WRAP, "Wrap");
+      map.put(UNWRAP, "Unwrap");
+      map.put(WRAP_TEMPLATE, "Wrap Template");
+      map.put(UNWRAP_TEMPLATE, "Unwrap Template");
+      map.put(SIGN, "Sign");
+      map.put(SIGN_RECOVER, "Sign Recover");
+      map.put(VERIFY, "Verify");
+      map.put(VERIFY_RECOVER, "Verify Recover");
+      map.put(DERIVE, "Derive");
+      map.put(START_DATE, "Start Date");
+      map.put(END_DATE, "End Date");
+      map.put(MODULUS, "Modulus");
+      map.put(MODULUS_BITS, "Modulus Bits");
+      map.put(PUBLIC_EXPONENT, "Public Exponent");
+      map.put(PRIVATE_EXPONENT, "Private Exponent");
+      map.put(PRIME_1, "Prime 1");
+      map.put(PRIME_2, "Prime 2");
+      map.put(EXPONENT_1, "Exponent 1");
+      map.put(EXPONENT_2, "Exponent 2");
+      map.put(COEFFICIENT, "Coefficient");
+      map.put(PRIME, "Prime");
+      map.put(SUBPRIME, "Subprime");
+      map.put(BASE, "Base");
+      map.put(PRIME_BITS, "Prime Pits");
+      map.put(SUB_PRIME_BITS, "Subprime Bits");
+      map.put(VALUE_BITS, "Value Bits");
+      map.put(VALUE_LEN, "Value Length");
+      map.put(EXTRACTABLE, "Extractable");
+      map.put(LOCAL, "Local");
+      map.put(NEVER_EXTRACTABLE, "Never Extractable");
+      map.put(WRAP_WITH_TRUSTED, "Wrap With Trusted");
+      map.put(ALWAYS_SENSITIVE, "Always Sensitive");
+      map.put(ALWAYS_AUTHENTICATE, "Always Authenticate");
+      map.put(KEY_GEN_MECHANISM, "Key Generation Mechanism");
+      map.put(ALLOWED_MECHANISMS, "Allowed Mechanisms");
+      map.put(MODIFIABLE, "Modifiable");
+      map.put(EC_PARAMS, "EC Parameters");
+      map.put(EC_POINT, "EC Point");
+      map.put(SECONDARY_AUTH, "Secondary Authentication");
+      map.put(AUTH_PIN_FLAGS, "Authentication PIN Flags");
+      map.put(HW_FEATURE_TYPE, "Hardware Feature Type");
+      map.put(RESET_ON_INIT, "Reset on Initialization");
+      map.put(HAS_RESET, "Has been reset");
+      map.put(VENDOR_DEFINED, "Vendor Defined");
+
+      NAMES = Collections.unmodifiableMap(map);
     }
 
-    String name;
-
-    if ((type.longValue() & VENDOR_DEFINED.longValue()) != 0L) {
-      StringBuilder nameBuffer = new StringBuilder(36);
-      nameBuffer.append("VENDOR_DEFINED [0x");
-      nameBuffer.append(Long.toHexString(type.longValue()));
-      nameBuffer.append(']');
-      name = nameBuffer.toString();
-    } else {
-      name = (String) attributeNames.get(type);
-      if (name == null) {
-        StringBuilder nameBuffer = new StringBuilder(25);
-        nameBuffer.append("[0x");
-        nameBuffer.append(Long.toHexString(type.longValue()));
-        nameBuffer.append(']');
-        name = nameBuffer.toString();
-      }
-    }
-
-    return name;
   }
 
   /**
-   * Get the class of the given attribute type.
-   * Current existing Attribute classes are:
-   *           AttributeArray
-   *           BooleanAttribute
-   *           ByteArrayAttribute
-   *           CertificateTypeAttribute
-   *           CharArrayAttribute
-   *           DateAttribute
-   *           HardwareFeatureTypeAttribute
-   *           KeyTypeAttribute
-   *           LongAttribute
-   *           MechanismAttribute
-   *           MechanismArrayAttribute
-   *           ObjectClassAttribute
-   * @param type
-   *          The attribute type.
-   * @return The class of the attribute type, or null if there is no such
-   *         type.
-   * @preconditions
-   * @postconditions
+   * Lazily initialized, immutable map of attribute types to the classes
+   * that implement them. The holder class is loaded on first use, hence
+   * lookups need no lock.
    */
-  protected static synchronized Class<?> getAttributeClass(Long type) {
-    Util.requireNonNull("type", type);
+  private static final class AttributeClassesHolder {
+
+    private static final Map<Long, Class<?>> CLASSES;
+
+    static {
+      Map<Long, Class<?>> map = new HashMap<>(128);
 
-    if (attributeClasses == null) {
       Set<Long> boolSet = new HashSet<>();
       // CHECKSTYLE:SKIP
       Set<Long> longSet = new HashSet<>();
@@ -397,8 +317,7 @@ public abstract class Attribute {
       // CHECKSTYLE:SKIP
       Set<Long> carrSet = new HashSet<>();
 
-      attributeClasses = new Hashtable<>(85);
-      attributeClasses.put(CLASS,
+      map.put(CLASS,
           ObjectClassAttribute.class); //CK_OBJECT_CLASS
       boolSet.add(TOKEN); //CK_BBOOL
       boolSet.add(PRIVATE);//CK_BBOOL
@@ -406,7 +325,7 @@ public abstract class Attribute {
       carrSet.add(APPLICATION); //RFC2279 string
       barrSet.add(VALUE); //Byte Array
       barrSet.add(OBJECT_ID); //Byte Array
-      attributeClasses.put(CERTIFICATE_TYPE,
+      map.put(CERTIFICATE_TYPE,
           CertificateTypeAttribute.class); //CK_CERTIFICATE_TYPE
       barrSet.add(ISSUER); //Byte array
       barrSet.add(SERIAL_NUMBER); //Byte array
@@ -418,7 +337,7 @@ public abstract class Attribute {
       barrSet.add(OWNER); //Byte array
       barrSet.add(ATTR_TYPES); //Byte array
       boolSet.add(TRUSTED); //CK_BBOOL
-      attributeClasses.put(KEY_TYPE,
+      map.put(KEY_TYPE,
           KeyTypeAttribute.class); //CK_KEY_TYPE
       barrSet.add(SUBJECT); //Byte array
       barrSet.add(ID); //Byte array
@@ -429,19 +348,19 @@ public abstract class Attribute {
       boolSet.add(DECRYPT); //CK_BBOOL
       boolSet.add(WRAP); //CK_BBOOL
       boolSet.add(UNWRAP); //CK_BBOOL
-      attributeClasses.put(WRAP_TEMPLATE,
+      map.put(WRAP_TEMPLATE,
           AttributeArray.class); //CK_ATTRIBUTE_PTR
-      attributeClasses.put(Attribute.UNWRAP_TEMPLATE,
+      map.put(Attribute.UNWRAP_TEMPLATE,
           AttributeArray.class); //CK_ATTRIBUTE_PTR
       boolSet.add(SIGN); //CK_BBOOL
       boolSet.add(SIGN_RECOVER); //CK_BBOOL
       boolSet.add(VERIFY); //CK_BBOOL
       boolSet.add(VERIFY_RECOVER); //CK_BBOOL
       boolSet.add(DERIVE); //CK_BBOOL
-      attributeClasses.put(START_DATE, DateAttribute.class); //CK_DATE
-      attributeClasses.put(END_DATE, DateAttribute.class); //CK_DATE
+      map.put(START_DATE, DateAttribute.class); //CK_DATE
+      map.put(END_DATE, DateAttribute.class); //CK_DATE
       barrSet.add(MODULUS); //Big integer
-      attributeClasses.put(MODULUS_BITS, LongAttribute.class); //CK_ULONG
+      map.put(MODULUS_BITS, LongAttribute.class); //CK_ULONG
       barrSet.add(PUBLIC_EXPONENT); //Big integer
       barrSet.add(PRIVATE_EXPONENT); //Big integer
       barrSet.add(PRIME_1); //Big integer
@@ -462,40 +381,145 @@ public abstract class Attribute {
       boolSet.add(WRAP_WITH_TRUSTED); //CK_BBOOL
       boolSet.add(ALWAYS_SENSITIVE); //CK_BBOOL
       boolSet.add(ALWAYS_AUTHENTICATE); //CK_BBOOL
-      attributeClasses.put(KEY_GEN_MECHANISM,
+      map.put(KEY_GEN_MECHANISM,
           MechanismAttribute.class); //CK_MECHANISM_TYPE
-      attributeClasses.put(ALLOWED_MECHANISMS,
+      map.put(ALLOWED_MECHANISMS,
           MechanismArrayAttribute.class); //CK_MECHANISM_TYPE_PTR
       boolSet.add(MODIFIABLE); //CK_BBOOL
       barrSet.add(EC_PARAMS); //Byte array
       barrSet.add(EC_POINT); //Byte array
       boolSet.add(SECONDARY_AUTH); //CK_BBOOL - deprecated
       longSet.add(AUTH_PIN_FLAGS); //CK_ULONG - deprecated
-      attributeClasses.put(HW_FEATURE_TYPE,
+      map.put(HW_FEATURE_TYPE,
           HardwareFeatureTypeAttribute.class); //CK_HW_FEATURE
       boolSet.add(RESET_ON_INIT); //CK_BBOOL
       boolSet.add(HAS_RESET); //CK_BBOOL
 
       for (Long m : boolSet) {
-        attributeClasses.put(m, BooleanAttribute.class);
+        map.put(m, BooleanAttribute.class);
       }
 
       for (Long m : longSet) {
-        attributeClasses.put(m, LongAttribute.class);
+        map.put(m, LongAttribute.class);
       }
 
       for (Long m : barrSet) {
-        attributeClasses.put(m, ByteArrayAttribute.class);
+        map.put(m, ByteArrayAttribute.class);
       }
 
       for (Long m : carrSet) {
-        attributeClasses.put(m, CharArrayAttribute.class);
+        map.put(m, CharArrayAttribute.class);
+      }
+
+      CLASSES = Collections.unmodifiableMap(map);
+    }
+
+  }
+
+  /**
+   * True, if the object really possesses this attribute.
+   */
+  protected boolean present;
+
+  /**
+   * True, if this attribute is sensitive.
+   */
+  protected boolean sensitive;
+
+  /**
+   * The CK_ATTRIBUTE that is used to hold the PKCS#11 type of this attribute
+   * and the value.
+   */
+  protected CK_ATTRIBUTE ckAttribute;
+
+  /**
+   * Empty constructor.
+   * Attention! If you use this constructor, you must set ckAttribute to
+   * ensure that the class invariant is not violated.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  protected Attribute() { /* left empty intentionally */
+  }
+
+  /**
+   * Constructor taking the PKCS#11 type of the attribute.
+   *
+   * @param type
+   *          The PKCS#11 type of this attribute; e.g.
+   *          PKCS11Constants.CKA_PRIVATE.
+   * @preconditions (type <> null)
+   * @postconditions
+   */
+  protected Attribute(Long type) {
+    Util.requireNonNull("type", type);
+    present = false;
+    sensitive = false;
+    ckAttribute = new CK_ATTRIBUTE();
+    ckAttribute.type = type.longValue();
+  }
+
+  /**
+   * Get the name of the given attribute type.
+   *
+   * @param type
+   *          The attribute type.
+   * @return The name of the attribute type, or null if there is no such type.
+   * @preconditions
+   * @postconditions
+   */
+  protected static String getAttributeName(Long type) {
+    Util.requireNonNull("type", type);
+
+    String name;
+
+    if ((type.longValue() & VENDOR_DEFINED.longValue()) != 0L) {
+      StringBuilder nameBuffer = new StringBuilder(36);
+      nameBuffer.append("VENDOR_DEFINED [0x");
+      nameBuffer.append(Long.toHexString(type.longValue()));
+      nameBuffer.append(']');
+      name = nameBuffer.toString();
+    } else {
+      name = AttributeNamesHolder.NAMES.get(type);
+      if (name == null) {
+        StringBuilder nameBuffer = new StringBuilder(25);
+        nameBuffer.append("[0x");
+        nameBuffer.append(Long.toHexString(type.longValue()));
+        nameBuffer.append(']');
+        name = nameBuffer.toString();
       }
     }
 
-    Class<?> implementation = (Class<?>) attributeClasses.get(type);
-    return implementation;
+    return name;
+  }
+
+  /**
+   * Get the class of the given attribute type.
+   * Current existing Attribute classes are:
+   *           AttributeArray
+   *           BooleanAttribute
+   *           ByteArrayAttribute
+   *           CertificateTypeAttribute
+   *           CharArrayAttribute
+   *           DateAttribute
+   *           HardwareFeatureTypeAttribute
+   *           KeyTypeAttribute
+   *           LongAttribute
+   *           MechanismAttribute
+   *           MechanismArrayAttribute
+   *           ObjectClassAttribute
+   * @param type
+   *          The attribute type.
+   * @return The class of the attribute type, or null if there is no such
+   *         type.
+   * @preconditions
+   * @postconditions
+   */
+  protected static Class<?> getAttributeClass(Long type) {
+    Util.requireNonNull("type", type);
 
+    return AttributeClassesHolder.CLASSES.get(type);
   }
 
   /**
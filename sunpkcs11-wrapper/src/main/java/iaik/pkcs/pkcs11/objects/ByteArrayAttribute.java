@@ -42,6 +42,7 @@
 
 package iaik.pkcs.pkcs11.objects;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import iaik.pkcs.pkcs11.Util;
@@ -86,6 +87,7 @@ public class ByteArrayAttribute extends Attribute {
 
   /**
    * Get the byte-array value of this attribute. Null, is also possible.
+   * The returned array is not a copy, see {@link #getByteArrayValueNoCopy()}.
    *
    * @return The byte-array value of this attribute or null.
    * @preconditions
@@ -96,6 +98,53 @@ public class ByteArrayAttribute extends Attribute {
     return (byte[]) ckAttribute.pValue;
   }
 
+  /**
+   * Get the array that backs the value of this attribute without copying it.
+   * The caller MUST NOT modify the returned array, since any change would
+   * also change this attribute and hence the template or object it belongs
+   * to. Use this method if the value is only read, e.g. to parse or to hash
+   * a certificate; use {@link #getByteBufferValue()} if the value is passed
+   * to code that is not trusted to leave it unchanged.
+   *
+   * @return The underlying byte-array value of this attribute or null.
+   * @preconditions
+   * @postconditions
+   */
+  @SuppressWarnings("restriction")
+  public byte[] getByteArrayValueNoCopy() {
+    return (byte[]) ckAttribute.pValue;
+  }
+
+  /**
+   * Get a read-only view of the value of this attribute. The buffer shares
+   * its content with this attribute, no data is copied. Its position is 0
+   * and its limit is the length of the value.
+   *
+   * @return A read-only buffer over the value of this attribute, or null if
+   *         the value is null.
+   * @preconditions
+   * @postconditions (result == null) or (result.isReadOnly())
+   */
+  @SuppressWarnings("restriction")
+  public ByteBuffer getByteBufferValue() {
+    byte[] value = (byte[]) ckAttribute.pValue;
+    return (value == null) ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the length of the value of this attribute without accessing the
+   * value itself.
+   *
+   * @return The length of the value in bytes, or -1 if the value is null.
+   * @preconditions
+   * @postconditions
+   */
+  @SuppressWarnings("restriction")
+  public int getValueLength() {
+    byte[] value = (byte[]) ckAttribute.pValue;
+    return (value == null) ? -1 : value.length;
+  }
+
   /**
    * Get a string representation of the value of this attribute.
    *
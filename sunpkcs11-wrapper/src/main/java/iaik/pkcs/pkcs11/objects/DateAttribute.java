@@ -42,6 +42,7 @@
 
 package iaik.pkcs.pkcs11.objects;
 
+import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -97,6 +98,33 @@ public class DateAttribute extends Attribute {
     return Util.convertToDate((CK_DATE) ckAttribute.pValue);
   }
 
+  /**
+   * Set the date value of this attribute. Null, is also valid.
+   * A call to this method sets the present flag to true.
+   *
+   * @param value
+   *          The date value to set. May be null.
+   * @preconditions
+   * @postconditions
+   */
+  public void setLocalDateValue(LocalDate value) {
+    ckAttribute.pValue = Util.convertToCkDate(value);
+    present = true;
+  }
+
+  /**
+   * Get the date value of this attribute as LocalDate. Null, is also
+   * possible. Unlike {@link #getDateValue()}, this method does not depend on
+   * the default time zone.
+   *
+   * @return The date value of this attribute or null.
+   * @preconditions
+   * @postconditions
+   */
+  public LocalDate getLocalDateValue() {
+    return Util.convertToLocalDate((CK_DATE) ckAttribute.pValue);
+  }
+
   /**
    * Compares all member variables of this object with the other object.
    * Returns only true, if all are equal in both objects.
@@ -150,7 +178,11 @@ public class DateAttribute extends Attribute {
 
   @Override
   public void setValue(Object value) {
-    setDateValue((Date) value);
+    if (value instanceof LocalDate) {
+      setLocalDateValue((LocalDate) value);
+    } else {
+      setDateValue((Date) value);
+    }
   }
 
   /**
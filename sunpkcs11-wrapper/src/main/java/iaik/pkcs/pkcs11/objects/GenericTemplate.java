@@ -209,11 +209,11 @@ public class GenericTemplate extends PKCS11Object {
 
     super.readAttributes(session);
 
-    Enumeration<Attribute> attributeEnumeration = attributeTable.elements();
-    while (attributeEnumeration.hasMoreElements()) {
-      Attribute attribute = attributeEnumeration.nextElement();
-      PKCS11Object.getAttributeValue(session, objectHandle, attribute);
-    }
+    // read all at once, absent attributes are narrowed down by
+    // getAttributeValues
+    Attribute[] attributes = attributeTable.values().toArray(
+        new Attribute[attributeTable.size()]);
+    PKCS11Object.getAttributeValues(session, objectHandle, attributes);
   }
 
   /**
@@ -42,7 +42,9 @@
 
 package iaik.pkcs.pkcs11.objects;
 
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import iaik.pkcs.pkcs11.Session;
 import iaik.pkcs.pkcs11.TokenException;
@@ -277,10 +279,49 @@ public class Key extends Storage {
   protected static VendorDefinedKeyBuilder vendorKeyBuilder;
 
   /**
-   * A table holding string representations for all known key types. Table key
-   * is the key type as Long object.
+   * Holds an immutable table of string representations for all known
+   * key types. Table key is the key type as Long object. The table is built
+   * when this class is loaded, hence lookups need no lock.
    */
-  protected static Hashtable<Long, String> keyTypeNames;
+  private static final class KeyTypeNamesHolder {
+
+    private static final Map<Long, String> NAMES;
+
+    static {
+      Map<Long, String> map = new HashMap<>(64);
+      map.put(KeyType.RSA, "RSA");
+      map.put(KeyType.DSA, "DSA");
+      map.put(KeyType.DH, "DH");
+      map.put(KeyType.EC, "EC");
+      map.put(KeyType.EC_EDWARDS, "EC_EDWARDS");
+      map.put(KeyType.EC_MONTGOMERY, "EC_MONTGOMERY");
+      map.put(KeyType.X9_42_DH, "X9_42_DH");
+      map.put(KeyType.KEA, "KEA");
+      map.put(KeyType.GENERIC_SECRET, "GENERIC_SECRET");
+      map.put(KeyType.RC2, "RC2");
+      map.put(KeyType.RC4, "RC4");
+      map.put(KeyType.DES, "DES");
+      map.put(KeyType.DES2, "DES2");
+      map.put(KeyType.DES3, "DES3");
+      map.put(KeyType.CAST, "CAST");
+      map.put(KeyType.CAST3, "CAST3");
+      map.put(KeyType.CAST128, "CAST128");
+      map.put(KeyType.RC5, "RC5");
+      map.put(KeyType.IDEA, "IDEA");
+      map.put(KeyType.SKIPJACK, "SKIPJACK");
+      map.put(KeyType.BATON, "BATON");
+      map.put(KeyType.JUNIPER, "JUNIPER");
+      map.put(KeyType.CDMF, "CDMF");
+      map.put(KeyType.AES, "AES");
+      map.put(KeyType.BLOWFISH, "BLOWFISH");
+      map.put(KeyType.TWOFISH, "TWOFISH");
+      map.put(KeyType.VENDOR_SM2, "SM2");
+      map.put(KeyType.VENDOR_SM4, "SM4");
+
+      NAMES = Collections.unmodifiableMap(map);
+    }
+
+  }
 
   /**
    * The type of this key. Its value is one of KeyType, or one that has a
@@ -393,40 +434,7 @@ public class Key extends Storage {
   public static String getKeyTypeName(Long keyType) {
     Util.requireNonNull("keyType", keyType);
 
-    if (keyTypeNames == null) {
-      // setup key type names table
-      keyTypeNames = new Hashtable<>(24);
-      keyTypeNames.put(KeyType.RSA, "RSA");
-      keyTypeNames.put(KeyType.DSA, "DSA");
-      keyTypeNames.put(KeyType.DH, "DH");
-      keyTypeNames.put(KeyType.EC, "EC");
-      keyTypeNames.put(KeyType.EC_EDWARDS, "EC_EDWARDS");
-      keyTypeNames.put(KeyType.EC_MONTGOMERY, "EC_MONTGOMERY");
-      keyTypeNames.put(KeyType.X9_42_DH, "X9_42_DH");
-      keyTypeNames.put(KeyType.KEA, "KEA");
-      keyTypeNames.put(KeyType.GENERIC_SECRET, "GENERIC_SECRET");
-      keyTypeNames.put(KeyType.RC2, "RC2");
-      keyTypeNames.put(KeyType.RC4, "RC4");
-      keyTypeNames.put(KeyType.DES, "DES");
-      keyTypeNames.put(KeyType.DES2, "DES2");
-      keyTypeNames.put(KeyType.DES3, "DES3");
-      keyTypeNames.put(KeyType.CAST, "CAST");
-      keyTypeNames.put(KeyType.CAST3, "CAST3");
-      keyTypeNames.put(KeyType.CAST128, "CAST128");
-      keyTypeNames.put(KeyType.RC5, "RC5");
-      keyTypeNames.put(KeyType.IDEA, "IDEA");
-      keyTypeNames.put(KeyType.SKIPJACK, "SKIPJACK");
-      keyTypeNames.put(KeyType.BATON, "BATON");
-      keyTypeNames.put(KeyType.JUNIPER, "JUNIPER");
-      keyTypeNames.put(KeyType.CDMF, "CDMF");
-      keyTypeNames.put(KeyType.AES, "AES");
-      keyTypeNames.put(KeyType.BLOWFISH, "BLOWFISH");
-      keyTypeNames.put(KeyType.TWOFISH, "TWOFISH");
-      keyTypeNames.put(KeyType.VENDOR_SM2, "SM2");
-      keyTypeNames.put(KeyType.VENDOR_SM4, "SM4");
-    }
-
-    String keyTypeName = (String) keyTypeNames.get(keyType);
+    String keyTypeName = KeyTypeNamesHolder.NAMES.get(keyType);
     if (keyTypeName == null) {
       if ((keyType.longValue()
           & PKCS11Constants.CKK_VENDOR_DEFINED) != 0L) {
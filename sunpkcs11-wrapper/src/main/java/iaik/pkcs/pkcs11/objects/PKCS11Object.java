@@ -42,8 +42,11 @@
 
 package iaik.pkcs.pkcs11.objects;
 
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Vector;
 
 //import java.util.Collections;
@@ -182,10 +185,36 @@ public class PKCS11Object {
   protected static VendorDefinedObjectBuilder vendorObjectBuilder;
 
   /**
-   * A table holding string representations for all known key types. Table key
-   * is the key type as Long object.
+   * Up to this number of attributes, a failed bulk read is not split any
+   * further, the attributes are read individually instead.
    */
-  protected static Hashtable<Long, String> objectClassNames;
+  private static final int BISECT_THRESHOLD = 3;
+
+  /**
+   * Holds an immutable table of string representations for all known
+   * object classes. Table key is the object class as Long object. The table is
+   * built when this class is loaded, hence lookups need no lock.
+   */
+  private static final class ObjectClassNamesHolder {
+
+    private static final Map<Long, String> NAMES;
+
+    static {
+      Map<Long, String> map = new HashMap<>(16);
+      map.put(ObjectClass.DATA, "Data");
+      map.put(ObjectClass.CERTIFICATE, "Certificate");
+      map.put(ObjectClass.PUBLIC_KEY, "Public Key");
+      map.put(ObjectClass.PRIVATE_KEY, "Private Key");
+      map.put(ObjectClass.SECRET_KEY, "Secret Key");
+      map.put(ObjectClass.HW_FEATURE,
+          "Hardware Feature");
+      map.put(ObjectClass.DOMAIN_PARAMETERS,
+          "Domain Parameters");
+
+      NAMES = Collections.unmodifiableMap(map);
+    }
+
+  }
 
   /**
    * Contains all attribute objects an object possesses. No matter if an
@@ -377,21 +406,7 @@ public class PKCS11Object {
         & PKCS11Constants.CKO_VENDOR_DEFINED) != 0L) {
       objectClassName = "Vendor Defined";
     } else {
-      if (objectClassNames == null) {
-        // setup object class names table
-        objectClassNames = new Hashtable<>(7);
-        objectClassNames.put(ObjectClass.DATA, "Data");
-        objectClassNames.put(ObjectClass.CERTIFICATE, "Certificate");
-        objectClassNames.put(ObjectClass.PUBLIC_KEY, "Public Key");
-        objectClassNames.put(ObjectClass.PRIVATE_KEY, "Private Key");
-        objectClassNames.put(ObjectClass.SECRET_KEY, "Secret Key");
-        objectClassNames.put(ObjectClass.HW_FEATURE,
-            "Hardware Feature");
-        objectClassNames.put(ObjectClass.DOMAIN_PARAMETERS,
-            "Domain Parameters");
-      }
-
-      objectClassName = (String) objectClassNames.get(objectClass);
+      objectClassName = ObjectClassNamesHolder.NAMES.get(objectClass);
       if (objectClassName == null) {
         objectClassName = "<unknown>";
       }
@@ -742,10 +757,46 @@ public class PKCS11Object {
    */
   protected static void getAttributeValue(Session session, long objectHandle,
       Attribute attribute) throws PKCS11Exception {
+    probeAttributeValue(session, objectHandle, attribute);
+  }
+
+  /**
+   * Reads the attribute like {@link #getAttributeValue}, but reports the
+   * expected outcomes as status instead of leaving the caller to inspect the
+   * attribute flags. Only errors other than
+   * <code>CKR_ATTRIBUTE_TYPE_INVALID</code> and
+   * <code>CKR_ATTRIBUTE_SENSITIVE</code> are thrown as exception; no
+   * exception object of this package is created for the expected ones.
+   *
+   * @param session
+   *          The session to use for reading the attribute.
+   * @param objectHandle
+   *          The handle of the object which contains the attribute.
+   * @param attribute
+   *          The object specifying the attribute type and receiving the
+   *          attribute value and the present and sensitive flags.
+   * @return <code>CKR_OK</code> if the value has been read,
+   *         <code>CKR_ATTRIBUTE_TYPE_INVALID</code> if the object does not
+   *         possess the attribute, or <code>CKR_ATTRIBUTE_SENSITIVE</code>
+   *         if the value cannot be revealed.
+   * @exception PKCS11Exception
+   *              If getting the attribute failed for another reason.
+   * @preconditions (session <> null)
+   *                and (attribute <> null)
+   * @postconditions
+   */
+  public static long probeAttributeValue(Session session, long objectHandle,
+      Attribute attribute) throws PKCS11Exception {
     Util.requireNonNull("session", session);
+    Util.requireNonNull("attribute", attribute);
 
-    PKCS11 pkcs11Module = session.getModule().getPKCS11Module();
-    long sessionHandle = session.getSessionHandle();
+    return probeAttributeValue(session.getModule().getPKCS11Module(),
+        session.getSessionHandle(), objectHandle, attribute);
+  }
+
+  private static long probeAttributeValue(PKCS11 pkcs11Module,
+      long sessionHandle, long objectHandle, Attribute attribute)
+      throws PKCS11Exception {
     long attributeCode = attribute.getCkAttribute().type;
 
     try {
@@ -757,32 +808,35 @@ public class PKCS11Object {
       attribute.setCkAttribute(attributeTemplateList[0]);
       attribute.setPresent(true);
       attribute.setSensitive(false);
+      return PKCS11Constants.CKR_OK;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      if (ex.getErrorCode()
-          == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
+      long errorCode = ex.getErrorCode();
+      if (errorCode == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
         // this means, that some requested attributes are missing, but
         // we can ignore this and proceed; e.g. a v2.01 module won't
         // have the object ID attribute
         attribute.setPresent(false);
-      } else if (ex.getErrorCode()
-          == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE) {
-        // this means, that some requested attributes are missing, but
-        // we can ignore this and proceed; e.g. a v2.01 module won't
-        // have the object ID attribute
+      } else if (errorCode == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE) {
+        // the attribute is present, but its value cannot be revealed
         attribute.setPresent(true);
         attribute.setSensitive(true);
       } else {
         // there was a different error that we should propagate
         throw new PKCS11Exception(ex);
       }
+      return errorCode;
     }
   }
 
   /**
    * This method reads the attributes in a similar way as
    * {@link #getAttributeValue}, but a complete array at once. This can lead
-   * to performance improvements. If reading all attributes at once fails, it
-   * tries to read each attributes individually.
+   * to performance improvements. If reading all attributes at once fails
+   * because some of them are absent or sensitive, the array is split in
+   * halves which are read again, so that only the failing attributes are
+   * finally read individually. Each failing call costs an exception in the
+   * underlying wrapper, hence this needs far fewer calls than reading every
+   * attribute individually if only few attributes are absent.
    *
    * @param session
    *          The session to use for reading the attributes.
@@ -798,33 +852,60 @@ public class PKCS11Object {
    *                and (attributes <> null)
    * @postconditions
    */
-  protected static void getAttributeValues(Session session, long objectHandle,
+  public static void getAttributeValues(Session session, long objectHandle,
       Attribute[] attributes) throws PKCS11Exception {
     Util.requireNonNull("session", session);
     Util.requireNonNull("attributes", attributes);
 
-    PKCS11 pkcs11Module = session.getModule().getPKCS11Module();
-    long sessionHandle = session.getSessionHandle();
+    getAttributeValues(session.getModule().getPKCS11Module(),
+        session.getSessionHandle(), objectHandle, attributes,
+        0, attributes.length);
+  }
+
+  private static void getAttributeValues(PKCS11 pkcs11Module,
+      long sessionHandle, long objectHandle, Attribute[] attributes,
+      int fromIndex, int toIndex) throws PKCS11Exception {
+    int count = toIndex - fromIndex;
+    if (count == 0) {
+      return;
+    } else if (count == 1) {
+      probeAttributeValue(pkcs11Module, sessionHandle, objectHandle,
+          attributes[fromIndex]);
+      return;
+    }
 
     try {
-      CK_ATTRIBUTE[] attributeTemplateList
-        = new CK_ATTRIBUTE[attributes.length];
-      for (int i = 0; i < attributes.length; i++) {
+      CK_ATTRIBUTE[] attributeTemplateList = new CK_ATTRIBUTE[count];
+      for (int i = 0; i < count; i++) {
         CK_ATTRIBUTE attribute = new CK_ATTRIBUTE();
-        attribute.type = attributes[i].getCkAttribute().type;
+        attribute.type = attributes[fromIndex + i].getCkAttribute().type;
         attributeTemplateList[i] = attribute;
       }
       pkcs11Module.C_GetAttributeValue(sessionHandle, objectHandle,
             attributeTemplateList);
-      for (int i = 0; i < attributes.length; i++) {
-        attributes[i].setCkAttribute(attributeTemplateList[i]);
-        attributes[i].setPresent(true);
-        attributes[i].setSensitive(false);
+      for (int i = 0; i < count; i++) {
+        Attribute attribute = attributes[fromIndex + i];
+        attribute.setCkAttribute(attributeTemplateList[i]);
+        attribute.setPresent(true);
+        attribute.setSensitive(false);
       }
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      // try to read values separately
-      for (int i = 0; i < attributes.length; i++) {
-        getAttributeValue(session, objectHandle, attributes[i]);
+      long errorCode = ex.getErrorCode();
+      if (count > BISECT_THRESHOLD
+          && (errorCode == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID
+            || errorCode == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE)) {
+        // narrow down the absent or sensitive attributes
+        int middle = fromIndex + count / 2;
+        getAttributeValues(pkcs11Module, sessionHandle, objectHandle,
+            attributes, fromIndex, middle);
+        getAttributeValues(pkcs11Module, sessionHandle, objectHandle,
+            attributes, middle, toIndex);
+      } else {
+        // try to read values separately
+        for (int i = fromIndex; i < toIndex; i++) {
+          probeAttributeValue(pkcs11Module, sessionHandle, objectHandle,
+              attributes[i]);
+        }
       }
     }
   }
@@ -0,0 +1,265 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.params;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.Util;
+
+/**
+ * Freezes a parameters object. The object of the corresponding *_PARAMS
+ * class is built once at construction, so that repeated operations with the
+ * same parameters, e.g. PSS signing or OAEP decryption, do not rebuild it.
+ * This object is a deep copy; the arrays it holds are not shared with the
+ * wrapped parameters. Hence later changes to the wrapped parameters affect
+ * neither the operations nor {@link #equals(Object)}, {@link #hashCode()}
+ * and {@link #toString()}, which are all based on the state at
+ * construction.
+ * <p/>
+ * Parameters into which the token writes results, i.e.
+ * {@link SSL3MasterKeyDeriveParams} and {@link SSL3KeyMaterialParams}, cannot
+ * be frozen, because concurrent operations would share these results.
+ *
+ * <pre>
+ * <code>
+ *   Mechanism pss = Mechanism.getImmutable(PKCS11Constants.CKM_RSA_PKCS_PSS,
+ *       new RSAPkcsPssParams(Mechanism.get(PKCS11Constants.CKM_SHA256),
+ *           PKCS11Constants.CKG_MGF1_SHA256, 32));
+ * </code>
+ * </pre>
+ *
+ * @invariants (params <> null) and (description <> null)
+ */
+public final class ImmutableParams implements Params {
+
+  private final Params params;
+
+  private final Object pkcs11ParamsObject;
+
+  private final String description;
+
+  private final int hashCode;
+
+  /**
+   * Creates an immutable view of the given parameters.
+   *
+   * @param params
+   *          The parameters to freeze.
+   * @exception IllegalArgumentException
+   *              If the token writes results into the parameters.
+   * @preconditions (params <> null)
+   * @postconditions
+   */
+  public ImmutableParams(Params params) {
+    this.params = Util.requireNonNull("params", params);
+    if (params instanceof SSL3MasterKeyDeriveParams
+        || params instanceof SSL3KeyMaterialParams) {
+      throw new IllegalArgumentException("the token writes results into "
+          + params.getClass().getSimpleName() + ", it cannot be shared");
+    }
+    this.pkcs11ParamsObject = deepCopy(params.getPKCS11ParamsObject());
+    this.description = params.toString();
+    this.hashCode = params.getClass().hashCode() * 31
+        + deepHashCode(pkcs11ParamsObject);
+  }
+
+  /**
+   * Gets the wrapped parameters. They are the parameters given at
+   * construction, not a copy, and may have been modified since. Do not
+   * modify them.
+   *
+   * @return The wrapped parameters.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Params getParams() {
+    return params;
+  }
+
+  /**
+   * Gets the object built at construction. It is shared by all operations;
+   * do not modify it.
+   *
+   * @return The object of the corresponding *_PARAMS class.
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public Object getPKCS11ParamsObject() {
+    return pkcs11ParamsObject;
+  }
+
+  /**
+   * Returns the string representation of the wrapped parameters at
+   * construction.
+   *
+   * @return The description of the parameters.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  @Override
+  public String toString() {
+    return description;
+  }
+
+  @Override
+  public boolean equals(Object otherObject) {
+    if (this == otherObject) {
+      return true;
+    } else if (!(otherObject instanceof ImmutableParams)) {
+      // not equal to the wrapped parameters, to keep equals symmetric
+      return false;
+    }
+
+    ImmutableParams other = (ImmutableParams) otherObject;
+    return hashCode == other.hashCode
+        && params.getClass() == other.params.getClass()
+        && deepEquals(pkcs11ParamsObject, other.pkcs11ParamsObject);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  /**
+   * Copies the given *_PARAMS object, its arrays and the *_PARAMS objects
+   * it refers to. Other objects, e.g. Long, are immutable and not copied.
+   * The *_PARAMS objects are built anew by each call of
+   * {@link Params#getPKCS11ParamsObject()}, only the arrays in their public
+   * fields may be shared with the parameters.
+   */
+  private static Object deepCopy(Object object) {
+    if (object == null) {
+      return null;
+    } else if (object instanceof byte[]) {
+      return ((byte[]) object).clone();
+    } else if (object instanceof char[]) {
+      return ((char[]) object).clone();
+    } else if (object instanceof long[]) {
+      return ((long[]) object).clone();
+    }
+
+    try {
+      for (Field field : getStructFields(object.getClass())) {
+        if (!Modifier.isFinal(field.getModifiers())) {
+          field.set(object, deepCopy(field.get(object)));
+        }
+      }
+    } catch (IllegalAccessException ex) {
+      throw new IllegalArgumentException("cannot copy " + object, ex);
+    }
+    return object;
+  }
+
+  private static boolean deepEquals(Object object, Object otherObject) {
+    if (object == otherObject) {
+      return true;
+    } else if (object == null || otherObject == null
+        || object.getClass() != otherObject.getClass()) {
+      return false;
+    } else if (object.getClass().isArray()) {
+      return Arrays.deepEquals(new Object[] { object },
+          new Object[] { otherObject });
+    }
+
+    Field[] fields = getStructFields(object.getClass());
+    if (fields.length == 0) {
+      return object.equals(otherObject);
+    }
+    try {
+      for (Field field : fields) {
+        if (!deepEquals(field.get(object), field.get(otherObject))) {
+          return false;
+        }
+      }
+    } catch (IllegalAccessException ex) {
+      return false;
+    }
+    return true;
+  }
+
+  private static int deepHashCode(Object object) {
+    if (object == null) {
+      return 0;
+    } else if (object.getClass().isArray()) {
+      return Arrays.deepHashCode(new Object[] { object });
+    }
+
+    Field[] fields = getStructFields(object.getClass());
+    if (fields.length == 0) {
+      return object.hashCode();
+    }
+    int hashCode = 0;
+    try {
+      for (Field field : fields) {
+        hashCode = hashCode * 31 + deepHashCode(field.get(object));
+      }
+    } catch (IllegalAccessException ex) {
+      // equals() treats such objects as different anyway
+    }
+    return hashCode;
+  }
+
+  /**
+   * Gets the public instance fields of a *_PARAMS class, or none for other
+   * classes.
+   */
+  private static Field[] getStructFields(Class<?> clazz) {
+    if (!clazz.getSimpleName().startsWith("CK_")) {
+      return new Field[0];
+    }
+
+    Field[] fields = clazz.getFields();
+    int count = 0;
+    for (Field field : fields) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        fields[count++] = field;
+      }
+    }
+    return Arrays.copyOf(fields, count);
+  }
+
+}